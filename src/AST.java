@@ -3,6 +3,13 @@
 
 /** AST ::= BoolConstant | IntConstant | EmptyConstant | Variable | PrimFun | UnOpApp | BinOpApp | App | Map | If | Let */
 
+/* The composite AST classes (UnOpApp, BinOpApp, App, Map, If, Let) and Def define equals and hashCode structurally,
+ * so that two ASTs are equal if they have the same shape and equal leaves.  Leaves are compared as before: Variables,
+ * operators, and primitive functions by identity (the lexer produces a unique Variable for each name) and constants
+ * by value.  ASTs are immutable, so each composite node caches its hash code.  See HashConser in Optimize.java. */
+
+import java.util.Arrays;
+
 /** AST class definitions */
 
 /** The AST type which support a visitor interface */
@@ -241,6 +248,17 @@ class UnOpApp implements Term {
   public AST arg() { return arg; }
   public <ResType> ResType accept(ASTVisitor<ResType> v) { return v.forUnOpApp(this); }
   public String toString() { return rator + " " + arg; }
+  public boolean equals(Object other) {
+    if (this == other) return true;
+    if (! (other instanceof UnOpApp)) return false;
+    UnOpApp u = (UnOpApp) other;
+    return rator == u.rator && arg.equals(u.arg);
+  }
+  private int hash;
+  public int hashCode() {
+    if (hash == 0) hash = 31 * rator.hashCode() + arg.hashCode();
+    return hash;
+  }
 }
 
 class BinOpApp implements Term {
@@ -256,6 +274,17 @@ class BinOpApp implements Term {
   public String toString() {
     return "(" + toString(arg1) + " " + rator + " " + toString(arg2) + ")"; 
   }
+  public boolean equals(Object other) {
+    if (this == other) return true;
+    if (! (other instanceof BinOpApp)) return false;
+    BinOpApp b = (BinOpApp) other;
+    return rator == b.rator && arg1.equals(b.arg1) && arg2.equals(b.arg2);
+  }
+  private int hash;
+  public int hashCode() {
+    if (hash == 0) hash = (31 * rator.hashCode() + arg1.hashCode()) * 31 + arg2.hashCode();
+    return hash;
+  }
   private String toString(AST arg) {
     String argString = arg.toString();
     if (! (arg instanceof Term)) return "(" + argString + ")";
@@ -266,14 +295,39 @@ class BinOpApp implements Term {
 class Map implements AST {
   private Variable[] vars;
   private AST body;
+  /** The free variables of this Map, resolved in the enclosing scope; null unless this Map was built by
+    * ResolveVisitor. A flat closure for this Map captures exactly these bindings. */
+  private LexicalVariable[] freeVars;
+  /** The names of freeVars, which are the variables bound in the captured frame of a closure for this Map. */
+  private Variable[] capturedVars;
   
   Map(Variable[] v, AST b) { vars = v; body = b; }
+  Map(Variable[] v, AST b, LexicalVariable[] fv) {
+    this(v, b);
+    freeVars = fv;
+    capturedVars = new Variable[fv.length];
+    for (int i = 0; i < fv.length; i++) capturedVars[i] = fv[i].var();
+  }
   public Variable[] vars() { return vars; }
   public AST body() { return body; }
+  public LexicalVariable[] freeVars() { return freeVars; }
+  public Variable[] capturedVars() { return capturedVars; }
   public <ResType> ResType accept(ASTVisitor<ResType> v) { return v.forMap(this); }
   public String toString() { 
     return "map " + ToString.toString(vars,",") + " to " + body;
   }
+  /** Ignores freeVars, which are determined by the body and the enclosing scope. */
+  public boolean equals(Object other) {
+    if (this == other) return true;
+    if (! (other instanceof Map)) return false;
+    Map m = (Map) other;
+    return Arrays.equals(vars, m.vars) && body.equals(m.body);
+  }
+  private int hash;
+  public int hashCode() {
+    if (hash == 0) hash = 31 * Arrays.hashCode(vars) + body.hashCode();
+    return hash;
+  }
 }  
 
 class App implements Term {
@@ -292,6 +346,17 @@ class App implements Term {
     else
       return "(" +  rator + ")(" + ToString.toString(args,", ") + ")"; 
   }
+  public boolean equals(Object other) {
+    if (this == other) return true;
+    if (! (other instanceof App)) return false;
+    App a = (App) other;
+    return rator.equals(a.rator) && Arrays.equals(args, a.args);
+  }
+  private int hash;
+  public int hashCode() {
+    if (hash == 0) hash = 31 * rator.hashCode() + Arrays.hashCode(args);
+    return hash;
+  }
 }  
 
 class If implements AST {
@@ -305,6 +370,17 @@ class If implements AST {
   public String toString() { 
     return "if " + test + " then " + conseq + " else " + alt ; 
   }
+  public boolean equals(Object other) {
+    if (this == other) return true;
+    if (! (other instanceof If)) return false;
+    If i = (If) other;
+    return test.equals(i.test) && conseq.equals(i.conseq) && alt.equals(i.alt);
+  }
+  private int hash;
+  public int hashCode() {
+    if (hash == 0) hash = (31 * test.hashCode() + conseq.hashCode()) * 31 + alt.hashCode();
+    return hash;
+  }
 }  
 
 class Let implements AST {
@@ -318,6 +394,21 @@ class Let implements AST {
   public String toString() { 
     return "let " + ToString.toString(defs," ") + " in " + body; 
   }
+  public boolean equals(Object other) {
+    if (this == other) return true;
+    if (! (other instanceof Let)) return false;
+    Let l = (Let) other;
+    return Arrays.equals(defs, l.defs) && body.equals(l.body);
+  }
+  private int hash;
+  public int hashCode() {
+    if (hash == 0) hash = 31 * Arrays.hashCode(defs) + body.hashCode();
+    return hash;
+  }
+  
+  /** The call-by-need strictness of this Let with lazy and with eager cons, computed when first needed by
+    * Compiler.letStrictness; like hash, a cache that does not affect the meaning of this Let. */
+  Compiler.LetStrictness lazyStrictness, eagerStrictness;
   
   /* Commonly used non-essential methods */
   /** Returns the vars that are locally defined in this Let. */
@@ -366,6 +457,13 @@ class Def {
   public AST rhs() { return rhs; }
   
   public String toString() { return lhs + " := " + rhs + ";"; }
+  public boolean equals(Object other) {
+    if (this == other) return true;
+    if (! (other instanceof Def)) return false;
+    Def d = (Def) other;
+    return lhs == d.lhs && rhs.equals(d.rhs);
+  }
+  public int hashCode() { return 31 * lhs.hashCode() + rhs.hashCode(); }
 }
 
 /** Dummy class containing an improved toString method for arrays. */
@@ -0,0 +1,130 @@
+/* Evaluation of arithmetic and comparison subtrees on unboxed ints.  An evaluator that computes + - * / and
+ * < <= > >= by evaluating each operand to a JamVal, checking it with instanceof, and boxing the result in a new
+ * IntConstant allocates an IntConstant for every intermediate result.  The methods below evaluate an entire
+ * arithmetic subtree on Java ints, so a JamVal is produced only where the value of the subtree is needed as a JamVal
+ * (for a binding, a cons, or the result of a function), and a comparison that serves as the test of an If yields a
+ * Java boolean on which the evaluator branches directly. */
+
+/** Static methods that evaluate arithmetic and boolean subtrees of an AST without boxing intermediate results.
+  * Subtrees that are not arithmetic or boolean operator applications (variables, applications, Lets, ...) are
+  * evaluated by the JamVal evaluator passed as an argument, so these methods work with any evaluation policy.
+  * Evaluation order and error reporting are the same as for operand-by-operand evaluation. */
+class ArithEvaluator {
+
+  private ArithEvaluator() {}  // no instances
+
+  /** Returns true if a is an integer literal or an application of an arithmetic operator, whose value (if it has
+    * one) must be an int. */
+  static boolean isArith(AST a) {
+    if (a instanceof IntConstant) return true;
+    if (a instanceof BinOpApp) return isArith(((BinOpApp) a).rator());
+    if (a instanceof UnOpApp) {
+      UnOp op = ((UnOpApp) a).rator();
+      return op == UnOpPlus.ONLY || op == UnOpMinus.ONLY;
+    }
+    return false;
+  }
+
+  /** Returns true if op is one of the binary operators + - * /. */
+  static boolean isArith(BinOp op) {
+    return op == BinOpPlus.ONLY || op == BinOpMinus.ONLY || op == OpTimes.ONLY || op == OpDivide.ONLY;
+  }
+
+  /** Returns the value of a, evaluated using ev, as an int.  The operator op is the operator whose operand a is;
+    * it is used only to report an operand that is not an integer. */
+  static int evalInt(AST a, Object op, ASTVisitor<JamVal> ev) {
+    if (a instanceof IntConstant) return ((IntConstant) a).value();
+    if (a instanceof BinOpApp) {
+      BinOpApp b = (BinOpApp) a;
+      BinOp r = b.rator();
+      if (r == BinOpPlus.ONLY) return evalInt(b.arg1(), r, ev) + evalInt(b.arg2(), r, ev);
+      if (r == BinOpMinus.ONLY) return evalInt(b.arg1(), r, ev) - evalInt(b.arg2(), r, ev);
+      if (r == OpTimes.ONLY) return evalInt(b.arg1(), r, ev) * evalInt(b.arg2(), r, ev);
+      if (r == OpDivide.ONLY) {
+        int dividend = evalInt(b.arg1(), r, ev);
+        return divide(dividend, evalInt(b.arg2(), r, ev));
+      }
+    }
+    else if (a instanceof UnOpApp) {
+      UnOpApp u = (UnOpApp) a;
+      UnOp r = u.rator();
+      if (r == UnOpPlus.ONLY) return evalInt(u.arg(), r, ev);
+      if (r == UnOpMinus.ONLY) return - evalInt(u.arg(), r, ev);
+    }
+    return toInt(a.accept(ev), op);
+  }
+
+  /** Returns the value of a, evaluated using ev, as a boolean.  Comparisons of ints and the boolean operators
+    * & | ~ are evaluated without constructing BoolConstants.  The operator op is the operator whose operand a is,
+    * or null if a is the test of an If; it is used only to report a value that is not a boolean. */
+  static boolean evalBool(AST a, Object op, ASTVisitor<JamVal> ev) {
+    if (a instanceof BinOpApp) {
+      BinOpApp b = (BinOpApp) a;
+      BinOp r = b.rator();
+      AST arg1 = b.arg1(), arg2 = b.arg2();
+      if (r == OpLessThan.ONLY) return evalInt(arg1, r, ev) < evalInt(arg2, r, ev);
+      if (r == OpLessThanEquals.ONLY) return evalInt(arg1, r, ev) <= evalInt(arg2, r, ev);
+      if (r == OpGreaterThan.ONLY) return evalInt(arg1, r, ev) > evalInt(arg2, r, ev);
+      if (r == OpGreaterThanEquals.ONLY) return evalInt(arg1, r, ev) >= evalInt(arg2, r, ev);
+      if (r == OpEquals.ONLY) return equal(arg1, arg2, ev);
+      if (r == OpNotEquals.ONLY) return ! equal(arg1, arg2, ev);
+      if (r == OpAnd.ONLY) return evalBool(arg1, r, ev) && evalBool(arg2, r, ev);
+      if (r == OpOr.ONLY) return evalBool(arg1, r, ev) || evalBool(arg2, r, ev);
+    }
+    else if (a instanceof UnOpApp) {
+      UnOpApp u = (UnOpApp) a;
+      if (u.rator() == OpTilde.ONLY) return ! evalBool(u.arg(), OpTilde.ONLY, ev);
+    }
+    else if (a instanceof BoolConstant) return ((BoolConstant) a).value();
+    return toBool(a.accept(ev), op);
+  }
+
+  /** Returns the value of the binary operator application b, evaluated using ev.  Only the final result is boxed. */
+  static JamVal evalBinOp(BinOpApp b, ASTVisitor<JamVal> ev) {
+    if (isArith(b.rator())) return IntConstant.of(evalInt(b, b.rator(), ev));
+    return BoolConstant.toBoolConstant(evalBool(b, b.rator(), ev));
+  }
+
+  /** Returns the value of the unary operator application u, evaluated using ev.  Only the final result is boxed. */
+  static JamVal evalUnOp(UnOpApp u, ASTVisitor<JamVal> ev) {
+    UnOp r = u.rator();
+    if (r == OpTilde.ONLY) return BoolConstant.toBoolConstant(evalBool(u, r, ev));
+    if (r == UnOpPlus.ONLY) {  // unary + returns its operand, which need not be rebuilt
+      JamVal val = u.arg().accept(ev);
+      toInt(val, r);
+      return val;
+    }
+    return IntConstant.of(evalInt(u, r, ev));
+  }
+
+  /** Returns a1 = a2 evaluated using ev; integer operands are compared without being boxed. */
+  private static boolean equal(AST a1, AST a2, ASTVisitor<JamVal> ev) {
+    if (isArith(a1) && isArith(a2)) return evalInt(a1, OpEquals.ONLY, ev) == evalInt(a2, OpEquals.ONLY, ev);
+    return a1.accept(ev).equals(a2.accept(ev));
+  }
+
+  /** Returns dividend / divisor, reporting division by zero as a Jam run-time error. */
+  static int divide(int dividend, int divisor) {
+    if (divisor == 0) throw new EvalException("Attempt to divide " + dividend + " by zero");
+    return dividend / divisor;
+  }
+
+  /** Returns the int in val, which is an operand of op. */
+  static int toInt(JamVal val, Object op) {
+    if (val instanceof IntConstant) return ((IntConstant) val).value();
+    throw new EvalException(operator(op) + " applied to non-integer " + val);
+  }
+
+  /** Returns the boolean in val, which is an operand of op (or the test of an If if op is null). */
+  static boolean toBool(JamVal val, Object op) {
+    if (val == BoolConstant.TRUE) return true;
+    if (val == BoolConstant.FALSE) return false;
+    if (op == null) throw new EvalException("non Boolean " + val + " used as test in if");
+    throw new EvalException(operator(op) + " applied to non-boolean " + val);
+  }
+
+  /** Returns the description of op used in error messages. */
+  private static String operator(Object op) {
+    return (op instanceof UnOp ? "Unary" : "Binary") + " operator `" + op + "'";
+  }
+}
@@ -0,0 +1,207 @@
+/* Batch evaluation of many Jam programs.  A grading run evaluates thousands of small, independent programs, each in
+ * several forms of evaluation; BatchEvaluator runs them on a bounded pool of worker threads and collects an Outcome
+ * for every program and form of evaluation instead of stopping at the first failure.  Each evaluation constructs its
+ * own Interpreter, and the Compilers and CekMachines keep their state in the Nodes and machine states built for each
+ * run, so the only objects shared between evaluations are the immutable ASTs held by ProgramCache.ONLY, which is
+ * thread-safe.  The forms of evaluation that run on pools shared by the whole JVM (parallelValueValue on Fork.POOL,
+ * compiledValueSpeculative on the Speculators) are not offered, since an evaluation in a batch would then compete
+ * with, and could be delayed by, evaluations outside its worker.  Each evaluation runs under a deadline: an evaluation
+ * still running when its deadline passes is cancelled through its Cancellation and recorded as timed out. */
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+
+/** The outcome of evaluating a program in one form of evaluation: either the printed value of the program, or the
+  * ParseException, SyntaxException, or EvalException (or other RuntimeException, or StackOverflowError) that parsing
+  * or evaluating it threw, or a TimeoutException if the evaluation did not finish before its deadline. */
+final class Outcome {
+  final String program;
+  final String mode;
+  /** The printed value, or null if error is not null. */
+  final String value;
+  final Throwable error;
+
+  Outcome(String p, String m, String v, Throwable e) { program = p; mode = m; value = v; error = e; }
+
+  boolean succeeded() { return error == null; }
+
+  /** Returns true if the evaluation was cancelled at its deadline. */
+  boolean timedOut() { return error instanceof TimeoutException; }
+
+  public String toString() {
+    if (error == null) return value;
+    return error.getClass().getName() + ": " + error.getMessage();
+  }
+}
+
+/** Evaluates batches of programs concurrently on at most parallelism worker threads.  A form of evaluation is named
+  * by the Interpreter method that performs it, e.g. "valueValue" or "compiledNeedNeed" (see MODES).  The workers are
+  * platform threads with STACK_SIZE bytes of stack, since evaluation recurses on the Java stack as deeply as the
+  * evaluated program does. */
+class BatchEvaluator {
+
+  /** The forms of evaluation offered, each mapped to the Interpreter method that performs it. */
+  static final LinkedHashMap<String, Function<Interpreter, JamVal>> MODES =
+    new LinkedHashMap<String, Function<Interpreter, JamVal>>();
+  static {
+    MODES.put("valueValue", Interpreter::valueValue);
+    MODES.put("valueName", Interpreter::valueName);
+    MODES.put("valueNeed", Interpreter::valueNeed);
+    MODES.put("nameValue", Interpreter::nameValue);
+    MODES.put("nameName", Interpreter::nameName);
+    MODES.put("nameNeed", Interpreter::nameNeed);
+    MODES.put("needValue", Interpreter::needValue);
+    MODES.put("needName", Interpreter::needName);
+    MODES.put("needNeed", Interpreter::needNeed);
+    MODES.put("compiledValueValue", Interpreter::compiledValueValue);
+    MODES.put("compiledValueName", Interpreter::compiledValueName);
+    MODES.put("compiledValueNeed", Interpreter::compiledValueNeed);
+    MODES.put("compiledNameValue", Interpreter::compiledNameValue);
+    MODES.put("compiledNameName", Interpreter::compiledNameName);
+    MODES.put("compiledNameNeed", Interpreter::compiledNameNeed);
+    MODES.put("compiledNeedValue", Interpreter::compiledNeedValue);
+    MODES.put("compiledNeedName", Interpreter::compiledNeedName);
+    MODES.put("compiledNeedNeed", Interpreter::compiledNeedNeed);
+    MODES.put("cekValueValue", Interpreter::cekValueValue);
+    MODES.put("cekValueName", Interpreter::cekValueName);
+    MODES.put("cekValueNeed", Interpreter::cekValueNeed);
+    MODES.put("cekNameValue", Interpreter::cekNameValue);
+    MODES.put("cekNameName", Interpreter::cekNameName);
+    MODES.put("cekNameNeed", Interpreter::cekNameNeed);
+    MODES.put("cekNeedValue", Interpreter::cekNeedValue);
+    MODES.put("cekNeedName", Interpreter::cekNeedName);
+    MODES.put("cekNeedNeed", Interpreter::cekNeedNeed);
+    MODES.put("bytecodeValueValue", Interpreter::bytecodeValueValue);
+  }
+
+  /** The stack size of each worker thread. */
+  static final long STACK_SIZE = 64L << 20;
+
+  /** The default deadline of each evaluation, in milliseconds. */
+  static final long DEFAULT_TIMEOUT = 10000;
+
+  /** The maximum number of programs evaluated at once. */
+  private final int parallelism;
+
+  /** The deadline of each evaluation, in milliseconds after it starts. */
+  private final long timeout;
+
+  BatchEvaluator(int p, long t) {
+    if (p < 1) throw new IllegalArgumentException("parallelism " + p + " is not positive");
+    if (t < 1) throw new IllegalArgumentException("timeout " + t + " is not positive");
+    parallelism = p;
+    timeout = t;
+  }
+
+  BatchEvaluator(int p) { this(p, DEFAULT_TIMEOUT); }
+
+  /** Constructs a BatchEvaluator that uses one worker thread per processor. */
+  BatchEvaluator() { this(Runtime.getRuntime().availableProcessors()); }
+
+  /** Evaluates each of programs in each of modes, and returns the outcomes: the result[i][j] is the outcome of
+    * programs[i] in modes[j].  Each program is parsed once, through ProgramCache.ONLY, and evaluated in modes by a
+    * single worker; different programs are evaluated concurrently.  Throws an IllegalArgumentException if a mode is
+    * not in MODES, and rethrows any Error other than a StackOverflowError raised by an evaluation. */
+  Outcome[][] evaluate(String[] programs, String[] modes) throws InterruptedException {
+    final List<Function<Interpreter, JamVal>> methods = methods(modes);
+    final String[] names = modes.clone();
+    ThreadPoolExecutor pool =
+      new ThreadPoolExecutor(parallelism, parallelism, 0, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                             new ThreadFactory() {
+                               public Thread newThread(Runnable r) {
+                                 Thread t = new Thread(null, r, "jam-batch", STACK_SIZE);
+                                 t.setDaemon(true);
+                                 return t;
+                               }
+                             });
+    final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "jam-batch-timer");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    timer.setRemoveOnCancelPolicy(true);
+    int n = programs.length;
+    List<Future<Outcome[]>> futures = new ArrayList<Future<Outcome[]>>(n);
+    Outcome[][] result = new Outcome[n][];
+    try {
+      for (int i = 0; i < n; i++) {
+        final String program = programs[i];
+        futures.add(pool.submit(new Callable<Outcome[]>() {
+          public Outcome[] call() { return evaluate(program, names, methods, timer); }
+        }));
+      }
+      for (int i = 0; i < n; i++) result[i] = futures.get(i).get();
+    }
+    catch(ExecutionException e) {
+      if (e.getCause() instanceof Error) throw (Error) e.getCause();
+      throw new IllegalStateException("batch worker failed", e.getCause());
+    }
+    finally {
+      pool.shutdownNow();
+      timer.shutdownNow();
+    }
+    return result;
+  }
+
+  /** Evaluates program in each of the forms of evaluation performed by methods, which are named by modes, cancelling
+    * each evaluation through timer once it has run for timeout milliseconds. */
+  private Outcome[] evaluate(String program, String[] modes, List<Function<Interpreter, JamVal>> methods,
+                             ScheduledThreadPoolExecutor timer) {
+    int n = methods.size();
+    Outcome[] outcomes = new Outcome[n];
+    Interpreter interp;
+    try { interp = new Interpreter(new StringReader(program)); }
+    catch(RuntimeException | StackOverflowError e) {
+      for (int j = 0; j < n; j++) outcomes[j] = new Outcome(program, modes[j], null, e);
+      return outcomes;
+    }
+    for (int j = 0; j < n; j++) {
+      final Cancellation token = new Cancellation();
+      ScheduledFuture<?> deadline = timer.schedule(new Runnable() {
+        public void run() { token.cancel(); }
+      }, timeout, TimeUnit.MILLISECONDS);
+      Cancellation saved = token.install();
+      try {
+        String v = methods.get(j).apply(interp).toString();  // toString may force a lazy list
+        outcomes[j] = new Outcome(program, modes[j], v, null);
+      }
+      catch(CancellationException e) {
+        Throwable error = token.isCancelled() ? new TimeoutException("evaluation exceeded " + timeout + " ms") : e;
+        outcomes[j] = new Outcome(program, modes[j], null, error);
+      }
+      catch(RuntimeException | StackOverflowError e) { outcomes[j] = new Outcome(program, modes[j], null, e); }
+      finally {
+        Cancellation.restore(saved);
+        deadline.cancel(false);
+      }
+    }
+    return outcomes;
+  }
+
+  /** Returns the Interpreter methods that perform the forms of evaluation named by modes. */
+  private static List<Function<Interpreter, JamVal>> methods(String[] modes) {
+    List<Function<Interpreter, JamVal>> methods = new ArrayList<Function<Interpreter, JamVal>>(modes.length);
+    for (String mode: modes) {
+      Function<Interpreter, JamVal> method = MODES.get(mode);
+      if (method == null) throw new IllegalArgumentException("unknown form of evaluation " + mode);
+      methods.add(method);
+    }
+    return methods;
+  }
+}
@@ -0,0 +1,822 @@
+/* A JVM bytecode backend for call-by-value Jam programs with eager cons.  BytecodeCompiler translates a resolved AST
+ * into a hidden class (defined with MethodHandles.Lookup.defineHiddenClass) that has one method per Map in the
+ * program plus one for the program itself.  Variables bound by non-recursive Lets become JVM locals, the variables
+ * of recursive Lets become NodeValueBindings held in a local array, arithmetic and comparisons are compiled to JVM
+ * int instructions, and closures are CompiledClosures whose code is an instance of the generated class, so compiled
+ * code and compiled Nodes interoperate.  Applications in tail position return TailCalls, as in compiled Nodes.
+ * The JDK used here (17) has no public API for writing class files, so ClassFile below writes the small subset of
+ * the format that the backend needs.  Class files use version 49, which needs no StackMapTable attributes. */
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+
+/** The superclass of generated classes.  An instance executes one method of its class, selected by id; consts holds
+  * the objects (ASTs, Variable arrays, and CodeNodes for Maps) that the generated code refers to. */
+abstract class CodeNode extends Node {
+  int id;
+  Object[] consts;
+  CodeNode(int i, Object[] c) { id = i; consts = c; }
+}
+
+/** Static methods called by generated code. */
+class BytecodeRuntime {
+
+  private BytecodeRuntime() {}  // no instances
+
+  /** Returns fun, the head of the application app to n arguments, after checking that it accepts n arguments.
+    * Called before the arguments are evaluated, matching the order of checks in the interpreters. */
+  static JamVal checkFun(JamVal fun, int n, App app) {
+    if (fun instanceof JamClosure) {
+      if (((JamClosure) fun).body().vars().length != n)
+        throw new EvalException("closure " + fun + " applied to " + n + " arguments");
+      return fun;
+    }
+    if (fun instanceof PrimFun) {
+      if (n != (fun == ConsPrim.ONLY ? 2 : 1)) throw Compiler.primArityError((PrimFun) fun, n);
+      return fun;
+    }
+    throw new EvalException(fun + " appears at head of application " + app + " but it is not a valid function");
+  }
+
+  /** Applies fun, which has passed checkFun, to the values args. */
+  static JamVal apply(JamVal fun, JamVal[] args) {
+    if (fun instanceof CompiledClosure) {
+      CompiledClosure c = (CompiledClosure) fun;
+      return TailCall.run(c.code(), new ValueFrame(c.body().vars(), args, c.frame()));
+    }
+    return applyPrim(fun, args);
+  }
+
+  /** Applies fun, which has passed checkFun, to the values args in tail position: the application of a closure is
+    * returned as a TailCall for the caller of the enclosing closure to run. */
+  static JamVal tailApply(JamVal fun, JamVal[] args) {
+    if (fun instanceof CompiledClosure) {
+      CompiledClosure c = (CompiledClosure) fun;
+      return new TailCall(c.code(), new ValueFrame(c.body().vars(), args, c.frame()));
+    }
+    return applyPrim(fun, args);
+  }
+
+  private static JamVal applyPrim(JamVal fun, JamVal[] args) {
+    if (fun == ConsPrim.ONLY) return cons(args[0], args[1]);
+    return prim((PrimFun) fun, args[0]);
+  }
+
+  /** Eager cons. */
+  static JamVal cons(JamVal first, JamVal rest) {
+    if (rest instanceof JamList) return new JamCons(first, (JamList) rest);
+    throw new EvalException("Second argument " + rest + " to `cons' is not a JamList");
+  }
+
+  /** Applies the unary primitive function prim to val. */
+  static JamVal prim(PrimFun prim, JamVal val) {
+    return Compiler.applyPrim(prim, new Node[] { new ConstNode(val) }, null, Compiler.EAGER);
+  }
+}
+
+/** A writer for the subset of the class file format used by BytecodeCompiler: a constant pool of Utf8, Integer,
+  * Class, NameAndType, Fieldref and Methodref entries, and methods whose Code attributes have no exception tables
+  * or attributes of their own. */
+class ClassFile {
+  private ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+  private DataOutputStream pool = new DataOutputStream(poolBytes);
+  private HashMap<String, Integer> entries = new HashMap<String, Integer>();
+  private int poolCount = 1;
+  private ArrayList<byte[]> methods = new ArrayList<byte[]>();
+  private String name, superName;
+
+  ClassFile(String n, String s) { name = n; superName = s; }
+
+  String name() { return name; }
+
+  /** Returns the index of the constant pool entry with the given key, or -1 if there is none. */
+  private int find(String key) {
+    Integer i = entries.get(key);
+    return i == null ? -1 : i;
+  }
+
+  private int add(String key) {
+    entries.put(key, poolCount);
+    return poolCount++;
+  }
+
+  int utf8(String s) {
+    int i = find("U" + s);
+    if (i > 0) return i;
+    try { pool.writeByte(1); pool.writeUTF(s); }
+    catch (IOException e) { throw new IllegalStateException(e); }
+    return add("U" + s);
+  }
+
+  int integer(int v) {
+    int i = find("I" + v);
+    if (i > 0) return i;
+    try { pool.writeByte(3); pool.writeInt(v); }
+    catch (IOException e) { throw new IllegalStateException(e); }
+    return add("I" + v);
+  }
+
+  int classRef(String cls) {
+    int i = find("C" + cls);
+    if (i > 0) return i;
+    int n = utf8(cls);
+    write(7, n);
+    return add("C" + cls);
+  }
+
+  private int nameAndType(String n, String desc) {
+    int i = find("N" + n + ":" + desc);
+    if (i > 0) return i;
+    int ni = utf8(n), di = utf8(desc);
+    write(12, ni, di);
+    return add("N" + n + ":" + desc);
+  }
+
+  int fieldRef(String owner, String n, String desc) { return memberRef(9, owner, n, desc); }
+  int methodRef(String owner, String n, String desc) { return memberRef(10, owner, n, desc); }
+
+  private int memberRef(int tag, String owner, String n, String desc) {
+    String key = tag + owner + "." + n + ":" + desc;
+    int i = find(key);
+    if (i > 0) return i;
+    int ci = classRef(owner), nt = nameAndType(n, desc);
+    write(tag, ci, nt);
+    return add(key);
+  }
+
+  private void write(int tag, int... u2s) {
+    try {
+      pool.writeByte(tag);
+      for (int u: u2s) pool.writeShort(u);
+    }
+    catch (IOException e) { throw new IllegalStateException(e); }
+  }
+
+  /** Adds a method with the given access flags whose body is the finished code c. */
+  void addMethod(int access, String n, String desc, Code c) {
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeShort(access);
+      out.writeShort(utf8(n));
+      out.writeShort(utf8(desc));
+      out.writeShort(1);
+      out.writeShort(utf8("Code"));
+      byte[] code = c.bytes();
+      out.writeInt(12 + code.length);
+      out.writeShort(c.maxStack);
+      out.writeShort(c.maxLocals);
+      out.writeInt(code.length);
+      out.write(code);
+      out.writeShort(0);  // exception table
+      out.writeShort(0);  // attributes
+      methods.add(bytes.toByteArray());
+    }
+    catch (IOException e) { throw new IllegalStateException(e); }
+  }
+
+  /** Returns the bytes of the class file. */
+  byte[] toByteArray() {
+    try {
+      int thisIndex = classRef(name), superIndex = classRef(superName);
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeInt(0xCAFEBABE);
+      out.writeShort(0);
+      out.writeShort(49);
+      out.writeShort(poolCount);
+      pool.flush();
+      poolBytes.writeTo(out);
+      out.writeShort(0x0030);  // ACC_FINAL | ACC_SUPER
+      out.writeShort(thisIndex);
+      out.writeShort(superIndex);
+      out.writeShort(0);  // interfaces
+      out.writeShort(0);  // fields
+      out.writeShort(methods.size());
+      for (byte[] m: methods) out.write(m);
+      out.writeShort(0);  // attributes
+      return bytes.toByteArray();
+    }
+    catch (IOException e) { throw new IllegalStateException(e); }
+  }
+
+  /** The body of a method under construction.  Tracks the depth of the operand stack as instructions are emitted
+    * so that max_stack can be computed. */
+  static class Code {
+    private ByteArrayOutputStream out = new ByteArrayOutputStream();
+    private ClassFile cf;
+    private ArrayList<int[]> fixups = new ArrayList<int[]>();  // {instruction pc, patch position, width, label}
+    private ArrayList<Label> labels = new ArrayList<Label>();
+    int stack, maxStack, maxLocals;
+
+    Code(ClassFile c, int locals) { cf = c; maxLocals = locals; }
+
+    int pc() { return out.size(); }
+
+    /** Returns the index of a fresh local variable. */
+    int newLocal() { return maxLocals++; }
+
+    void adjust(int delta) {
+      stack += delta;
+      if (stack > maxStack) maxStack = stack;
+    }
+
+    void op(int opcode, int delta) { out.write(opcode); adjust(delta); }
+    void u1(int b) { out.write(b); }
+    void u2(int s) { out.write(s >> 8); out.write(s); }
+    void u4(int i) { u2(i >>> 16); u2(i & 0xFFFF); }
+
+    void iconst(int v) {
+      if (v >= -1 && v <= 5) op(3 + v, 1);                          // iconst_<v>
+      else if (v >= -128 && v <= 127) { op(0x10, 1); u1(v); }       // bipush
+      else if (v >= -32768 && v <= 32767) { op(0x11, 1); u2(v); }   // sipush
+      else { int i = cf.integer(v); if (i < 256) { op(0x12, 1); u1(i); } else { op(0x13, 1); u2(i); } }  // ldc
+    }
+
+    void aload(int local) { localOp(0x19, local, 1); }
+    void astore(int local) { localOp(0x3A, local, -1); }
+
+    private void localOp(int opcode, int local, int delta) {
+      if (local > 255) { op(0xC4, 0); op(opcode, delta); u2(local); }  // wide
+      else { op(opcode, delta); u1(local); }
+    }
+
+    void getstatic(String owner, String n, String desc) { op(0xB2, 1); u2(cf.fieldRef(owner, n, desc)); }
+    void getfield(String owner, String n, String desc) { op(0xB4, 0); u2(cf.fieldRef(owner, n, desc)); }
+    void putfield(String owner, String n, String desc) { op(0xB5, -2); u2(cf.fieldRef(owner, n, desc)); }
+
+    void invokestatic(String owner, String n, String desc) { invoke(0xB8, owner, n, desc, 0); }
+    void invokevirtual(String owner, String n, String desc) { invoke(0xB6, owner, n, desc, 1); }
+    void invokespecial(String owner, String n, String desc) { invoke(0xB7, owner, n, desc, 1); }
+
+    private void invoke(int opcode, String owner, String n, String desc, int receiver) {
+      op(opcode, results(desc) - args(desc) - receiver);
+      u2(cf.methodRef(owner, n, desc));
+    }
+
+    void typeOp(int opcode, String cls, int delta) { op(opcode, delta); u2(cf.classRef(cls)); }
+    void newObject(String cls) { typeOp(0xBB, cls, 1); }
+    void checkcast(String cls) { typeOp(0xC0, cls, 0); }
+    void anewarray(String cls) { typeOp(0xBD, cls, 0); }
+
+    /** Emits a branch to target; opcode is goto or an if instruction that pops delta operands. */
+    void jump(int opcode, int delta, Label target) {
+      int at = pc();
+      op(opcode, -delta);
+      target.reach(stack);
+      fixups.add(new int[] { at, pc(), 2, labels.size() });
+      labels.add(target);
+      u2(0);
+    }
+
+    void gotoLabel(Label target) { jump(0xA7, 0, target); }
+
+    /** Records a 4-byte offset from the instruction at pc at to target, as in a tableswitch. */
+    void offset4(int at, Label target) {
+      target.reach(stack);
+      fixups.add(new int[] { at, pc(), 4, labels.size() });
+      labels.add(target);
+      u4(0);
+    }
+
+    /** Places target at the current position.  Code following an unconditional transfer of control starts with the
+      * stack depth recorded by the branches to target. */
+    void place(Label target) {
+      target.pc = pc();
+      if (target.depth >= 0) stack = target.depth;
+    }
+
+    /** Returns the finished bytecode with all branch offsets filled in. */
+    byte[] bytes() {
+      byte[] code = out.toByteArray();
+      if (code.length > 65535) throw new CodeTooLargeException();
+      for (int[] f: fixups) {
+        int offset = labels.get(f[3]).pc - f[0];
+        if (f[2] == 2) {
+          if (offset < -32768 || offset > 32767) throw new CodeTooLargeException();
+          code[f[1]] = (byte) (offset >> 8);
+          code[f[1] + 1] = (byte) offset;
+        }
+        else for (int i = 0; i < 4; i++) code[f[1] + i] = (byte) (offset >> (24 - 8 * i));
+      }
+      return code;
+    }
+
+    /** Returns the number of stack slots taken by the arguments in the method descriptor desc. */
+    static int args(String desc) {
+      int n = 0;
+      for (int i = 1; desc.charAt(i) != ')'; i++) {
+        char c = desc.charAt(i);
+        while (c == '[') c = desc.charAt(++i);
+        if (c == 'L') i = desc.indexOf(';', i);
+        n += (c == 'J' || c == 'D') ? 2 : 1;
+      }
+      return n;
+    }
+
+    /** Returns the number of stack slots taken by the result of the method descriptor desc. */
+    static int results(String desc) {
+      char c = desc.charAt(desc.indexOf(')') + 1);
+      return c == 'V' ? 0 : (c == 'J' || c == 'D') ? 2 : 1;
+    }
+  }
+
+  /** A position in the code of a method that is the target of branches. */
+  static class Label {
+    int pc = -1;
+    /** The stack depth at the branches to this label, or -1 if there are none yet. */
+    int depth = -1;
+    void reach(int d) { depth = d; }
+  }
+
+  /** Thrown when a method exceeds the limits of the class file format, in which case the program is not compiled
+    * to bytecode. */
+  static class CodeTooLargeException extends RuntimeException {}
+}
+
+/** Compiles a resolved AST into a hidden class and returns the CodeNode that executes the program.  Only
+  * call-by-value evaluation with eager cons is supported. */
+class BytecodeCompiler {
+
+  /* Descriptors of the runtime classes used by generated code. */
+  static final String JAMVAL = "LJamVal;", FRAME = "LFrame;", NODE = "LNode;", OBJECTS = "[Ljava/lang/Object;";
+  static final String RT = "BytecodeRuntime";
+  static final String EXECUTE = "(" + FRAME + ")" + JAMVAL;
+
+  /* Local variables of every generated method. */
+  static final int THIS = 0, FRAME_LOCAL = 1, CONSTS = 2, PARAMS = 3, CAPTURED = 4;
+
+  /* Kinds of compile-time bindings. */
+  static final int LOCAL = 0, VALUES = 1, BINDINGS = 2;
+
+  /** Number of hidden classes defined so far, used only to name them. */
+  private static int classCount = 0;
+
+  private ClassFile cf;
+  private ArrayList<Object> consts = new ArrayList<Object>();
+  /** The Maps compiled so far; method i + 1 is the body of maps.get(i).  Method 0 is the program. */
+  private ArrayList<Map> maps = new ArrayList<Map>();
+  /** The index in consts of the CodeNode for each Map, which is filled in once the class has been defined. */
+  private ArrayList<Integer> nodeConsts = new ArrayList<Integer>();
+
+  /** A compile-time binding of a variable to a JVM local (LOCAL) or to slot index of an array of values (VALUES) or
+    * Bindings (BINDINGS) held in a JVM local. */
+  static class Entry {
+    Variable var;
+    int kind, local, index;
+    Entry next;
+    Entry(Variable v, int k, int l, int i, Entry n) { var = v; kind = k; local = l; index = i; next = n; }
+  }
+
+  /** Returns the entry for var in env. */
+  static Entry lookup(Entry env, Variable var) {
+    for (Entry e = env; e != null; e = e.next) if (e.var == var) return e;
+    throw new EvalException("variable " + var + " is unbound");
+  }
+
+  /** Compiles prog, returning the node that executes it, or null if prog is too large for the class file format. */
+  static Node compile(AST prog) {
+    try { return new BytecodeCompiler().define(prog); }
+    catch (ClassFile.CodeTooLargeException e) { return null; }
+  }
+
+  private Node define(AST prog) {
+    String name;
+    synchronized (BytecodeCompiler.class) { name = "JamCode" + classCount++; }
+    cf = new ClassFile(name, "CodeNode");
+    ArrayList<ClassFile.Code> bodies = new ArrayList<ClassFile.Code>();
+    bodies.add(method(prog, null));
+    for (int i = 0; i < maps.size(); i++) bodies.add(method(maps.get(i).body(), maps.get(i)));
+    // method() may add Maps as it goes; the loop above picks them up because maps grows.
+
+    ClassFile.Code init = new ClassFile.Code(cf, 3);
+    init.aload(THIS);
+    init.op(0x1B, 1);  // iload_1
+    init.aload(2);
+    init.invokespecial("CodeNode", "<init>", "(I" + OBJECTS + ")V");
+    init.op(0xB1, 0);  // return
+    cf.addMethod(0, "<init>", "(I" + OBJECTS + ")V", init);
+
+    for (int i = 0; i < bodies.size(); i++) cf.addMethod(0x0010, "m" + i, EXECUTE, bodies.get(i));  // ACC_FINAL
+    cf.addMethod(0x0001, "execute", EXECUTE, dispatch(bodies.size()));
+
+    Object[] constArray = consts.toArray();
+    try {
+      MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(cf.toByteArray(), true);
+      MethodHandle ctor = lookup.findConstructor(lookup.lookupClass(),
+                                                 MethodType.methodType(void.class, int.class, Object[].class));
+      for (int i = 0; i < maps.size(); i++) constArray[nodeConsts.get(i)] = (Node) ctor.invoke(i + 1, constArray);
+      return (Node) ctor.invoke(0, constArray);
+    }
+    catch (RuntimeException e) { throw e; }
+    catch (Error e) { throw e; }
+    catch (Throwable t) { throw new IllegalStateException(t); }
+  }
+
+  /** Generates execute(f), which calls method m<id>. */
+  private ClassFile.Code dispatch(int n) {
+    ClassFile.Code c = new ClassFile.Code(cf, 2);
+    c.aload(THIS);
+    c.getfield("CodeNode", "id", "I");
+    int at = c.pc();
+    c.op(0xAA, -1);  // tableswitch
+    while (c.pc() % 4 != 0) c.u1(0);
+    ClassFile.Label[] cases = new ClassFile.Label[n];
+    for (int i = 0; i < n; i++) cases[i] = new ClassFile.Label();
+    c.offset4(at, cases[0]);
+    c.u4(0);
+    c.u4(n - 1);
+    for (int i = 0; i < n; i++) c.offset4(at, cases[i]);
+    for (int i = 0; i < n; i++) {
+      c.place(cases[i]);
+      c.aload(THIS);
+      c.aload(FRAME_LOCAL);
+      c.invokevirtual(cf.name(), "m" + i, EXECUTE);
+      c.op(0xB0, -1);  // areturn
+    }
+    return c;
+  }
+
+  /** Generates the method that evaluates body, which is the body of the Map m (or the program if m is null). */
+  private ClassFile.Code method(AST body, Map m) {
+    ClassFile.Code c = new ClassFile.Code(cf, 5);
+    c.aload(THIS);
+    c.getfield("CodeNode", "consts", OBJECTS);
+    c.astore(CONSTS);
+    Entry env = null;
+    if (m != null) {
+      Variable[] vars = m.vars();
+      if (vars.length > 0) {
+        c.aload(FRAME_LOCAL);
+        c.checkcast("ValueFrame");
+        c.getfield("ValueFrame", "values", "[" + JAMVAL);
+        c.astore(PARAMS);
+      }
+      Variable[] captured = m.capturedVars();
+      if (captured.length > 0) {
+        boolean values = capturesValues.get(m);
+        c.aload(FRAME_LOCAL);
+        c.getfield("Frame", "parent", FRAME);
+        if (values) {
+          c.checkcast("ValueFrame");
+          c.getfield("ValueFrame", "values", "[" + JAMVAL);
+        }
+        else {
+          c.checkcast("BindingFrame");
+          c.getfield("BindingFrame", "bindings", "[LBinding;");
+        }
+        c.astore(CAPTURED);
+        for (int i = 0; i < captured.length; i++) env = new Entry(captured[i], values ? VALUES : BINDINGS, CAPTURED, i, env);
+      }
+      for (int i = 0; i < vars.length; i++) env = new Entry(vars[i], VALUES, PARAMS, i, env);
+    }
+    gen(c, body, env, m != null);
+    c.op(0xB0, -1);  // areturn
+    return c;
+  }
+
+  /** For each Map compiled so far, whether its captured frame is a ValueFrame. */
+  private IdentityHashMap<Map, Boolean> capturesValues = new IdentityHashMap<Map, Boolean>();
+
+  /** Returns the index of o in the constant array, adding it if necessary. */
+  private int constIndex(Object o) {
+    for (int i = 0; i < consts.size(); i++) if (consts.get(i) == o) return i;
+    consts.add(o);
+    return consts.size() - 1;
+  }
+
+  /** Emits code that pushes constant number index, cast to cls. */
+  private void loadConst(ClassFile.Code c, int index, String cls) {
+    c.aload(CONSTS);
+    c.iconst(index);
+    c.op(0x32, -1);  // aaload
+    c.checkcast(cls);
+  }
+
+  /** Emits code that pushes the singleton op (a UnOp, BinOp, or PrimFun). */
+  private static void loadSingleton(ClassFile.Code c, Object op) {
+    String cls = op.getClass().getName();
+    c.getstatic(cls, "ONLY", "L" + cls + ";");
+  }
+
+  /** Emits code that pushes the value of the variable described by e. */
+  private static void loadVar(ClassFile.Code c, Entry e) {
+    c.aload(e.local);
+    if (e.kind == LOCAL) return;
+    c.iconst(e.index);
+    c.op(0x32, -1);  // aaload
+    if (e.kind == BINDINGS) c.invokevirtual("Binding", "value", "()" + JAMVAL);
+  }
+
+  /** Emits code that pushes the value of a as a JamVal. */
+  private void gen(ClassFile.Code c, AST a, Entry env) { gen(c, a, env, false); }
+
+  /** Emits code that pushes the value of a as a JamVal, or a TailCall if a is an application in tail position (tail
+    * is true if a is in tail position in the body of a Map). */
+  private void gen(ClassFile.Code c, AST a, Entry env, boolean tail) {
+    if (a instanceof IntConstant) {
+      c.iconst(((IntConstant) a).value());
+      c.invokestatic("IntConstant", "of", "(I)LIntConstant;");
+    }
+    else if (a instanceof BoolConstant) {
+      c.getstatic("BoolConstant", a == BoolConstant.TRUE ? "TRUE" : "FALSE", "LBoolConstant;");
+    }
+    else if (a instanceof EmptyConstant) c.getstatic("JamEmpty", "ONLY", "LJamEmpty;");
+    else if (a instanceof PrimFun) loadSingleton(c, a);
+    else if (a instanceof Variable) loadVar(c, lookup(env, ((Variable) a).var()));
+    else if (a instanceof UnOpApp) {
+      UnOpApp u = (UnOpApp) a;
+      if (u.rator() == UnOpPlus.ONLY) {
+        gen(c, u.arg(), env);
+        c.op(0x59, 1);  // dup
+        loadSingleton(c, UnOpPlus.ONLY);
+        c.invokestatic("ArithEvaluator", "toInt", "(" + JAMVAL + "Ljava/lang/Object;)I");
+        c.op(0x57, -1);  // pop
+      }
+      else if (u.rator() == UnOpMinus.ONLY) boxInt(c, a, env);
+      else genBool(c, a, env);
+    }
+    else if (a instanceof BinOpApp) {
+      if (ArithEvaluator.isArith(((BinOpApp) a).rator())) boxInt(c, a, env);
+      else genBool(c, a, env);
+    }
+    else if (a instanceof If) {
+      If i = (If) a;
+      ClassFile.Label alt = new ClassFile.Label(), end = new ClassFile.Label();
+      genJump(c, i.test(), alt, false, null, env);
+      gen(c, i.conseq(), env, tail);
+      c.gotoLabel(end);
+      c.place(alt);
+      gen(c, i.alt(), env, tail);
+      c.place(end);
+    }
+    else if (a instanceof App) genApp(c, (App) a, env, tail);
+    else if (a instanceof Map) genMap(c, (Map) a, env);
+    else genLet(c, (Let) a, env, tail);
+  }
+
+  private void boxInt(ClassFile.Code c, AST a, Entry env) {
+    genInt(c, a, null, env);
+    c.invokestatic("IntConstant", "of", "(I)LIntConstant;");
+  }
+
+  /** Emits code that pushes a BoolConstant for the boolean-valued operator application a. */
+  private void genBool(ClassFile.Code c, AST a, Entry env) {
+    ClassFile.Label no = new ClassFile.Label(), end = new ClassFile.Label();
+    genJump(c, a, no, false, null, env);
+    c.getstatic("BoolConstant", "TRUE", "LBoolConstant;");
+    c.gotoLabel(end);
+    c.place(no);
+    c.getstatic("BoolConstant", "FALSE", "LBoolConstant;");
+    c.place(end);
+  }
+
+  /** Emits code that pushes the value of a as an int; op is the operator whose operand a is. */
+  private void genInt(ClassFile.Code c, AST a, Object op, Entry env) {
+    if (a instanceof IntConstant) { c.iconst(((IntConstant) a).value()); return; }
+    if (a instanceof BinOpApp) {
+      BinOpApp b = (BinOpApp) a;
+      BinOp r = b.rator();
+      if (ArithEvaluator.isArith(r)) {
+        genInt(c, b.arg1(), r, env);
+        genInt(c, b.arg2(), r, env);
+        if (r == BinOpPlus.ONLY) c.op(0x60, -1);        // iadd
+        else if (r == BinOpMinus.ONLY) c.op(0x64, -1);  // isub
+        else if (r == OpTimes.ONLY) c.op(0x68, -1);     // imul
+        else c.invokestatic("ArithEvaluator", "divide", "(II)I");
+        return;
+      }
+    }
+    else if (a instanceof UnOpApp) {
+      UnOpApp u = (UnOpApp) a;
+      if (u.rator() == UnOpPlus.ONLY) { genInt(c, u.arg(), UnOpPlus.ONLY, env); return; }
+      if (u.rator() == UnOpMinus.ONLY) {
+        genInt(c, u.arg(), UnOpMinus.ONLY, env);
+        c.op(0x74, 0);  // ineg
+        return;
+      }
+    }
+    gen(c, a, env);
+    if (op == null) c.op(0x01, 1);  // aconst_null
+    else loadSingleton(c, op);
+    c.invokestatic("ArithEvaluator", "toInt", "(" + JAMVAL + "Ljava/lang/Object;)I");
+  }
+
+  /** Emits code that jumps to target if the boolean value of a is when and falls through otherwise; op is the
+    * operator whose operand a is, or null if a is the test of an If. */
+  private void genJump(ClassFile.Code c, AST a, ClassFile.Label target, boolean when, Object op, Entry env) {
+    if (a instanceof BoolConstant) {
+      if (((BoolConstant) a).value() == when) c.gotoLabel(target);
+      return;
+    }
+    if (a instanceof UnOpApp && ((UnOpApp) a).rator() == OpTilde.ONLY) {
+      genJump(c, ((UnOpApp) a).arg(), target, ! when, OpTilde.ONLY, env);
+      return;
+    }
+    if (a instanceof BinOpApp) {
+      BinOpApp b = (BinOpApp) a;
+      BinOp r = b.rator();
+      if (r == OpAnd.ONLY || r == OpOr.ONLY) {
+        boolean shortCircuit = r == OpOr.ONLY;  // the value of the first operand that decides the result
+        if (when == shortCircuit) {
+          genJump(c, b.arg1(), target, when, r, env);
+          genJump(c, b.arg2(), target, when, r, env);
+        }
+        else {
+          ClassFile.Label skip = new ClassFile.Label();
+          genJump(c, b.arg1(), skip, shortCircuit, r, env);
+          genJump(c, b.arg2(), target, when, r, env);
+          c.place(skip);
+        }
+        return;
+      }
+      int cmp = -1;  // if_icmp<cond> opcode that jumps when the comparison is true
+      if (r == OpLessThan.ONLY) cmp = 0xA1;
+      else if (r == OpGreaterThanEquals.ONLY) cmp = 0xA2;
+      else if (r == OpGreaterThan.ONLY) cmp = 0xA3;
+      else if (r == OpLessThanEquals.ONLY) cmp = 0xA4;
+      else if (ArithEvaluator.isArith(b.arg1()) && ArithEvaluator.isArith(b.arg2())) {
+        if (r == OpEquals.ONLY) cmp = 0x9F;
+        else if (r == OpNotEquals.ONLY) cmp = 0xA0;
+      }
+      if (cmp >= 0) {
+        genInt(c, b.arg1(), r, env);
+        genInt(c, b.arg2(), r, env);
+        c.jump(when ? cmp : negate(cmp), 2, target);
+        return;
+      }
+      if (r == OpEquals.ONLY || r == OpNotEquals.ONLY) {
+        gen(c, b.arg1(), env);
+        gen(c, b.arg2(), env);
+        c.invokevirtual("java/lang/Object", "equals", "(Ljava/lang/Object;)Z");
+        c.jump((when == (r == OpEquals.ONLY)) ? 0x9A : 0x99, 1, target);  // ifne : ifeq
+        return;
+      }
+    }
+    gen(c, a, env);
+    if (op == null) c.op(0x01, 1);  // aconst_null
+    else loadSingleton(c, op);
+    c.invokestatic("ArithEvaluator", "toBool", "(" + JAMVAL + "Ljava/lang/Object;)Z");
+    c.jump(when ? 0x9A : 0x99, 1, target);  // ifne : ifeq
+  }
+
+  /** Returns the if_icmp opcode for the negation of the comparison performed by the if_icmp opcode cmp. */
+  private static int negate(int cmp) {
+    switch (cmp) {
+      case 0x9F: return 0xA0;  // eq <-> ne
+      case 0xA0: return 0x9F;
+      case 0xA1: return 0xA2;  // lt <-> ge
+      case 0xA2: return 0xA1;
+      case 0xA3: return 0xA4;  // gt <-> le
+      default: return 0xA3;
+    }
+  }
+
+  private void genApp(ClassFile.Code c, App a, Entry env, boolean tail) {
+    AST rator = a.rator();
+    AST[] args = a.args();
+    int n = args.length;
+    if (rator instanceof PrimFun) {
+      int arity = rator == ConsPrim.ONLY ? 2 : 1;
+      if (n != arity) {
+        loadSingleton(c, rator);
+        c.iconst(n);
+        c.invokestatic("Compiler", "primArityError", "(LPrimFun;I)LEvalException;");
+        c.op(0xBF, -1);  // athrow
+        c.adjust(1);     // (unreachable) value of the application
+        return;
+      }
+      if (rator == ConsPrim.ONLY) {
+        gen(c, args[0], env);
+        gen(c, args[1], env);
+        c.invokestatic(RT, "cons", "(" + JAMVAL + JAMVAL + ")" + JAMVAL);
+        return;
+      }
+      loadSingleton(c, rator);
+      gen(c, args[0], env);
+      c.invokestatic(RT, "prim", "(LPrimFun;" + JAMVAL + ")" + JAMVAL);
+      return;
+    }
+    gen(c, rator, env);
+    c.iconst(n);
+    loadConst(c, constIndex(a), "App");
+    c.invokestatic(RT, "checkFun", "(" + JAMVAL + "I" + "LApp;)" + JAMVAL);
+    c.iconst(n);
+    c.anewarray("JamVal");
+    for (int i = 0; i < n; i++) {
+      c.op(0x59, 1);  // dup
+      c.iconst(i);
+      gen(c, args[i], env);
+      c.op(0x53, -3);  // aastore
+    }
+    c.invokestatic(RT, tail ? "tailApply" : "apply", "(" + JAMVAL + "[" + JAMVAL + ")" + JAMVAL);
+  }
+
+  /** Emits code that builds a CompiledClosure for m, whose body becomes a method of the generated class. */
+  private void genMap(ClassFile.Code c, Map m, Entry env) {
+    Variable[] captured = m.capturedVars();
+    int n = captured.length;
+    Entry[] sources = new Entry[n];
+    boolean values = true;
+    for (int i = 0; i < n; i++) {
+      sources[i] = lookup(env, captured[i]);
+      if (sources[i].kind == BINDINGS) values = false;
+    }
+    capturesValues.put(m, values);
+    maps.add(m);
+    int node = constIndex(new Object[0]);  // placeholder for the CodeNode, distinct from every other constant
+    nodeConsts.add(node);
+
+    c.newObject("CompiledClosure");
+    c.op(0x59, 1);  // dup
+    loadConst(c, constIndex(m), "Map");
+    if (n == 0) c.op(0x01, 1);  // aconst_null
+    else {
+      String frameClass = values ? "ValueFrame" : "BindingFrame";
+      String elt = values ? "JamVal" : "Binding";
+      c.newObject(frameClass);
+      c.op(0x59, 1);  // dup
+      loadConst(c, constIndex(captured), "[LVariable;");
+      c.iconst(n);
+      c.anewarray(elt);
+      for (int i = 0; i < n; i++) {
+        c.op(0x59, 1);  // dup
+        c.iconst(i);
+        Entry e = sources[i];
+        if (values) loadVar(c, e);
+        else if (e.kind == BINDINGS) {
+          c.aload(e.local);
+          c.iconst(e.index);
+          c.op(0x32, -1);  // aaload
+        }
+        else {
+          c.newObject("CapturedValue");
+          c.op(0x59, 1);  // dup
+          loadConst(c, constIndex(captured), "[LVariable;");
+          c.iconst(i);
+          c.op(0x32, -1);  // aaload
+          loadVar(c, e);
+          c.invokespecial("CapturedValue", "<init>", "(LVariable;" + JAMVAL + ")V");
+        }
+        c.op(0x53, -3);  // aastore
+      }
+      c.op(0x01, 1);  // aconst_null
+      c.invokespecial(frameClass, "<init>", "([LVariable;[L" + elt + ";" + FRAME + ")V");
+    }
+    loadConst(c, node, "Node");
+    c.invokespecial("CompiledClosure", "<init>", "(LMap;" + FRAME + NODE + ")V");
+  }
+
+  /** Emits code for a Let.  The variables of a non-recursive Let are JVM locals; those of a recursive Let are
+    * NodeValueBindings, which closures can capture before they are filled. */
+  private void genLet(ClassFile.Code c, Let l, Entry env, boolean tail) {
+    Variable[] vars = l.vars();
+    AST[] exps = l.exps();
+    int n = vars.length;
+    boolean recursive = false;
+    Compiler.OccursVisitor occurs = new Compiler.OccursVisitor(vars);
+    for (int i = 0; i < n && ! recursive; i++) recursive = exps[i].accept(occurs);
+    Entry inner = env;
+    if (! recursive) {
+      for (int i = 0; i < n; i++) {
+        gen(c, exps[i], env);
+        int local = c.newLocal();
+        c.astore(local);
+        inner = new Entry(vars[i], LOCAL, local, 0, inner);
+      }
+    }
+    else {
+      int cells = c.newLocal();
+      c.iconst(n);
+      c.anewarray("Binding");
+      for (int i = 0; i < n; i++) {
+        c.op(0x59, 1);  // dup
+        c.iconst(i);
+        c.newObject("NodeValueBinding");
+        c.op(0x59, 1);  // dup
+        loadConst(c, constIndex(vars), "[LVariable;");
+        c.iconst(i);
+        c.op(0x32, -1);  // aaload
+        c.invokespecial("NodeValueBinding", "<init>", "(LVariable;)V");
+        c.op(0x53, -3);  // aastore
+      }
+      c.astore(cells);
+      for (int i = 0; i < n; i++) inner = new Entry(vars[i], BINDINGS, cells, i, inner);
+      for (int i = 0; i < n; i++) {
+        c.aload(cells);
+        c.iconst(i);
+        c.op(0x32, -1);  // aaload
+        gen(c, exps[i], inner);
+        c.putfield("Binding", "value", JAMVAL);
+      }
+    }
+    gen(c, l.body(), inner, tail);
+  }
+}
@@ -0,0 +1,178 @@
+/* Caching of parsed programs.  Each Interpreter constructor used to lex, parse, check, optimize, and resolve its
+ * input, so constructing an Interpreter for each form of evaluation of the same program (as Assign3Test does), or
+ * for each of many identical submissions, repeated all of that work.  ProgramCache.ONLY maps the text of a program
+ * to its ParsedProgram, which every Interpreter for that text then shares. */
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+
+/** A checked program in the two resolved forms that an Interpreter evaluates: source, the program as written, as
+  * produced by Parser.parseAndResolve(), and optimized(), the program as produced by Parser.parseAndOptimize().  The
+  * nine forms of evaluation valueValue() ... needNeed() interpret source, so the errors they report quote the program
+  * that the user wrote; the other engines evaluate optimized().  The optimized form is computed only when it is first
+  * requested, so programs that are only interpreted never pay for the optimizer.  Both ASTs are immutable. */
+final class ParsedProgram {
+  final AST source;
+  /** The checked program, until the optimized form has been computed. */
+  private AST checked;
+  private volatile AST optimized;
+
+  /** Resolves the checked program prog as written. */
+  ParsedProgram(AST prog) {
+    source = prog.accept(ResolveVisitor.INITIAL);
+    checked = prog;
+  }
+
+  /** Returns the optimized and resolved form of the program, computing it on the first call. */
+  AST optimized() {
+    AST result = optimized;
+    if (result != null) return result;
+    synchronized(this) {
+      if (optimized == null) {
+        optimized = Parser.optimize(checked).accept(ResolveVisitor.INITIAL);
+        checked = null;
+      }
+      return optimized;
+    }
+  }
+}
+
+/** A thread-safe, size-bounded cache of parsed programs, keyed by a SHA-256 hash of their text.  When the cache is
+  * full, the least recently used program is evicted.  A program whose parsing failed with a ParseException or a
+  * SyntaxException is cached as well, and get throws a new exception of the same class with the same message.  The cached ASTs are immutable and are
+  * shared by every caller.  Each one was parsed by its own Lexer, so the Variables within one cached AST are unique
+  * by name and can be compared with ==, as in an AST produced by a Parser; Variables from different cached ASTs are
+  * never compared. */
+class ProgramCache {
+
+  /** The number of programs held by ProgramCache.ONLY; set by the system property jam.ProgramCache.capacity.  A
+    * capacity of 0 disables caching. */
+  static final int DEFAULT_CAPACITY = Math.max(0, Integer.getInteger("jam.ProgramCache.capacity", 256));
+
+  /** The length in characters of the longest program text that ProgramCache.ONLY caches; set by the system property
+    * jam.ProgramCache.maxLength.  Longer programs are parsed on every call of get without being hashed. */
+  static final int DEFAULT_MAX_LENGTH = Math.max(0, Integer.getInteger("jam.ProgramCache.maxLength", 1 << 20));
+
+  /** The number of characters hashed at a time. */
+  private static final int CHUNK = 4096;
+
+  /** The cache shared by all Interpreters. */
+  public static final ProgramCache ONLY = new ProgramCache(DEFAULT_CAPACITY, DEFAULT_MAX_LENGTH);
+
+  /** The result of parsing a program: either the ParsedProgram or the class and message of the exception that
+    * parsing threw.  The exception itself is not kept, since its stack trace and suppressed exceptions belong to the
+    * call of get that parsed the program; each later call throws an exception of its own (see failure). */
+  private static class Entry {
+    final ParsedProgram prog;
+    /** True if parsing threw a SyntaxException rather than a ParseException. */
+    final boolean syntaxError;
+    /** The message of the exception that parsing threw, or null if it succeeded. */
+    final String error;
+    Entry(ParsedProgram p) { prog = p; syntaxError = false; error = null; }
+    Entry(RuntimeException e) { prog = null; syntaxError = e instanceof SyntaxException; error = e.getMessage(); }
+
+    /** Returns a new exception describing the failure recorded in this. */
+    RuntimeException failure() {
+      if (syntaxError) return new SyntaxException(error);
+      return new ParseException(error);
+    }
+  }
+
+  /** The maximum number of entries. */
+  private final int capacity;
+
+  /** The length of the longest program text that is cached. */
+  private final int maxLength;
+
+  /** The entries, keyed by the hash of the program text, in order from least to most recently used.  Guarded by
+    * this. */
+  private final LinkedHashMap<ByteBuffer, Entry> entries;
+
+  private long hits = 0;
+  private long misses = 0;
+
+  ProgramCache(int c) { this(c, DEFAULT_MAX_LENGTH); }
+
+  ProgramCache(int c, int max) {
+    capacity = c;
+    maxLength = max;
+    entries = new LinkedHashMap<ByteBuffer, Entry>(16, 0.75f, true) {
+      protected boolean removeEldestEntry(java.util.Map.Entry<ByteBuffer, Entry> eldest) { return size() > capacity; }
+    };
+  }
+
+  /** Returns the ParsedProgram for the program text source, parsing it only if it is not already in this cache.
+    * Throws a ParseException or SyntaxException if parsing source fails.  The program is parsed without holding the
+    * lock on this cache, so threads parsing different programs do not wait for each other; if two threads parse the
+    * same program at once, both obtain the program cached by the first to finish.  If this cache has capacity 0 or
+    * source is longer than its maximum length, source is parsed without being hashed or cached, and the call counts
+    * as a miss. */
+  ParsedProgram get(char[] source) {
+    if (capacity == 0 || source.length > maxLength) {
+      synchronized(this) { misses++; }
+      Entry e = parse(source);
+      if (e.error != null) throw e.failure();
+      return e.prog;
+    }
+    ByteBuffer key = hash(source);
+    Entry e;
+    synchronized(this) {
+      e = entries.get(key);
+      if (e != null) hits++;
+      else misses++;
+    }
+    if (e == null) {
+      e = parse(source);
+      synchronized(this) {
+        Entry existing = entries.get(key);
+        if (existing != null) e = existing;
+        else entries.put(key, e);
+      }
+    }
+    if (e.error != null) throw e.failure();
+    return e.prog;
+  }
+
+  /** Returns the ParsedProgram for source, or the exception that parsing it throws. */
+  private static Entry parse(char[] source) {
+    try { return new Entry(new ParsedProgram(new Parser(new Lexer(source, source.length)).parseAndCheck())); }
+    catch(ParseException e) { return new Entry(e); }
+    catch(SyntaxException e) { return new Entry(e); }
+  }
+
+  /** Returns the SHA-256 hash of the characters in source, which are digested CHUNK at a time so that hashing a long
+    * program does not copy all of it. */
+  private static ByteBuffer hash(char[] source) {
+    try {
+      MessageDigest md = MessageDigest.getInstance("SHA-256");
+      ByteBuffer bytes = ByteBuffer.allocate(2 * Math.min(CHUNK, source.length));
+      for (int i = 0; i < source.length; i += CHUNK) {
+        int n = Math.min(CHUNK, source.length - i);
+        bytes.clear();
+        bytes.asCharBuffer().put(source, i, n);
+        bytes.limit(2 * n);
+        md.update(bytes);
+      }
+      return ByteBuffer.wrap(md.digest());
+    }
+    catch(NoSuchAlgorithmException e) { throw new IllegalStateException(e); }  // every JVM supports SHA-256
+  }
+
+  /** Returns the number of calls of get that found their program in this cache. */
+  synchronized long hits() { return hits; }
+
+  /** Returns the number of calls of get that parsed their program. */
+  synchronized long misses() { return misses; }
+
+  /** Returns the number of programs in this cache. */
+  synchronized int size() { return entries.size(); }
+
+  /** Removes every program from this cache and resets its counters. */
+  synchronized void clear() {
+    entries.clear();
+    hits = 0;
+    misses = 0;
+  }
+}
@@ -0,0 +1,483 @@
+/* An abstract machine for Jam that keeps its control stack on the heap.  The EvalVisitor in Interpreter and the
+ * Nodes built by Compiler evaluate a subexpression by making a Java call, so the depth of non-tail recursion in a Jam
+ * program, and the length of a chain of suspensions forced one from another, is limited by the size of the Java
+ * stack.  A CekMachine evaluates a resolved AST with a CEK machine: the state of a computation is an expression (the
+ * Control), the Frame in which to evaluate it (the Environment), and a linked list of pending operations (the
+ * Kontinuation), all of which live on the heap.  The machine runs in a loop in a single Java frame, so recursion
+ * depth is bounded only by the heap, applications in tail position never grow the continuation, and an EvalException
+ * unwinds an evaluation of any depth by discarding the continuation. */
+
+/** Evaluator for resolved ASTs (see Parser.parseAndResolve) using a CEK machine.  A CekMachine is specialized for
+  * one binding policy and one cons policy; the nine instances VALUE_VALUE ... NEED_NEED correspond to the nine forms
+  * of evaluation supported by Interpreter, and produce the same values and errors as the corresponding Compilers. */
+class CekMachine {
+
+  static final CekMachine VALUE_VALUE = new CekMachine(false, false, false, false);
+  static final CekMachine VALUE_NAME = new CekMachine(false, false, true, false);
+  static final CekMachine VALUE_NEED = new CekMachine(false, false, true, true);
+  static final CekMachine NAME_VALUE = new CekMachine(true, false, false, false);
+  static final CekMachine NAME_NAME = new CekMachine(true, false, true, false);
+  static final CekMachine NAME_NEED = new CekMachine(true, false, true, true);
+  static final CekMachine NEED_VALUE = new CekMachine(true, true, false, false);
+  static final CekMachine NEED_NAME = new CekMachine(true, true, true, false);
+  static final CekMachine NEED_NEED = new CekMachine(true, true, true, true);
+
+  /** True if arguments and the right-hand sides of Lets are bound unevaluated (call-by-name or call-by-need). */
+  boolean lazyBinding;
+  /** True if unevaluated bindings are evaluated at most once (call-by-need). */
+  boolean memoBinding;
+  /** True if the arguments of cons are left unevaluated. */
+  boolean lazyCons;
+  /** True if the arguments of a lazy cons are evaluated at most once. */
+  boolean memoCons;
+
+  CekMachine(boolean lb, boolean mb, boolean lc, boolean mc) {
+    lazyBinding = lb; memoBinding = mb; lazyCons = lc; memoCons = mc;
+  }
+
+  /** Evaluates the resolved program prog. */
+  JamVal run(AST prog) { return eval(prog, null); }
+
+  /** Evaluates exp in the frame f using a new machine state.  Used for the top-level program and for suspensions
+    * forced from outside the machine, e.g. by JamCons.toString. */
+  JamVal eval(AST exp, Frame f) { return new State(this, exp, f).run(); }
+
+  /** The state of a running machine.  The visitor methods perform one step of evaluation of the control expression:
+    * each returns the value of the expression if it is available immediately, or else pushes the operations that
+    * remain onto kont, replaces control and env by the first subexpression to evaluate, and returns null. */
+  static class State implements ASTVisitor<JamVal> {
+    CekMachine machine;
+    AST control;
+    Frame env;
+    Kont kont;
+
+    State(CekMachine m, AST c, Frame e) { machine = m; control = c; env = e; }
+
+    /** Runs the machine until the continuation is empty and returns the final value.  The machine checks for
+      * cancellation (see Cancellation) when it starts, at each closure application, and whenever it forces a
+      * suspension. */
+    JamVal run() {
+      Cancellation.check();
+      while (true) {
+        JamVal val = control.accept(this);
+        while (val != null) {
+          Kont k = kont;
+          if (k == null) return val;
+          kont = k.next;
+          val = k.apply(val, this);
+        }
+      }
+    }
+
+    /** Pushes k onto the continuation. */
+    void push(Kont k) {
+      k.next = kont;
+      kont = k;
+    }
+
+    /** Makes exp in the frame f the next expression to evaluate and returns null. */
+    JamVal eval(AST exp, Frame f) {
+      control = exp;
+      env = f;
+      return null;
+    }
+
+    /* Visitor methods. */
+
+    public JamVal forBoolConstant(BoolConstant b) { return b; }
+    public JamVal forIntConstant(IntConstant i) { return i; }
+    public JamVal forEmptyConstant(EmptyConstant n) { return JamEmpty.ONLY; }
+    public JamVal forPrimFun(PrimFun f) { return f; }
+
+    public JamVal forVariable(Variable v) {
+      if (! (v instanceof LexicalVariable)) throw new EvalException("variable " + v + " has not been resolved");
+      LexicalVariable lv = (LexicalVariable) v;
+      Frame f = env.ancestor(lv.depth());
+      if (! (f instanceof BindingFrame)) return f.value(lv.index());
+      Binding b = ((BindingFrame) f).binding(lv.index());
+      if (b instanceof CekBinding) return force((CekBinding) b);
+      return b.value();
+    }
+
+    public JamVal forUnOpApp(UnOpApp u) {
+      push(new UnOpKont(u.rator()));
+      return eval(u.arg(), env);
+    }
+
+    public JamVal forBinOpApp(BinOpApp b) {
+      push(new LeftKont(b, env));
+      return eval(b.arg1(), env);
+    }
+
+    public JamVal forApp(App a) {
+      push(new RatorKont(a, env));
+      return eval(a.rator(), env);
+    }
+
+    public JamVal forMap(Map m) { return new JamClosure(m, m.freeVars().length == 0 ? null : env.capture(m)); }
+
+    public JamVal forIf(If i) {
+      push(new IfKont(i, env));
+      return eval(i.test(), env);
+    }
+
+    public JamVal forLet(Let l) {
+      Variable[] vars = l.vars();
+      AST[] exps = l.exps();
+      int n = vars.length;
+      Binding[] bindings = new Binding[n];
+      Frame frame = new BindingFrame(vars, bindings, env);
+      if (machine.lazyBinding) {
+        for (int i = 0; i < n; i++) bindings[i] = new CekBinding(vars[i], exps[i], frame, machine);
+        return eval(l.body(), frame);
+      }
+      for (int i = 0; i < n; i++) bindings[i] = new NodeValueBinding(vars[i]);
+      if (n == 0) return eval(l.body(), frame);
+      push(new LetKont(l, (BindingFrame) frame, 0));
+      return eval(exps[0], frame);
+    }
+
+    /* Support for bindings and lists. */
+
+    /** Returns the value of b, or arranges for its right-hand side to be evaluated and returns null.  Like an
+      * application, forcing a suspension checks for cancellation, since a suspension that demands itself, such as x
+      * in let x := x; in x under call-by-name, loops in constant space without applying a closure. */
+    JamVal force(CekBinding b) {
+      if (b.value != null) return b.value;
+      AST exp = b.exp;
+      if (exp == null) return b.value();  // bound by setBinding, or a call-by-need binding under evaluation
+      Cancellation.check();
+      if (b.memo) {
+        push(new BindingKont(b));
+        b.exp = null;  // marks b as under evaluation
+      }
+      return eval(exp, b.frame);
+    }
+
+    /** Returns the first element of l, or arranges for it to be evaluated and returns null. */
+    JamVal first(JamCons l) {
+      if (! (l instanceof CekLazyCons)) return l.first();
+      CekLazyCons c = (CekLazyCons) l;
+      if (c.firstVal != null) return c.firstVal;
+      Cancellation.check();  // as in force
+      if (c.memo) push(new FirstKont(c));
+      return eval(c.firstExp, c.frame);
+    }
+
+    /** Returns the rest of l, or arranges for it to be evaluated and returns null. */
+    JamVal rest(JamCons l) {
+      if (! (l instanceof CekLazyCons)) return l.rest();
+      CekLazyCons c = (CekLazyCons) l;
+      if (c.restVal != null) return c.restVal;
+      Cancellation.check();  // as in force
+      push(new RestKont(c));
+      return eval(c.restExp, c.frame);
+    }
+
+    /** Applies the closure c to the arguments args, evaluated or bound in the frame f. */
+    JamVal apply(JamClosure c, App a, Frame f) {
+      Cancellation.check();
+      Variable[] vars = c.body().vars();
+      AST[] args = a.args();
+      int n = args.length;
+      if (vars.length != n) throw new EvalException("closure " + c + " applied to " + n + " arguments");
+      if (machine.lazyBinding) {
+        Binding[] bindings = new Binding[n];
+        for (int i = 0; i < n; i++) bindings[i] = new CekBinding(vars[i], args[i], f, machine);
+        return eval(c.body().body(), new BindingFrame(vars, bindings, c.frame()));
+      }
+      if (n == 0) return eval(c.body().body(), new ValueFrame(vars, c.frame()));
+      push(new ArgKont(c, a, f, new JamVal[n], 0));
+      return eval(args[0], f);
+    }
+
+    /** Applies the primitive function prim to args, evaluated in the frame f. */
+    JamVal applyPrim(PrimFun prim, AST[] args, Frame f) {
+      int n = args.length;
+      if (prim == ConsPrim.ONLY) {
+        if (n != 2) throw Compiler.primArityError(prim, n);
+        if (machine.lazyCons) return new CekLazyCons(args[0], args[1], f, machine);
+        push(new ConsKont(args[1], f));
+        return eval(args[0], f);
+      }
+      if (n != 1) throw Compiler.primArityError(prim, n);
+      push(new PrimKont(prim));
+      return eval(args[0], f);
+    }
+  }
+
+  /** A pending operation awaiting the value of a subexpression.  apply(val, s) continues the computation given the
+    * value val, either returning the value of the operation or updating s and returning null, as the visitor
+    * methods of State do.
+    * Kont := UnOpKont | LeftKont | RightKont | IfKont | RatorKont | ArgKont | PrimKont | ConsKont | ... */
+  static abstract class Kont {
+    /** The rest of the continuation. */
+    Kont next;
+    abstract JamVal apply(JamVal val, State s);
+  }
+
+  static class UnOpKont extends Kont {
+    UnOp op;
+    UnOpKont(UnOp o) { op = o; }
+    JamVal apply(JamVal val, State s) {
+      if (op == OpTilde.ONLY) return BoolConstant.toBoolConstant(! ArithEvaluator.toBool(val, op));
+      int i = ArithEvaluator.toInt(val, op);
+      if (op == UnOpPlus.ONLY) return val;
+      return IntConstant.of(-i);
+    }
+  }
+
+  /** Awaits the left operand of b.  The operand is checked before the right operand is evaluated, and & and |
+    * evaluate their right operand only if necessary. */
+  static class LeftKont extends Kont {
+    BinOpApp b;
+    Frame frame;
+    LeftKont(BinOpApp b, Frame f) { this.b = b; frame = f; }
+    JamVal apply(JamVal val, State s) {
+      BinOp op = b.rator();
+      if (op == OpAnd.ONLY) {
+        if (! ArithEvaluator.toBool(val, op)) return BoolConstant.FALSE;
+      }
+      else if (op == OpOr.ONLY) {
+        if (ArithEvaluator.toBool(val, op)) return BoolConstant.TRUE;
+      }
+      else if (op != OpEquals.ONLY && op != OpNotEquals.ONLY) ArithEvaluator.toInt(val, op);
+      s.push(new RightKont(op, val));
+      return s.eval(b.arg2(), frame);
+    }
+  }
+
+  static class RightKont extends Kont {
+    BinOp op;
+    JamVal left;
+    RightKont(BinOp o, JamVal l) { op = o; left = l; }
+    JamVal apply(JamVal val, State s) {
+      if (op == OpAnd.ONLY || op == OpOr.ONLY) return BoolConstant.toBoolConstant(ArithEvaluator.toBool(val, op));
+      if (op == OpEquals.ONLY) return BoolConstant.toBoolConstant(left.equals(val));
+      if (op == OpNotEquals.ONLY) return BoolConstant.toBoolConstant(! left.equals(val));
+      int l = ((IntConstant) left).value();
+      int r = ArithEvaluator.toInt(val, op);
+      if (op == BinOpPlus.ONLY) return IntConstant.of(l + r);
+      if (op == BinOpMinus.ONLY) return IntConstant.of(l - r);
+      if (op == OpTimes.ONLY) return IntConstant.of(l * r);
+      if (op == OpDivide.ONLY) return IntConstant.of(ArithEvaluator.divide(l, r));
+      if (op == OpLessThan.ONLY) return BoolConstant.toBoolConstant(l < r);
+      if (op == OpLessThanEquals.ONLY) return BoolConstant.toBoolConstant(l <= r);
+      if (op == OpGreaterThan.ONLY) return BoolConstant.toBoolConstant(l > r);
+      return BoolConstant.toBoolConstant(l >= r);
+    }
+  }
+
+  static class IfKont extends Kont {
+    If i;
+    Frame frame;
+    IfKont(If i, Frame f) { this.i = i; frame = f; }
+    JamVal apply(JamVal val, State s) {
+      if (ArithEvaluator.toBool(val, null)) return s.eval(i.conseq(), frame);
+      return s.eval(i.alt(), frame);
+    }
+  }
+
+  /** Awaits the function applied by the application a. */
+  static class RatorKont extends Kont {
+    App a;
+    Frame frame;
+    RatorKont(App a, Frame f) { this.a = a; frame = f; }
+    JamVal apply(JamVal val, State s) {
+      if (val instanceof JamClosure) return s.apply((JamClosure) val, a, frame);
+      if (val instanceof PrimFun) return s.applyPrim((PrimFun) val, a.args(), frame);
+      throw new EvalException(val + " appears at head of application " + a + " but it is not a valid function");
+    }
+  }
+
+  /** Awaits argument index of a call-by-value application of c. */
+  static class ArgKont extends Kont {
+    JamClosure c;
+    App a;
+    Frame frame;
+    JamVal[] values;
+    int index;
+    ArgKont(JamClosure c, App a, Frame f, JamVal[] vs, int i) { this.c = c; this.a = a; frame = f; values = vs; index = i; }
+    JamVal apply(JamVal val, State s) {
+      values[index] = val;
+      int i = index + 1;
+      if (i < values.length) {
+        s.push(new ArgKont(c, a, frame, values, i));
+        return s.eval(a.args()[i], frame);
+      }
+      Map m = c.body();
+      return s.eval(m.body(), new ValueFrame(m.vars(), values, c.frame()));
+    }
+  }
+
+  /** Awaits the value bound to variable index of a call-by-value Let. */
+  static class LetKont extends Kont {
+    Let l;
+    BindingFrame frame;
+    int index;
+    LetKont(Let l, BindingFrame f, int i) { this.l = l; frame = f; index = i; }
+    JamVal apply(JamVal val, State s) {
+      frame.bindings[index].value = val;
+      int i = index + 1;
+      if (i < frame.size()) {
+        s.push(new LetKont(l, frame, i));
+        return s.eval(l.defs()[i].rhs(), frame);
+      }
+      return s.eval(l.body(), frame);
+    }
+  }
+
+  /** Awaits the argument of a primitive function other than cons. */
+  static class PrimKont extends Kont {
+    PrimFun prim;
+    PrimKont(PrimFun p) { prim = p; }
+    JamVal apply(JamVal val, State s) {
+      if (prim == FunctionPPrim.ONLY) return BoolConstant.toBoolConstant(val instanceof JamFun);
+      if (prim == NumberPPrim.ONLY) return BoolConstant.toBoolConstant(val instanceof IntConstant);
+      if (prim == ListPPrim.ONLY) return BoolConstant.toBoolConstant(val instanceof JamList);
+      if (prim == ConsPPrim.ONLY) return BoolConstant.toBoolConstant(val instanceof JamCons);
+      if (prim == EmptyPPrim.ONLY) return BoolConstant.toBoolConstant(val instanceof JamEmpty);
+      if (prim == ArityPrim.ONLY) {
+        if (val instanceof JamClosure) return IntConstant.of(((JamClosure) val).body().vars().length);
+        if (val instanceof PrimFun) return IntConstant.of(val == ConsPrim.ONLY ? 2 : 1);
+        throw new EvalException("arity applied to argument " + val);
+      }
+      if (prim == FirstPrim.ONLY) return s.first(Compiler.consArg(prim, val));
+      return s.rest(Compiler.consArg(prim, val));
+    }
+  }
+
+  /** Awaits the first argument of an eager cons. */
+  static class ConsKont extends Kont {
+    AST restExp;
+    Frame frame;
+    ConsKont(AST r, Frame f) { restExp = r; frame = f; }
+    JamVal apply(JamVal val, State s) {
+      s.push(new ConsRestKont(val));
+      return s.eval(restExp, frame);
+    }
+  }
+
+  static class ConsRestKont extends Kont {
+    JamVal first;
+    ConsRestKont(JamVal f) { first = f; }
+    JamVal apply(JamVal val, State s) {
+      if (val instanceof JamList) return new JamCons(first, (JamList) val);
+      throw new EvalException("Second argument " + val + " to `cons' is not a JamList");
+    }
+  }
+
+  /** Awaits the value of a call-by-need binding and records it. */
+  static class BindingKont extends Kont {
+    CekBinding binding;
+    BindingKont(CekBinding b) { binding = b; }
+    JamVal apply(JamVal val, State s) {
+      binding.value = val;
+      binding.frame = null;
+      return val;
+    }
+  }
+
+  /** Awaits the first element of a call-by-need lazy cons and records it. */
+  static class FirstKont extends Kont {
+    CekLazyCons cons;
+    FirstKont(CekLazyCons c) { cons = c; }
+    JamVal apply(JamVal val, State s) {
+      cons.setFirst(val);
+      return val;
+    }
+  }
+
+  /** Awaits the rest of a lazy cons, which must be a list, and records it if the cons is call-by-need. */
+  static class RestKont extends Kont {
+    CekLazyCons cons;
+    RestKont(CekLazyCons c) { cons = c; }
+    JamVal apply(JamVal val, State s) {
+      JamList l = JamCons.checkList(val);
+      if (cons.memo) cons.setRest(l);
+      return l;
+    }
+  }
+}
+
+/** A call-by-name or call-by-need binding of a variable to an unevaluated expression and the frame in which to
+  * evaluate it.  A CekMachine evaluates the expression on its own continuation; value() evaluates it with a new
+  * machine state for callers outside the machine.  In a call-by-need binding, exp is null once evaluation has begun
+  * and the value is stored in the inherited value field when it is done, so a reference to the variable from its own
+  * right-hand side is reported as an illegal forward reference. */
+class CekBinding extends Binding {
+  AST exp;
+  Frame frame;
+  CekMachine machine;
+  boolean memo;
+  /** The suspension supplied by setBinding, if any. */
+  private Suspension susp;
+
+  CekBinding(Variable v, AST e, Frame f, CekMachine m) {
+    super(v, null);
+    exp = e; frame = f; machine = m; memo = m.memoBinding;
+  }
+
+  public JamVal value() {
+    if (value != null) return value;
+    if (susp != null) return susp.eval();
+    AST e = exp;
+    if (! memo) return machine.eval(e, frame);
+    if (e == null) return Interpreter.illegalForwardReference(var);
+    exp = null;
+    value = machine.eval(e, frame);
+    frame = null;
+    return value;
+  }
+
+  public void setBinding(Suspension s) {
+    susp = s;
+    exp = null;
+    frame = null;
+  }
+
+  public String toString() { return "[" + var + ", " + value + ", " + exp + "]"; }
+}
+
+/** Lazy cons built by a CekMachine, whose first and rest are unevaluated expressions and the frame in which to
+  * evaluate them.  Within the machine, first and rest are evaluated on the machine's continuation; the methods first()
+  * and rest() evaluate them with a new machine state.  If memo is true, each is evaluated at most once. */
+class CekLazyCons extends JamCons {
+  AST firstExp, restExp;
+  Frame frame;
+  CekMachine machine;
+  boolean memo;
+  JamVal firstVal;
+  JamList restVal;
+
+  CekLazyCons(AST fst, AST rst, Frame f, CekMachine m) {
+    super(null, null);
+    firstExp = fst; restExp = rst; frame = f; machine = m; memo = m.memoCons;
+  }
+
+  public JamVal first() {
+    if (firstVal != null) return firstVal;
+    JamVal val = machine.eval(firstExp, frame);
+    if (memo) setFirst(val);
+    return val;
+  }
+
+  public JamList rest() {
+    if (restVal != null) return restVal;
+    JamList l = checkList(machine.eval(restExp, frame));
+    if (memo) setRest(l);
+    return l;
+  }
+
+  /** Records the value of first, releasing the frame if rest has been recorded too. */
+  void setFirst(JamVal val) {
+    firstVal = val;
+    if (restVal != null) frame = null;
+  }
+
+  /** Records the value of rest, releasing the frame if first has been recorded too. */
+  void setRest(JamList l) {
+    restVal = l;
+    if (firstVal != null) frame = null;
+  }
+}
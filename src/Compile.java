@@ -0,0 +1,1168 @@
+/* Compilation of Jam programs into trees of executable nodes.  The EvalVisitor in Interpreter re-dispatches through
+ * AST.accept at every node of every evaluation and allocates helper objects (FunEvaluators, LookupVisitors, operator
+ * evaluators) as it goes.  A Compiler translates a resolved AST once into a tree of Nodes specialized for one binding
+ * policy and one cons policy.  Each Node executes directly in a Frame: variables are fetched by lexical address,
+ * Map applications allocate a single frame, arithmetic runs on unboxed ints, and each kind of node has its own
+ * execute method, so the JIT sees small monomorphic methods rather than megamorphic visitor calls. */
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/** A compiled Jam expression.  execute(f) returns the value of the expression in the frame f, which is null for the
+  * top-level program.  executeInt and executeBool return the value as an unboxed int or boolean; the argument op is
+  * the operator whose operand this node is (null for the test of an If), used only to report a value of the wrong
+  * type.  Node subclasses for int- and boolean-valued expressions override these methods to avoid boxing.
+  * A node in tail position in the body of a Map may return a TailCall instead of a value; see markTail.
+  * Node := ConstNode | VarNode | LocalNode | IntOpNode | BoolOpNode | ... | IfNode | MapNode | AppNode | LetNode */
+abstract class Node {
+  abstract JamVal execute(Frame f);
+  int executeInt(Frame f, Object op) { return ArithEvaluator.toInt(execute(f), op); }
+  boolean executeBool(Frame f, Object op) { return ArithEvaluator.toBool(execute(f), op); }
+
+  /** Records that this node is in tail position in the body of a Map, so its value is the value of the Map
+    * application.  Applications in tail position return a TailCall rather than calling the applied closure;
+    * conditionals and Lets pass the mark on to their branches and bodies. */
+  void markTail() {}
+}
+
+/** The pending application of a closure, returned by an application in tail position.  The caller that applied
+  * the enclosing closure runs the TailCall (see run), so a chain of tail calls executes in a loop in a single Java
+  * frame instead of growing the Java stack.  A TailCall is never the value of a Jam expression. */
+final class TailCall implements JamVal {
+  Node code;
+  Frame frame;
+  TailCall(Node c, Frame f) { code = c; frame = f; }
+
+  public <ResType> ResType accept(JamValVisitor<ResType> jvv) {
+    throw new IllegalStateException("a TailCall is not a Jam value");
+  }
+
+  /** Executes code, the body of a closure, in frame f followed by the tail calls it returns; returns the value.
+    * Each application checks whether the evaluation has been cancelled (see Cancellation). */
+  static JamVal run(Node code, Frame f) {
+    Cancellation.check();
+    JamVal val = code.execute(f);
+    while (val instanceof TailCall) {
+      Cancellation.check();
+      TailCall t = (TailCall) val;
+      val = t.code.execute(t.frame);
+    }
+    return val;
+  }
+}
+
+/** A flag by which an evaluation is stopped from outside.  A thread executing part of an evaluation installs the
+  * evaluation's Cancellation (see install), and every closure application in that thread calls check, which throws a
+  * CancellationException once the Cancellation or any of its parents has been cancelled.  Since every unbounded
+  * computation in Jam is a chain of applications, a cancelled evaluation stops promptly; since Jam has no side
+  * effects, stopping it part way through is harmless.  While no thread has a Cancellation installed, check reads a
+  * single counter. */
+final class Cancellation {
+
+  /** The number of install calls not yet undone by restore. */
+  private static final AtomicInteger INSTALLED = new AtomicInteger();
+
+  /** The Cancellation installed in each thread, if any. */
+  private static final ThreadLocal<Cancellation> CURRENT = new ThreadLocal<Cancellation>();
+
+  /** The Cancellation of the enclosing evaluation, or null. */
+  private final Cancellation parent;
+  private volatile boolean cancelled;
+
+  /** Constructs a Cancellation that is also cancelled when parent (which may be null) is cancelled. */
+  Cancellation(Cancellation parent) { this.parent = parent; }
+
+  Cancellation() { this(null); }
+
+  /** Cancels the evaluations that have installed this. */
+  void cancel() { cancelled = true; }
+
+  /** Returns true if this or one of its parents has been cancelled. */
+  boolean isCancelled() {
+    for (Cancellation c = this; c != null; c = c.parent) if (c.cancelled) return true;
+    return false;
+  }
+
+  /** Installs this in the current thread and returns the Cancellation it replaces, which the caller passes to
+    * restore when it is done. */
+  Cancellation install() {
+    Cancellation saved = CURRENT.get();
+    CURRENT.set(this);
+    INSTALLED.incrementAndGet();
+    return saved;
+  }
+
+  /** Undoes the latest install in the current thread, which returned saved. */
+  static void restore(Cancellation saved) {
+    INSTALLED.decrementAndGet();
+    if (saved == null) CURRENT.remove();
+    else CURRENT.set(saved);
+  }
+
+  /** Returns the Cancellation installed in the current thread, or null. */
+  static Cancellation current() { return INSTALLED.get() == 0 ? null : CURRENT.get(); }
+
+  /** Throws a CancellationException if the Cancellation installed in the current thread has been cancelled. */
+  static void check() {
+    if (INSTALLED.get() == 0) return;
+    Cancellation c = CURRENT.get();
+    if (c != null && c.isCancelled()) throw new CancellationException("evaluation cancelled");
+  }
+}
+
+/** A constant, including a primitive function appearing as a value. */
+class ConstNode extends Node {
+  private JamVal value;
+  ConstNode(JamVal v) { value = v; }
+  JamVal execute(Frame f) { return value; }
+}
+
+/** A variable bound in an enclosing frame. */
+class VarNode extends Node {
+  int depth, index;
+  VarNode(int d, int i) { depth = d; index = i; }
+  JamVal execute(Frame f) { return f.ancestor(depth).value(index); }
+}
+
+/** A variable bound in the current frame, which is by far the most common case. */
+class LocalNode extends VarNode {
+  LocalNode(int i) { super(0, i); }
+  JamVal execute(Frame f) { return f.value(index); }
+}
+
+/** An application of a binary operator whose value is an int. */
+abstract class IntOpNode extends Node {
+  BinOp op;
+  Node left, right;
+  IntOpNode(BinOp o, Node l, Node r) { op = o; left = l; right = r; }
+  JamVal execute(Frame f) { return IntConstant.of(executeInt(f, op)); }
+}
+
+class PlusNode extends IntOpNode {
+  PlusNode(Node l, Node r) { super(BinOpPlus.ONLY, l, r); }
+  int executeInt(Frame f, Object o) { return left.executeInt(f, op) + right.executeInt(f, op); }
+}
+
+class MinusNode extends IntOpNode {
+  MinusNode(Node l, Node r) { super(BinOpMinus.ONLY, l, r); }
+  int executeInt(Frame f, Object o) { return left.executeInt(f, op) - right.executeInt(f, op); }
+}
+
+class TimesNode extends IntOpNode {
+  TimesNode(Node l, Node r) { super(OpTimes.ONLY, l, r); }
+  int executeInt(Frame f, Object o) { return left.executeInt(f, op) * right.executeInt(f, op); }
+}
+
+class DivideNode extends IntOpNode {
+  DivideNode(Node l, Node r) { super(OpDivide.ONLY, l, r); }
+  int executeInt(Frame f, Object o) {
+    int dividend = left.executeInt(f, op);
+    return ArithEvaluator.divide(dividend, right.executeInt(f, op));
+  }
+}
+
+/** An application of a binary operator whose value is a boolean. */
+abstract class BoolOpNode extends Node {
+  BinOp op;
+  Node left, right;
+  BoolOpNode(BinOp o, Node l, Node r) { op = o; left = l; right = r; }
+  JamVal execute(Frame f) { return BoolConstant.toBoolConstant(executeBool(f, op)); }
+}
+
+class LessThanNode extends BoolOpNode {
+  LessThanNode(Node l, Node r) { super(OpLessThan.ONLY, l, r); }
+  boolean executeBool(Frame f, Object o) { return left.executeInt(f, op) < right.executeInt(f, op); }
+}
+
+class LessThanEqualsNode extends BoolOpNode {
+  LessThanEqualsNode(Node l, Node r) { super(OpLessThanEquals.ONLY, l, r); }
+  boolean executeBool(Frame f, Object o) { return left.executeInt(f, op) <= right.executeInt(f, op); }
+}
+
+class GreaterThanNode extends BoolOpNode {
+  GreaterThanNode(Node l, Node r) { super(OpGreaterThan.ONLY, l, r); }
+  boolean executeBool(Frame f, Object o) { return left.executeInt(f, op) > right.executeInt(f, op); }
+}
+
+class GreaterThanEqualsNode extends BoolOpNode {
+  GreaterThanEqualsNode(Node l, Node r) { super(OpGreaterThanEquals.ONLY, l, r); }
+  boolean executeBool(Frame f, Object o) { return left.executeInt(f, op) >= right.executeInt(f, op); }
+}
+
+/** Equality; when both operands are known to be ints, they are compared without boxing. */
+class EqualsNode extends BoolOpNode {
+  boolean ints;
+  EqualsNode(BinOp o, Node l, Node r, boolean i) { super(o, l, r); ints = i; }
+  EqualsNode(Node l, Node r, boolean i) { this(OpEquals.ONLY, l, r, i); }
+  boolean executeBool(Frame f, Object o) {
+    if (ints) return left.executeInt(f, op) == right.executeInt(f, op);
+    return left.execute(f).equals(right.execute(f));
+  }
+}
+
+class NotEqualsNode extends EqualsNode {
+  NotEqualsNode(Node l, Node r, boolean i) { super(OpNotEquals.ONLY, l, r, i); }
+  boolean executeBool(Frame f, Object o) { return ! super.executeBool(f, o); }
+}
+
+class AndNode extends BoolOpNode {
+  AndNode(Node l, Node r) { super(OpAnd.ONLY, l, r); }
+  boolean executeBool(Frame f, Object o) { return left.executeBool(f, op) && right.executeBool(f, op); }
+}
+
+class OrNode extends BoolOpNode {
+  OrNode(Node l, Node r) { super(OpOr.ONLY, l, r); }
+  boolean executeBool(Frame f, Object o) { return left.executeBool(f, op) || right.executeBool(f, op); }
+}
+
+/** Unary +, which returns its operand after checking that it is an int. */
+class UnOpPlusNode extends Node {
+  Node arg;
+  UnOpPlusNode(Node a) { arg = a; }
+  JamVal execute(Frame f) {
+    JamVal val = arg.execute(f);
+    ArithEvaluator.toInt(val, UnOpPlus.ONLY);
+    return val;
+  }
+  int executeInt(Frame f, Object o) { return arg.executeInt(f, UnOpPlus.ONLY); }
+}
+
+class UnOpMinusNode extends Node {
+  Node arg;
+  UnOpMinusNode(Node a) { arg = a; }
+  JamVal execute(Frame f) { return IntConstant.of(executeInt(f, UnOpMinus.ONLY)); }
+  int executeInt(Frame f, Object o) { return - arg.executeInt(f, UnOpMinus.ONLY); }
+}
+
+class OpTildeNode extends Node {
+  Node arg;
+  OpTildeNode(Node a) { arg = a; }
+  JamVal execute(Frame f) { return BoolConstant.toBoolConstant(executeBool(f, OpTilde.ONLY)); }
+  boolean executeBool(Frame f, Object o) { return ! arg.executeBool(f, OpTilde.ONLY); }
+}
+
+/** A conditional, which branches on the unboxed value of its test. */
+class IfNode extends Node {
+  Node test, conseq, alt;
+  IfNode(Node t, Node c, Node a) { test = t; conseq = c; alt = a; }
+  JamVal execute(Frame f) {
+    if (test.executeBool(f, null)) return conseq.execute(f);
+    return alt.execute(f);
+  }
+  void markTail() { conseq.markTail(); alt.markTail(); }
+}
+
+/** A Map, which evaluates to a flat closure over the variables that its body references. */
+class MapNode extends Node {
+  Map map;
+  Node body;
+  /** True if the body references no variables outside the Map, so closures need no captured frame. */
+  boolean closed;
+  /** The indices of the parameters that the body is strict in, in the order it demands them (see
+    * Compiler.strictVars). */
+  int[] strict;
+  MapNode(Map m, Node b, int[] s) { map = m; body = b; strict = s; closed = m.freeVars().length == 0; }
+  JamVal execute(Frame f) { return new CompiledClosure(map, closed ? null : f.capture(map), body, strict); }
+}
+
+/** A closure created by compiled code, which carries the compiled body of its Map and the parameters that the body
+  * is strict in. */
+class CompiledClosure extends JamClosure {
+  private Node code;
+  private int[] strict;
+  CompiledClosure(Map m, Frame f, Node c, int[] s) { super(m, f); code = c; strict = s; }
+  CompiledClosure(Map m, Frame f, Node c) { this(m, f, c, Compiler.NOT_STRICT); }
+  Node code() { return code; }
+  int[] strict() { return strict; }
+}
+
+/** The application of an expression that is not a primitive function literal.  The subclasses for the three binding
+  * policies differ in the frame built for the parameters of the applied closure. */
+abstract class AppNode extends Node {
+  App app;
+  Node rator;
+  Node[] args;
+  /** The cons policy used when the applied function turns out to be cons. */
+  Compiler.ConsPolicy consPolicy;
+  /** True if this application is in tail position, so it returns a TailCall instead of applying a closure. */
+  boolean tail;
+
+  AppNode(App a, Node r, Node[] as, Compiler.ConsPolicy cp) { app = a; rator = r; args = as; consPolicy = cp; }
+
+  void markTail() { tail = true; }
+
+  /** Applies the closure c by executing its code in frame, or defers the application if this is a tail call.  Either
+    * way TailCall.run checks for cancellation before the body executes. */
+  JamVal call(CompiledClosure c, Frame frame) {
+    if (tail) return new TailCall(c.code(), frame);
+    return TailCall.run(c.code(), frame);
+  }
+
+  /** Returns the parameters of c after checking that c accepts args.length arguments. */
+  Variable[] params(CompiledClosure c) {
+    Variable[] vars = c.body().vars();
+    if (vars.length != args.length)
+      throw new EvalException("closure " + c + " applied to " + args.length + " arguments");
+    return vars;
+  }
+
+  /** Returns the expression to which a parameter is bound for the argument arg under call-by-name or call-by-need;
+    * overridden by the counting nodes (see CountingCompiler). */
+  Node suspend(Node arg) { return arg; }
+
+  /** Applies fun, which is not a CompiledClosure, to args in f. */
+  JamVal applyOther(JamVal fun, Frame f) {
+    if (fun instanceof PrimFun) return Compiler.applyPrim((PrimFun) fun, args, f, consPolicy);
+    throw new EvalException(fun + " appears at head of application " + app + " but it is not a valid function");
+  }
+}
+
+/** Call-by-value application: the parameters are bound in a ValueFrame to the values of the arguments. */
+class ValueAppNode extends AppNode {
+  ValueAppNode(App a, Node r, Node[] as, Compiler.ConsPolicy cp) { super(a, r, as, cp); }
+  JamVal execute(Frame f) {
+    JamVal fun = rator.execute(f);
+    if (! (fun instanceof CompiledClosure)) return applyOther(fun, f);
+    CompiledClosure c = (CompiledClosure) fun;
+    Variable[] vars = params(c);
+    int n = args.length;
+    JamVal[] values = new JamVal[n];
+    for (int i = 0; i < n; i++) values[i] = args[i].execute(f);
+    return call(c, new ValueFrame(vars, values, c.frame()));
+  }
+}
+
+/** Call-by-name application: each parameter is bound to its argument node and the caller's frame. */
+class NameAppNode extends AppNode {
+  NameAppNode(App a, Node r, Node[] as, Compiler.ConsPolicy cp) { super(a, r, as, cp); }
+  JamVal execute(Frame f) {
+    JamVal fun = rator.execute(f);
+    if (! (fun instanceof CompiledClosure)) return applyOther(fun, f);
+    CompiledClosure c = (CompiledClosure) fun;
+    Variable[] vars = params(c);
+    int n = args.length;
+    Binding[] bindings = new Binding[n];
+    for (int i = 0; i < n; i++) bindings[i] = new NodeNameBinding(vars[i], suspend(args[i]), f);
+    return call(c, new BindingFrame(vars, bindings, c.frame()));
+  }
+}
+
+/** Call-by-need application: like call-by-name, but each argument is executed at most once.  The arguments for
+  * the parameters that the closure is strict in are executed immediately, in the order in which the body would
+  * demand them, rather than suspended. */
+class NeedAppNode extends AppNode {
+  NeedAppNode(App a, Node r, Node[] as, Compiler.ConsPolicy cp) { super(a, r, as, cp); }
+  JamVal execute(Frame f) {
+    JamVal fun = rator.execute(f);
+    if (! (fun instanceof CompiledClosure)) return applyOther(fun, f);
+    CompiledClosure c = (CompiledClosure) fun;
+    Variable[] vars = params(c);
+    int n = args.length;
+    Binding[] bindings = new Binding[n];
+    for (int i: c.strict()) bindings[i] = new NodeValueBinding(vars[i], args[i].execute(f));
+    for (int i = 0; i < n; i++)
+      if (bindings[i] == null) bindings[i] = new NodeNeedBinding(vars[i], suspend(args[i]), f);
+    return call(c, new BindingFrame(vars, bindings, c.frame()));
+  }
+}
+
+/** The application of a primitive function literal other than first, rest, and cons. */
+class PrimAppNode extends Node {
+  PrimFun prim;
+  Node[] args;
+  Compiler.ConsPolicy consPolicy;
+  PrimAppNode(PrimFun p, Node[] as, Compiler.ConsPolicy cp) { prim = p; args = as; consPolicy = cp; }
+  JamVal execute(Frame f) { return Compiler.applyPrim(prim, args, f, consPolicy); }
+}
+
+class FirstNode extends Node {
+  Node arg;
+  FirstNode(Node a) { arg = a; }
+  JamVal execute(Frame f) { return Compiler.consArg(FirstPrim.ONLY, arg.execute(f)).first(); }
+}
+
+class RestNode extends Node {
+  Node arg;
+  RestNode(Node a) { arg = a; }
+  JamVal execute(Frame f) { return Compiler.consArg(RestPrim.ONLY, arg.execute(f)).rest(); }
+}
+
+/** Eager cons: both arguments are executed immediately. */
+class EagerConsNode extends Node {
+  Node first, rest;
+  EagerConsNode(Node fst, Node rst) { first = fst; rest = rst; }
+  JamVal execute(Frame f) {
+    JamVal fst = first.execute(f);
+    JamVal rst = rest.execute(f);
+    if (rst instanceof JamList) return new JamCons(fst, (JamList) rst);
+    throw new EvalException("Second argument " + rst + " to `cons' is not a JamList");
+  }
+}
+
+/** Lazy cons that re-executes its arguments each time first() or rest() is called. */
+class LazyNameConsNode extends Node {
+  Node first, rest;
+  LazyNameConsNode(Node fst, Node rst) { first = fst; rest = rst; }
+  JamVal execute(Frame f) { return new NodeLazyNameCons(first, rest, f); }
+}
+
+/** Lazy cons that executes each of its arguments at most once. */
+class LazyNeedConsNode extends Node {
+  Node first, rest;
+  LazyNeedConsNode(Node fst, Node rst) { first = fst; rest = rst; }
+  JamVal execute(Frame f) { return new NodeLazyNeedCons(first, rest, f); }
+}
+
+/** A Let whose right-hand sides are evaluated immediately and do not reference the variables it introduces, so the
+  * new frame is a ValueFrame filled in order. */
+class ValueLetNode extends Node {
+  Variable[] vars;
+  Node[] rhss;
+  Node body;
+  ValueLetNode(Variable[] v, Node[] r, Node b) { vars = v; rhss = r; body = b; }
+  JamVal execute(Frame f) {
+    int n = rhss.length;
+    ValueFrame frame = new ValueFrame(vars, f);
+    for (int i = 0; i < n; i++) frame.setValue(i, rhss[i].execute(frame));
+    return body.execute(frame);
+  }
+  void markTail() { body.markTail(); }
+
+  /** Returns the expression to which a variable is bound for the right-hand side rhs under call-by-name or
+    * call-by-need; overridden by the counting nodes (see CountingCompiler). */
+  Node suspend(Node rhs) { return rhs; }
+}
+
+/** A recursive call-by-value Let.  Closures built by the right-hand sides may capture bindings that are still
+  * pending, so the frame holds NodeValueBindings that are filled in order. */
+class ValueLetRecNode extends ValueLetNode {
+  ValueLetRecNode(Variable[] v, Node[] r, Node b) { super(v, r, b); }
+  JamVal execute(Frame f) {
+    int n = rhss.length;
+    NodeValueBinding[] bindings = new NodeValueBinding[n];
+    for (int i = 0; i < n; i++) bindings[i] = new NodeValueBinding(vars[i]);
+    Frame frame = new BindingFrame(vars, bindings, f);
+    for (int i = 0; i < n; i++) bindings[i].value = rhss[i].execute(frame);
+    return body.execute(frame);
+  }
+}
+
+/** A call-by-name Let: each variable is bound to its right-hand side and the new frame. */
+class NameLetNode extends ValueLetNode {
+  NameLetNode(Variable[] v, Node[] r, Node b) { super(v, r, b); }
+  JamVal execute(Frame f) {
+    int n = rhss.length;
+    Binding[] bindings = new Binding[n];
+    Frame frame = new BindingFrame(vars, bindings, f);
+    for (int i = 0; i < n; i++) bindings[i] = new NodeNameBinding(vars[i], suspend(rhss[i]), frame);
+    return body.execute(frame);
+  }
+}
+
+/** A call-by-need Let: like call-by-name, but each right-hand side is executed at most once.  The right-hand sides
+  * for the variables in strict are executed immediately, in the order in which the body would demand them; strict
+  * is empty if a right-hand side references the variables of the Let. */
+class NeedLetNode extends ValueLetNode {
+  int[] strict;
+  NeedLetNode(Variable[] v, Node[] r, Node b, int[] s) { super(v, r, b); strict = s; }
+  JamVal execute(Frame f) {
+    int n = rhss.length;
+    Binding[] bindings = new Binding[n];
+    Frame frame = new BindingFrame(vars, bindings, f);
+    for (int i: strict) bindings[i] = new NodeValueBinding(vars[i], rhss[i].execute(frame));
+    for (int i = 0; i < n; i++)
+      if (bindings[i] == null) bindings[i] = new NodeNeedBinding(vars[i], suspend(rhss[i]), frame);
+    return body.execute(frame);
+  }
+}
+
+/** A call-by-value binding in the frame of a recursive Let; null until its right-hand side has been evaluated. */
+class NodeValueBinding extends Binding {
+  NodeValueBinding(Variable v) { super(v, null); }
+  NodeValueBinding(Variable v, JamVal jv) { super(v, jv); }
+  public JamVal value() {
+    if (value == null) return Interpreter.illegalForwardReference(var);
+    return value;
+  }
+  public void setBinding(Suspension s) { value = s.eval(); }
+  public String toString() { return "[" + var + ", " + value + "]"; }
+}
+
+/** A call-by-name binding of a variable to a compiled expression and the frame in which to execute it.  The
+  * inherited value field is ignored. */
+class NodeNameBinding extends Binding {
+  Node exp;
+  Frame frame;
+  NodeNameBinding(Variable v, Node e, Frame f) { super(v, null); exp = e; frame = f; }
+  public JamVal value() { return exp.execute(frame); }
+  public void setBinding(Suspension s) { exp = new SuspensionNode(s); frame = null; }
+  public String toString() { return "[" + var + ", " + exp + "]"; }
+}
+
+/** A call-by-need binding.  The inherited value field holds the value once it has been computed; state is managed by
+  * NeedState, so the right-hand side is executed by one thread at a time, and a reference to the variable from its
+  * own right-hand side, even through a right-hand side being executed by another thread, is reported as an illegal
+  * forward reference. */
+class NodeNeedBinding extends NodeNameBinding {
+  private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+  private static final VarHandle VALUE = NeedState.handle(LOOKUP, Binding.class, "value", JamVal.class);
+  private static final VarHandle STATE = NeedState.handle(LOOKUP, NodeNeedBinding.class, "state", Object.class);
+  /** null, the thread executing exp (or its NeedState.Claim), or DONE (see NeedState). */
+  private Object state;
+
+  NodeNeedBinding(Variable v, Node e, Frame f) { super(v, e, f); }
+  public JamVal value() {
+    JamVal v = (JamVal) VALUE.getAcquire(this);
+    return v != null ? v : force();
+  }
+  private JamVal force() {
+    Object s = NeedState.claim(this, STATE);
+    if (s == NeedState.DONE) return value;
+    if (s != null) return Interpreter.illegalForwardReference(var);
+    JamVal v = null;
+    try {
+      v = exp.execute(frame);
+      VALUE.setRelease(this, v);
+      exp = null;
+      frame = null;
+      return v;
+    }
+    finally { NeedState.release(this, STATE, v != null ? NeedState.DONE : null); }
+  }
+  public String toString() { return "[" + var + ", " + value + ", " + exp + "]"; }
+}
+
+/** Support for call-by-need memoization that is safe when several threads force the same suspension.  The state of
+  * a memoized suspension is null until a thread claims it, then the claiming thread, and finally its value (or DONE
+  * if the value is stored elsewhere).  The state is read with acquire semantics, so reading a computed value costs an
+  * ordinary load, and claiming and releasing a suspension cost one atomic instruction each.  A thread that finds the
+  * suspension claimed by another thread replaces the claiming thread in the state by a Claim, joins its queue of
+  * waiters, and parks until release wakes it; if the claiming thread fails, it returns the state to null and a
+  * waiting thread claims it in turn.  Before parking, a thread checks whether the owner of the suspension is itself
+  * waiting, directly or through other threads, for a suspension that the current thread owns; if so, the
+  * suspensions demand each other, and claim reports this as if the current thread had demanded its own
+  * suspension. */
+final class NeedState {
+
+  /** The final state of a suspension whose value is stored in a separate field. */
+  static final Object DONE = new Object();
+
+  /** The state of a suspension claimed by owner for which other threads are waiting. */
+  private static final class Claim {
+    final Thread owner;
+    final ConcurrentLinkedQueue<Thread> waiters = new ConcurrentLinkedQueue<Thread>();
+    /** Set once the suspension has been released. */
+    volatile boolean released;
+    Claim(Thread o) { owner = o; }
+  }
+
+  /** The Claim for which each parked thread is waiting. */
+  private static final ConcurrentHashMap<Thread, Claim> WAITING = new ConcurrentHashMap<Thread, Claim>();
+
+  /** Returns a VarHandle for the field name of type type in c, found with lookup. */
+  static VarHandle handle(MethodHandles.Lookup lookup, Class<?> c, String name, Class<?> type) {
+    try { return lookup.findVarHandle(c, name, type); }
+    catch(ReflectiveOperationException e) { throw new ExceptionInInitializerError(e); }
+  }
+
+  /** Claims the suspension whose state is accessed in holder through state for the current thread, waiting while
+    * another thread has claimed it.  Returns null if the current thread has claimed it, and must compute the value
+    * and release it; the current thread if the current thread had already claimed it, or waiting for it would
+    * deadlock; and otherwise the final state, the value or DONE. */
+  static Object claim(Object holder, VarHandle state) {
+    Thread t = Thread.currentThread();
+    while (true) {
+      Object s = state.getAcquire(holder);
+      Claim c;
+      if (s == null) {
+        if (state.compareAndSet(holder, null, t)) return null;
+        continue;
+      }
+      else if (s == t) return t;
+      else if (s instanceof Thread) {
+        c = new Claim((Thread) s);
+        if (! state.compareAndSet(holder, s, c)) continue;
+      }
+      else if (s instanceof Claim) {
+        c = (Claim) s;
+        if (c.owner == t) return t;
+      }
+      else return s;
+      if (await(holder, state, c, t)) return t;
+    }
+  }
+
+  /** Parks t until the suspension whose state in holder is c is released; returns true, without waiting, if the owner
+    * of c is waiting for a suspension claimed by t. */
+  private static boolean await(Object holder, VarHandle state, Claim c, Thread t) {
+    c.waiters.add(t);
+    WAITING.put(t, c);
+    try {
+      if (waitsFor(c.owner, t)) return true;
+      while (state.getVolatile(holder) == c) {
+        LockSupport.park(c);
+        if (Thread.interrupted()) {
+          t.interrupt();
+          throw new EvalException("interrupted while waiting for a call-by-need value");
+        }
+      }
+      return false;
+    }
+    finally { WAITING.remove(t); }
+  }
+
+  /** Returns true if thread waits, directly or through the owners of the suspensions it waits for, for a suspension
+    * claimed by t.  The chain is followed no further than the number of waiting threads, so a chain that changes
+    * while it is followed cannot keep the search going. */
+  private static boolean waitsFor(Thread thread, Thread t) {
+    for (int n = WAITING.size(); n >= 0 && thread != null; n--) {
+      if (thread == t) return true;
+      Claim c = WAITING.get(thread);
+      if (c == null || c.released) return false;
+      thread = c.owner;
+    }
+    return false;
+  }
+
+  /** Releases the suspension whose state is accessed in holder through state, which the current thread has claimed,
+    * setting its state to s, and wakes the threads waiting for it. */
+  static void release(Object holder, VarHandle state, Object s) {
+    Object previous = state.getAndSet(holder, s);
+    if (! (previous instanceof Claim)) return;
+    Claim c = (Claim) previous;
+    c.released = true;
+    for (Thread w: c.waiters) LockSupport.unpark(w);
+  }
+}
+
+/** Adapter that lets a Suspension supplied through Binding.setBinding stand in for a compiled expression. */
+class SuspensionNode extends Node {
+  private Suspension susp;
+  SuspensionNode(Suspension s) { susp = s; }
+  JamVal execute(Frame f) { return susp.eval(); }
+}
+
+/** Lazy cons whose first and rest are compiled expressions executed in frame each time they are requested. */
+class NodeLazyNameCons extends JamCons {
+  Node firstExp, restExp;
+  Frame frame;
+  NodeLazyNameCons(Node fst, Node rst, Frame f) {
+    super(null, null);
+    firstExp = fst; restExp = rst; frame = f;
+  }
+  public JamVal first() { return firstExp.execute(frame); }
+  public JamList rest() { return checkList(restExp.execute(frame)); }
+}
+
+/** Lazy cons that caches first and rest once they have been computed.  The states of first and rest, which hold
+  * their values once computed, are managed by NeedState, so concurrent threads forcing the same cons execute each
+  * argument once. */
+class NodeLazyNeedCons extends NodeLazyNameCons {
+  private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+  private static final VarHandle FIRST = NeedState.handle(LOOKUP, NodeLazyNeedCons.class, "firstState", Object.class);
+  private static final VarHandle REST = NeedState.handle(LOOKUP, NodeLazyNeedCons.class, "restState", Object.class);
+  private Object firstState, restState;
+
+  NodeLazyNeedCons(Node fst, Node rst, Frame f) { super(fst, rst, f); }
+  public JamVal first() {
+    Object s = FIRST.getAcquire(this);
+    return s instanceof JamVal ? (JamVal) s : forceFirst();
+  }
+  public JamList rest() {
+    Object s = REST.getAcquire(this);
+    return s instanceof JamList ? (JamList) s : forceRest();
+  }
+
+  private JamVal forceFirst() {
+    Object s = NeedState.claim(this, FIRST);
+    if (s instanceof JamVal) return (JamVal) s;
+    if (s != null) return firstExp.execute(frame);  // first demands itself
+    JamVal v = null;
+    try {
+      v = firstExp.execute(frame);
+      firstExp = null;
+      if (restExp == null) frame = null;
+      return v;
+    }
+    finally { NeedState.release(this, FIRST, v); }
+  }
+  private JamList forceRest() {
+    Object s = NeedState.claim(this, REST);
+    if (s instanceof JamList) return (JamList) s;
+    if (s != null) return checkList(restExp.execute(frame));  // rest demands itself
+    JamList l = null;
+    try {
+      l = checkList(restExp.execute(frame));
+      restExp = null;
+      if (firstExp == null) frame = null;
+      return l;
+    }
+    finally { NeedState.release(this, REST, l); }
+  }
+}
+
+/** Visitor that compiles a resolved AST (see Parser.parseAndResolve) into a Node.  A Compiler is specialized for one
+  * binding policy and one cons policy; the nine instances VALUE_VALUE ... NEED_NEED correspond to the nine forms of
+  * evaluation supported by Interpreter. */
+class Compiler implements ASTVisitor<Node> {
+
+  /** Constructs the nodes that bind the parameters of Maps and the variables of Lets. */
+  interface BindingPolicy {
+    Node newApp(App a, Node rator, Node[] args, ConsPolicy cp);
+    /** Constructs the node for a Let; recursive is false if no right-hand side references the variables of the Let.
+      * strict lists the variables that body is strict in (see strictVars); it is empty if recursive is true. */
+    Node newLet(Variable[] vars, Node[] rhss, Node body, boolean recursive, int[] strict);
+  }
+
+  /** Constructs the nodes for applications of cons. */
+  interface ConsPolicy {
+    Node newCons(Node first, Node rest);
+  }
+
+  static final BindingPolicy CALL_BY_VALUE = new BindingPolicy() {
+    public Node newApp(App a, Node rator, Node[] args, ConsPolicy cp) { return new ValueAppNode(a, rator, args, cp); }
+    public Node newLet(Variable[] vars, Node[] rhss, Node body, boolean recursive, int[] strict) {
+      if (recursive) return new ValueLetRecNode(vars, rhss, body);
+      return new ValueLetNode(vars, rhss, body);
+    }
+  };
+
+  /** Call-by-value whose recursive Lets publish their bindings safely to other threads, for VALUE_SPECULATIVE. */
+  static final BindingPolicy CALL_BY_VALUE_PUBLISHED = new BindingPolicy() {
+    public Node newApp(App a, Node rator, Node[] args, ConsPolicy cp) { return new ValueAppNode(a, rator, args, cp); }
+    public Node newLet(Variable[] vars, Node[] rhss, Node body, boolean recursive, int[] strict) {
+      if (recursive) return new PublishedLetRecNode(vars, rhss, body);
+      return new ValueLetNode(vars, rhss, body);
+    }
+  };
+
+  static final BindingPolicy CALL_BY_NAME = new BindingPolicy() {
+    public Node newApp(App a, Node rator, Node[] args, ConsPolicy cp) { return new NameAppNode(a, rator, args, cp); }
+    public Node newLet(Variable[] vars, Node[] rhss, Node body, boolean recursive, int[] strict) {
+      return new NameLetNode(vars, rhss, body);
+    }
+  };
+
+  static final BindingPolicy CALL_BY_NEED = new BindingPolicy() {
+    public Node newApp(App a, Node rator, Node[] args, ConsPolicy cp) { return new NeedAppNode(a, rator, args, cp); }
+    public Node newLet(Variable[] vars, Node[] rhss, Node body, boolean recursive, int[] strict) {
+      return new NeedLetNode(vars, rhss, body, strict);
+    }
+  };
+
+  static final ConsPolicy EAGER = new ConsPolicy() {
+    public Node newCons(Node first, Node rest) { return new EagerConsNode(first, rest); }
+  };
+
+  static final ConsPolicy LAZYNAME = new ConsPolicy() {
+    public Node newCons(Node first, Node rest) { return new LazyNameConsNode(first, rest); }
+  };
+
+  static final ConsPolicy LAZYNEED = new ConsPolicy() {
+    public Node newCons(Node first, Node rest) { return new LazyNeedConsNode(first, rest); }
+  };
+
+  /** Lazy cons whose arguments are executed speculatively in parallel (see NodeSpeculativeCons). */
+  static final ConsPolicy SPECULATIVE = new ConsPolicy() {
+    public Node newCons(Node first, Node rest) { return new SpeculativeConsNode(first, rest); }
+  };
+
+  static final Compiler VALUE_VALUE = new Compiler(CALL_BY_VALUE, EAGER);
+  static final Compiler VALUE_NAME = new Compiler(CALL_BY_VALUE, LAZYNAME);
+  static final Compiler VALUE_NEED = new Compiler(CALL_BY_VALUE, LAZYNEED);
+  static final Compiler NAME_VALUE = new Compiler(CALL_BY_NAME, EAGER);
+  static final Compiler NAME_NAME = new Compiler(CALL_BY_NAME, LAZYNAME);
+  static final Compiler NAME_NEED = new Compiler(CALL_BY_NAME, LAZYNEED);
+  static final Compiler NEED_VALUE = new Compiler(CALL_BY_NEED, EAGER);
+  static final Compiler NEED_NAME = new Compiler(CALL_BY_NEED, LAZYNAME);
+  static final Compiler NEED_NEED = new Compiler(CALL_BY_NEED, LAZYNEED);
+  /** Speculative lazy cons is combined only with call-by-value, whose frames are filled in once, by the thread that
+    * creates them.  A Speculation reads a frame filled in before the Speculation was started, with one exception: a
+    * right-hand side of a recursive Let can start a Speculation that refers to a binding of the Let filled in later,
+    * so those bindings are published with release stores (see PublishedLetRecNode).  The program runs with a
+    * Cancellation of its own, which the Speculations it starts inherit; the Cancellation is cancelled when the
+    * program returns, so speculation it no longer needs stops (see Speculation). */
+  static final Compiler VALUE_SPECULATIVE = new Compiler(CALL_BY_VALUE_PUBLISHED, SPECULATIVE) {
+    JamVal run(AST prog) {
+      Cancellation token = new Cancellation(Cancellation.current());
+      Cancellation saved = token.install();
+      try { return super.run(prog); }
+      finally {
+        Cancellation.restore(saved);
+        token.cancel();
+      }
+    }
+  };
+
+  /** The names of the nine forms of evaluation, as in the Interpreter methods valueValue ... needNeed. */
+  static final String[] MODES = {
+    "valueValue", "valueName", "valueNeed", "nameValue", "nameName", "nameNeed", "needValue", "needName", "needNeed"
+  };
+
+  /** The Compilers for MODES. */
+  private static final Compiler[] COMPILERS = {
+    VALUE_VALUE, VALUE_NAME, VALUE_NEED, NAME_VALUE, NAME_NAME, NAME_NEED, NEED_VALUE, NEED_NAME, NEED_NEED
+  };
+
+  /** Returns the Compiler for the form of evaluation named mode; throws an IllegalArgumentException if mode is not
+    * in MODES. */
+  static Compiler forMode(String mode) {
+    int i = Arrays.asList(MODES).indexOf(mode);
+    if (i < 0) throw new IllegalArgumentException("unknown form of evaluation " + mode);
+    return COMPILERS[i];
+  }
+
+  BindingPolicy bindingPolicy;
+  ConsPolicy consPolicy;
+
+  Compiler(BindingPolicy bp, ConsPolicy cp) { bindingPolicy = bp; consPolicy = cp; }
+
+  /** Compiles the resolved program prog. */
+  Node compile(AST prog) { return prog.accept(this); }
+
+  /** Compiles and executes the resolved program prog. */
+  JamVal run(AST prog) { return compile(prog).execute(null); }
+
+  /** Compiles an array of ASTs. */
+  Node[] compile(AST[] asts) {
+    int n = asts.length;
+    Node[] nodes = new Node[n];
+    for (int i = 0; i < n; i++) nodes[i] = asts[i].accept(this);
+    return nodes;
+  }
+
+  /* Visitor methods. */
+
+  public Node forBoolConstant(BoolConstant b) { return new ConstNode(b); }
+  public Node forIntConstant(IntConstant i) { return new ConstNode(i); }
+  public Node forEmptyConstant(EmptyConstant n) { return new ConstNode(JamEmpty.ONLY); }
+
+  public Node forVariable(Variable v) {
+    if (! (v instanceof LexicalVariable)) throw new EvalException("variable " + v + " has not been resolved");
+    LexicalVariable lv = (LexicalVariable) v;
+    if (lv.depth() == 0) return new LocalNode(lv.index());
+    return new VarNode(lv.depth(), lv.index());
+  }
+
+  public Node forPrimFun(PrimFun f) { return new ConstNode(f); }
+
+  public Node forUnOpApp(UnOpApp u) {
+    UnOp op = u.rator();
+    Node arg = u.arg().accept(this);
+    if (op == UnOpPlus.ONLY) return new UnOpPlusNode(arg);
+    if (op == UnOpMinus.ONLY) return new UnOpMinusNode(arg);
+    return new OpTildeNode(arg);
+  }
+
+  public Node forBinOpApp(BinOpApp b) {
+    BinOp op = b.rator();
+    Node l = b.arg1().accept(this);
+    Node r = b.arg2().accept(this);
+    if (op == BinOpPlus.ONLY) return new PlusNode(l, r);
+    if (op == BinOpMinus.ONLY) return new MinusNode(l, r);
+    if (op == OpTimes.ONLY) return new TimesNode(l, r);
+    if (op == OpDivide.ONLY) return new DivideNode(l, r);
+    if (op == OpLessThan.ONLY) return new LessThanNode(l, r);
+    if (op == OpLessThanEquals.ONLY) return new LessThanEqualsNode(l, r);
+    if (op == OpGreaterThan.ONLY) return new GreaterThanNode(l, r);
+    if (op == OpGreaterThanEquals.ONLY) return new GreaterThanEqualsNode(l, r);
+    boolean ints = ArithEvaluator.isArith(b.arg1()) && ArithEvaluator.isArith(b.arg2());
+    if (op == OpEquals.ONLY) return new EqualsNode(l, r, ints);
+    if (op == OpNotEquals.ONLY) return new NotEqualsNode(l, r, ints);
+    if (op == OpAnd.ONLY) return new AndNode(l, r);
+    return new OrNode(l, r);
+  }
+
+  public Node forApp(App a) {
+    AST rator = a.rator();
+    Node[] args = compile(a.args());
+    if (rator instanceof PrimFun) {
+      if (rator == FirstPrim.ONLY && args.length == 1) return new FirstNode(args[0]);
+      if (rator == RestPrim.ONLY && args.length == 1) return new RestNode(args[0]);
+      if (rator == ConsPrim.ONLY && args.length == 2) return consPolicy.newCons(args[0], args[1]);
+      return new PrimAppNode((PrimFun) rator, args, consPolicy);
+    }
+    return bindingPolicy.newApp(a, rator.accept(this), args, consPolicy);
+  }
+
+  public Node forMap(Map m) {
+    Node body = m.body().accept(this);
+    body.markTail();
+    return new MapNode(m, body, strictVars(m.vars(), m.body()));
+  }
+
+  public Node forIf(If i) { return new IfNode(i.test().accept(this), i.conseq().accept(this), i.alt().accept(this)); }
+
+  public Node forLet(Let l) {
+    Variable[] vars = l.vars();
+    return bindingPolicy.newLet(vars, compile(l.exps()), l.body().accept(this), isRecursive(l), strictVars(l));
+  }
+
+  /** Returns true if a right-hand side of l references a variable introduced by l. */
+  static boolean isRecursive(Let l) {
+    OccursVisitor occurs = new OccursVisitor(l.vars());
+    for (AST e: l.exps()) if (e.accept(occurs)) return true;
+    return false;
+  }
+
+  /* Support for strictness. */
+
+  /** The empty list of strict variables. */
+  static final int[] NOT_STRICT = new int[0];
+
+  /** Returns the indices of the variables in vars that body is strict in, in the order in which body demands them,
+    * when compiled under call-by-need; returns NOT_STRICT under the other binding policies.  Only the variables that
+    * body demands before it performs any operation that might fail or diverge are included, so evaluating their
+    * bindings first, in this order, changes neither the value of a program nor the error it reports. */
+  int[] strictVars(Variable[] vars, AST body) {
+    if (bindingPolicy != CALL_BY_NEED) return NOT_STRICT;
+    return strictVars(vars, body, consPolicy == EAGER);
+  }
+
+  /** Returns the indices of the variables of l that its body is strict in, as strictVars(l.vars(), l.body()) does;
+    * returns NOT_STRICT if l is recursive. */
+  int[] strictVars(Let l) {
+    if (bindingPolicy != CALL_BY_NEED) return NOT_STRICT;
+    return letStrictness(l, consPolicy == EAGER).strict;
+  }
+
+  /** Returns the indices of the variables in vars that body is strict in under call-by-need, where eagerCons tells
+    * whether the arguments of cons are evaluated immediately. */
+  static int[] strictVars(Variable[] vars, AST body, boolean eagerCons) {
+    return strictVars(vars, demand(body, eagerCons).vars);
+  }
+
+  /** Returns the indices in vars of the longest prefix of demanded that consists of variables in vars. */
+  private static int[] strictVars(Variable[] vars, Variable[] demanded) {
+    int n = 0;
+    int[] result = new int[demanded.length];
+    for (Variable v: demanded) {
+      int i = indexOf(vars, v);
+      if (i < 0) break;
+      result[n++] = i;
+    }
+    return n == 0 ? NOT_STRICT : Arrays.copyOf(result, n);
+  }
+
+  /** Returns the index of v in vars, or -1. */
+  private static int indexOf(Variable[] vars, Variable v) {
+    for (int i = 0; i < vars.length; i++) if (vars[i] == v) return i;
+    return -1;
+  }
+
+  /** Returns the Demand made by a under call-by-need, where eagerCons tells whether the arguments of cons are
+    * evaluated immediately. */
+  static Demand demand(AST a, boolean eagerCons) {
+    DemandVisitor dv = new DemandVisitor(eagerCons);
+    boolean completes = a.accept(dv);
+    return new Demand(dv.demanded.toArray(new Variable[dv.demanded.size()]), completes);
+  }
+
+  /** Returns the strictness of l under call-by-need, where eagerCons tells whether the arguments of cons are
+    * evaluated immediately.  It is computed once for each Let and cons policy and cached in l; computing it visits the
+    * body of l, but takes the strictness of the Lets nested in l from their caches, so analyzing all the Lets of a
+    * program takes time linear in its size. */
+  static LetStrictness letStrictness(Let l, boolean eagerCons) {
+    LetStrictness ls = eagerCons ? l.eagerStrictness : l.lazyStrictness;
+    if (ls == null) {
+      ls = new LetStrictness(l, eagerCons);
+      if (eagerCons) l.eagerStrictness = ls;
+      else l.lazyStrictness = ls;
+    }
+    return ls;
+  }
+
+  /** The demands that the evaluation of an AST makes under call-by-need: vars lists, in order and without repetition,
+    * the variables whose values the evaluation demands before it performs an operation that might fail or diverge,
+    * and completes tells whether the evaluation must complete once they have been evaluated.  A demand for a variable
+    * whose binding is not known to be evaluated might itself fail or diverge, so only the prefix of vars that a caller
+    * knows about describes what the evaluation is strict in. */
+  static final class Demand {
+    final Variable[] vars;
+    final boolean completes;
+    Demand(Variable[] v, boolean c) { vars = v; completes = c; }
+  }
+
+  /** The strictness of a Let: strict lists the indices of the variables whose right-hand sides are evaluated before
+    * the body (see NeedLetNode), and demand is the Demand made by the whole Let, seen from outside it.  Its fields are
+    * final, so a LetStrictness cached in a Let shared between threads is seen fully initialized. */
+  static final class LetStrictness {
+    final int[] strict;
+    final Demand demand;
+
+    LetStrictness(Let l, boolean eagerCons) {
+      Variable[] lvars = l.vars();
+      AST[] exps = l.exps();
+      Demand body = demand(l.body(), eagerCons);
+      ArrayList<Variable> demanded = new ArrayList<Variable>();
+      boolean[] evaluated = new boolean[lvars.length];
+      if (isRecursive(l)) strict = NOT_STRICT;
+      else {
+        strict = strictVars(lvars, body.vars);
+        /* The right-hand sides that the body is strict in are evaluated first, in order. */
+        for (int i: strict) {
+          Demand rhs = demand(exps[i], eagerCons);
+          for (Variable v: rhs.vars) if (! demanded.contains(v)) demanded.add(v);
+          if (! rhs.completes) {
+            demand = toDemand(demanded, false);
+            return;
+          }
+          evaluated[i] = true;
+        }
+      }
+      /* A variable of l that has not been evaluated is unknown outside l, so the demands seen from outside stop
+       * there; the variables of l that have been evaluated make no further demands. */
+      for (Variable v: body.vars) {
+        int i = indexOf(lvars, v);
+        if (i < 0) {
+          if (! demanded.contains(v)) demanded.add(v);
+        }
+        else if (! evaluated[i]) {
+          demand = toDemand(demanded, false);
+          return;
+        }
+      }
+      demand = toDemand(demanded, body.completes);
+    }
+
+    private static Demand toDemand(ArrayList<Variable> vars, boolean completes) {
+      return new Demand(vars.toArray(new Variable[vars.size()]), completes);
+    }
+  }
+
+  /* Support for primitive functions. */
+
+  /** Applies the primitive function prim to args executed in f, constructing lists according to cp. */
+  static JamVal applyPrim(PrimFun prim, Node[] args, Frame f, ConsPolicy cp) {
+    int n = args.length;
+    if (prim == ConsPrim.ONLY) {
+      if (n != 2) throw primArityError(prim, n);
+      return cp.newCons(args[0], args[1]).execute(f);
+    }
+    if (n != 1) throw primArityError(prim, n);
+    JamVal val = args[0].execute(f);
+    if (prim == FunctionPPrim.ONLY) return BoolConstant.toBoolConstant(val instanceof JamFun);
+    if (prim == NumberPPrim.ONLY) return BoolConstant.toBoolConstant(val instanceof IntConstant);
+    if (prim == ListPPrim.ONLY) return BoolConstant.toBoolConstant(val instanceof JamList);
+    if (prim == ConsPPrim.ONLY) return BoolConstant.toBoolConstant(val instanceof JamCons);
+    if (prim == EmptyPPrim.ONLY) return BoolConstant.toBoolConstant(val instanceof JamEmpty);
+    if (prim == ArityPrim.ONLY) {
+      if (val instanceof JamClosure) return IntConstant.of(((JamClosure) val).body().vars().length);
+      if (val instanceof PrimFun) return IntConstant.of(val == ConsPrim.ONLY ? 2 : 1);
+      throw new EvalException("arity applied to argument " + val);
+    }
+    if (prim == FirstPrim.ONLY) return consArg(prim, val).first();
+    return consArg(prim, val).rest();
+  }
+
+  /** Returns val, the argument of prim, if it is a JamCons. */
+  static JamCons consArg(PrimFun prim, JamVal val) {
+    if (val instanceof JamCons) return (JamCons) val;
+    throw new EvalException("Primitive function `" + prim + "' applied to argument " + val + " that is not a JamCons");
+  }
+
+  static EvalException primArityError(PrimFun prim, int n) {
+    return new EvalException("Primitive function `" + prim + "' applied to " + n + " arguments");
+  }
+
+  /** Visitor that records, in order, the variables demanded by the evaluation of an AST under call-by-need before
+    * the first operation that might fail or diverge: a type check, an arity check, or the application of a closure
+    * (see Demand).  Each visitor method returns true if evaluation of the AST must complete once the variables it
+    * demands have been evaluated.  The order of evaluation is that of the Nodes built by Compiler; for example, an
+    * arithmetic operator checks its left operand before evaluating its right one, so x + y demands x but not y before
+    * it might fail.  The demands of a nested Let are taken from its cached LetStrictness. */
+  static class DemandVisitor implements ASTVisitor<Boolean> {
+    /** True if the arguments of cons are evaluated immediately. */
+    boolean eagerCons;
+    /** The variables demanded so far, without repetition. */
+    ArrayList<Variable> demanded = new ArrayList<Variable>();
+
+    DemandVisitor(boolean ec) { eagerCons = ec; }
+
+    public Boolean forBoolConstant(BoolConstant b) { return true; }
+    public Boolean forIntConstant(IntConstant i) { return true; }
+    public Boolean forEmptyConstant(EmptyConstant n) { return true; }
+    public Boolean forVariable(Variable v) {
+      Variable var = v.var();
+      if (! demanded.contains(var)) demanded.add(var);
+      return true;
+    }
+    public Boolean forPrimFun(PrimFun f) { return true; }
+    public Boolean forUnOpApp(UnOpApp u) {
+      u.arg().accept(this);
+      return false;
+    }
+    public Boolean forBinOpApp(BinOpApp b) {
+      BinOp op = b.rator();
+      boolean ints = ArithEvaluator.isArith(b.arg1()) && ArithEvaluator.isArith(b.arg2());
+      if ((op == OpEquals.ONLY || op == OpNotEquals.ONLY) && ! ints) {
+        if (b.arg1().accept(this)) b.arg2().accept(this);  // comparing lazy lists may force suspensions
+      }
+      else b.arg1().accept(this);
+      return false;
+    }
+    public Boolean forApp(App a) {
+      AST rator = a.rator();
+      AST[] args = a.args();
+      if (rator == ConsPrim.ONLY) {
+        if (args.length != 2) return false;
+        if (! eagerCons) return true;
+        if (args[0].accept(this)) args[1].accept(this);  // the second argument must be a list
+        return false;
+      }
+      if (rator instanceof PrimFun) {
+        if (args.length != 1) return false;
+        boolean completes = args[0].accept(this);
+        return completes && (rator == FunctionPPrim.ONLY || rator == NumberPPrim.ONLY || rator == ListPPrim.ONLY ||
+                             rator == ConsPPrim.ONLY || rator == EmptyPPrim.ONLY);
+      }
+      rator.accept(this);
+      return false;
+    }
+    public Boolean forMap(Map m) { return true; }
+    public Boolean forIf(If i) {
+      i.test().accept(this);
+      return false;
+    }
+    public Boolean forLet(Let l) {
+      Demand d = letStrictness(l, eagerCons).demand;
+      for (Variable v: d.vars) if (! demanded.contains(v)) demanded.add(v);
+      return d.completes;
+    }
+  }
+
+  /** Visitor that determines whether an AST contains an occurrence of one of the variables in vars. Shadowing is
+    * ignored, so the answer is conservative. */
+  static class OccursVisitor implements ASTVisitor<Boolean> {
+    Variable[] vars;
+    OccursVisitor(Variable[] v) { vars = v; }
+
+    private Boolean any(AST[] asts) {
+      for (AST a: asts) if (a.accept(this)) return true;
+      return false;
+    }
+
+    public Boolean forBoolConstant(BoolConstant b) { return false; }
+    public Boolean forIntConstant(IntConstant i) { return false; }
+    public Boolean forEmptyConstant(EmptyConstant n) { return false; }
+    public Boolean forVariable(Variable v) {
+      Variable var = v.var();
+      for (Variable x: vars) if (x == var) return true;
+      return false;
+    }
+    public Boolean forPrimFun(PrimFun f) { return false; }
+    public Boolean forUnOpApp(UnOpApp u) { return u.arg().accept(this); }
+    public Boolean forBinOpApp(BinOpApp b) { return b.arg1().accept(this) || b.arg2().accept(this); }
+    public Boolean forApp(App a) { return a.rator().accept(this) || any(a.args()); }
+    public Boolean forMap(Map m) { return m.body().accept(this); }
+    public Boolean forIf(If i) { return i.test().accept(this) || i.conseq().accept(this) || i.alt().accept(this); }
+    public Boolean forLet(Let l) { return any(l.exps()) || l.body().accept(this); }
+  }
+}
@@ -0,0 +1,1022 @@
+import junit.framework.TestCase;
+import java.io.*;
+import java.util.concurrent.CountDownLatch;
+
+/** Tests for the machinery that supports fast evaluation of Jam programs: lexical addressing, environment frames,
+  * and the alternative evaluation engines.  The Interpreter API itself is tested in Assign3Test. */
+public class EngineTest extends TestCase {
+
+  public EngineTest (String name) { super(name); }
+
+  /** Parses, checks, and resolves program. */
+  private AST resolve(String program) {
+    return new Parser(new StringReader(program)).parseAndResolve();
+  }
+
+  /** Parses, checks, optimizes, and resolves program. */
+  private AST optimize(String program) {
+    return new Parser(new StringReader(program)).parseAndOptimize();
+  }
+
+  public void testLexicalAddresses() {
+    try {
+      /* let x := 1; y := 2; in map z to x + z; resolves x to frame 1, slot 0, and z to frame 0, slot 0 */
+      Let let = (Let) resolve("let x := 1; y := 2; in map z to x + z");
+      BinOpApp sum = (BinOpApp) ((Map) let.body()).body();
+      LexicalVariable x = (LexicalVariable) sum.arg1();
+      LexicalVariable z = (LexicalVariable) sum.arg2();
+      assertEquals("x depth", 1, x.depth());
+      assertEquals("x index", 0, x.index());
+      assertEquals("x offset", 2, x.offset());
+      assertEquals("z depth", 0, z.depth());
+      assertEquals("z index", 0, z.index());
+      assertEquals("z offset", 0, z.offset());
+      assertSame("x denotes the binder", let.defs()[0].lhs(), x.var());
+      assertEquals("resolved program prints like the original", "let x := 1; y := 2; in map z to (x + z)",
+                   let.toString());
+    }
+    catch(Exception e) {
+//      e.printStackTrace();
+      fail("lexicalAddresses threw " + e);
+    }
+  } //end of func
+
+  public void testShadowing() {
+    try {
+      Map outer = (Map) resolve("map x to let x := 3; in x");
+      Let inner = (Let) outer.body();
+      LexicalVariable x = (LexicalVariable) inner.body();
+      assertEquals("x depth", 0, x.depth());
+      assertSame("x denotes the inner binder", inner.defs()[0].lhs(), x.var());
+    }
+    catch(Exception e) {
+//      e.printStackTrace();
+      fail("shadowing threw " + e);
+    }
+  } //end of func
+
+  /** A call-by-value Binding for tests; the Binding classes in Interpreter are left to the assignment. */
+  private static Binding valueBinding(Variable v, JamVal jv) {
+    return new Binding(v, jv) { public void setBinding(Suspension s) { value = s.eval(); } };
+  }
+
+  public void testFrames() {
+    try {
+      /* The Let frame binds x and y; the closure captures only y; the application frame binds z. */
+      Let let = (Let) resolve("let x := 1; y := 2; in map z to y + z");
+      Map map = (Map) let.body();
+      BinOpApp sum = (BinOpApp) map.body();
+      Variable[] letVars = let.vars();
+      Binding[] bindings = new Binding[] { valueBinding(letVars[0], new IntConstant(1)), 
+        valueBinding(letVars[1], new IntConstant(2)) };
+      Frame letFrame = new BindingFrame(letVars, bindings, null);
+      Frame captured = letFrame.capture(map);
+      assertEquals("captured size", 1, captured.size());
+      assertSame("captured y", letVars[1], captured.vars()[0]);
+      Frame mapFrame = new ValueFrame(map.vars(), new JamVal[] { new IntConstant(40) }, captured);
+      assertEquals("y", new IntConstant(2), mapFrame.lookup((Variable) sum.arg1()));
+      assertEquals("z", new IntConstant(40), mapFrame.lookup((Variable) sum.arg2()));
+      assertEquals("y by name", new IntConstant(2), mapFrame.lookup(letVars[1]));
+      assertSame("ancestor", captured, mapFrame.ancestor(1));
+    }
+    catch(Exception e) {
+//      e.printStackTrace();
+      fail("frames threw " + e);
+    }
+  } //end of func
+
+  public void testFreeVars() {
+    try {
+      /* The inner map captures w from the outer map's parameters and x, which the outer map must capture too. */
+      Let let = (Let) resolve("let x := 1; y := 2; in map w to map v to x + w + v");
+      Map outer = (Map) let.body();
+      Map inner = (Map) outer.body();
+      assertEquals("outer captures", "x", ToString.toString(outer.capturedVars(), ","));
+      assertEquals("inner captures", "x,w", ToString.toString(inner.capturedVars(), ","));
+      LexicalVariable innerX = inner.freeVars()[0];
+      assertEquals("x relative to outer body", 1, innerX.depth());
+      assertEquals("x slot in outer captured frame", 0, innerX.index());
+      LexicalVariable innerW = inner.freeVars()[1];
+      assertEquals("w relative to outer body", 0, innerW.depth());
+    }
+    catch(Exception e) {
+//      e.printStackTrace();
+      fail("freeVars threw " + e);
+    }
+  } //end of func
+
+  public void testPendingSlot() {
+    try {
+      Let let = (Let) resolve("let a := a; in a");
+      ValueFrame frame = new ValueFrame(let.vars(), null);
+      frame.lookup((Variable) let.body());
+      fail("pendingSlot did not throw EvalException");
+    }
+    catch (EvalException e) {  /* Success; EvalException thrown */ }
+    catch(Exception e) {
+//      e.printStackTrace();
+      fail("pendingSlot threw " + e);
+    }
+  } //end of func
+
+  public void testLexer() {
+    try {
+      Lexer in = new Lexer(new StringReader("let x := cons?; in x // comment\n <= 2147483647 x3.0 x"));
+      assertSame("let", Lexer.LET, in.readToken());
+      Token x = in.readToken();
+      assertEquals("x", "x", x.toString());
+      assertSame(":=", Lexer.BIND, in.readToken());
+      assertSame("cons?", ConsPPrim.ONLY, in.peek());
+      assertSame("cons?", ConsPPrim.ONLY, in.readToken());
+      assertSame(";", SemiColon.ONLY, in.readToken());
+      assertSame("in", Lexer.IN, in.readToken());
+      assertSame("x is unique", x, in.readToken());
+      assertSame("<=", Lexer.LESS_THAN_EQUALS, in.readToken());
+      assertEquals("max int", new IntConstant(Integer.MAX_VALUE), in.readToken());
+      assertEquals("x3.0", "x3.0", in.readToken().toString());
+      assertSame("x is still unique", x, in.readToken());
+      assertSame("eof", EndOfFile.ONLY, in.readToken());
+    }
+    catch(Exception e) {
+//      e.printStackTrace();
+      fail("lexer threw " + e);
+    }
+  } //end of func
+
+  public void testLexerOverflow() {
+    try {
+      new Lexer(new StringReader("2147483648")).readToken();
+      fail("lexerOverflow did not throw ParseException");
+    }
+    catch (ParseException e) {  /* Success; ParseException thrown */ }
+    catch(Exception e) {
+//      e.printStackTrace();
+      fail("lexerOverflow threw " + e);
+    }
+  } //end of func
+
+  public void testFileInput() {
+    try {
+      File file = File.createTempFile("prog", ".jam");
+      file.deleteOnExit();
+      Writer out = new FileWriter(file);
+      out.write("let x := 3; // the argument\n\tf := map y to y * y;\nin f(x)\n");
+      out.close();
+      assertEquals("file", "let x := 3; f := map y to (y * y); in f(x)", new Parser(file.getPath()).parse().toString());
+      final boolean[] closed = { false };
+      Reader reader = new StringReader("1 + 2") { public void close() { closed[0] = true; } };
+      Interpreter interp = new Interpreter(reader);
+      assertTrue("reader closed", closed[0]);
+      assertEquals("parser", "(1 + 2)", interp.parser.parse().toString());
+    }
+    catch(Exception e) {
+//      e.printStackTrace();
+      fail("fileInput threw " + e);
+    }
+  } //end of func
+
+  public void testIntConstantCache() {
+    try {
+      assertSame("small", IntConstant.of(42), IntConstant.of(42));
+      assertSame("negative", IntConstant.of(-1), IntConstant.of(-1));
+      assertSame("lexer", IntConstant.of(7), new Lexer(new StringReader("7")).readToken());
+      assertEquals("large", IntConstant.of(Integer.MAX_VALUE), IntConstant.of(Integer.MAX_VALUE));
+      assertEquals("value", -5000, IntConstant.of(-5000).value());
+    }
+    catch(Exception e) {
+//      e.printStackTrace();
+      fail("intConstantCache threw " + e);
+    }
+  } //end of func
+
+  /** Visitor that evaluates the constants and operator applications of an AST, which is all ArithEvaluator needs
+    * from an evaluator in the tests below; the EvalVisitor in Interpreter is left to the assignment. */
+  private static final ASTVisitor<JamVal> LEAF_EVALUATOR = new ASTVisitor<JamVal>() {
+    public JamVal forBoolConstant(BoolConstant b) { return b; }
+    public JamVal forIntConstant(IntConstant i) { return i; }
+    public JamVal forEmptyConstant(EmptyConstant n) { return JamEmpty.ONLY; }
+    public JamVal forVariable(Variable v) { throw new UnsupportedOperationException("variable " + v); }
+    public JamVal forPrimFun(PrimFun f) { return f; }
+    public JamVal forUnOpApp(UnOpApp u) { return ArithEvaluator.evalUnOp(u, this); }
+    public JamVal forBinOpApp(BinOpApp b) { return ArithEvaluator.evalBinOp(b, this); }
+    public JamVal forApp(App a) { throw new UnsupportedOperationException("application " + a); }
+    public JamVal forMap(Map m) { throw new UnsupportedOperationException("map " + m); }
+    public JamVal forIf(If i) { throw new UnsupportedOperationException("if " + i); }
+    public JamVal forLet(Let l) { throw new UnsupportedOperationException("let " + l); }
+  };
+
+  public void testUnboxedArith() {
+    try {
+      ASTVisitor<JamVal> ev = LEAF_EVALUATOR;
+      BinOpApp sum = (BinOpApp) resolve("(1 + 2) * -3 - 10 / 4");
+      assertEquals("evalInt", -4, ArithEvaluator.evalInt(sum, sum.rator(), ev));
+      assertEquals("evalBinOp", IntConstant.of(-4), ArithEvaluator.evalBinOp(sum, ev));
+      assertTrue("comparison", ArithEvaluator.evalBool(resolve("1 + 1 < 3 & ~(2 = 3)"), null, ev));
+      assertFalse("mixed equality", ArithEvaluator.evalBool(resolve("1 = empty"), null, ev));
+      BinOpApp test = (BinOpApp) resolve("1 + true");
+      ArithEvaluator.evalInt(test, test.rator(), ev);
+      fail("unboxedArith did not throw EvalException");
+    }
+    catch (EvalException e) {
+      assertEquals("message", "Binary operator `+' applied to non-integer true", e.getMessage());
+    }
+    catch(Exception e) {
+//      e.printStackTrace();
+      fail("unboxedArith threw " + e);
+    }
+  } //end of func
+
+  public void testDivideByZero() {
+    try {
+      ArithEvaluator.evalBinOp((BinOpApp) resolve("1 / (2 - 2)"), LEAF_EVALUATOR);
+      fail("divideByZero did not throw EvalException");
+    }
+    catch (EvalException e) {  /* Success; EvalException thrown */ }
+    catch(Exception e) {
+//      e.printStackTrace();
+      fail("divideByZero threw " + e);
+    }
+  } //end of func
+
+  /** Checks that all nine compiled forms of evaluation of program produce answer. */
+  private void compiledCheck(String name, String answer, String program) {
+    Interpreter interp = new Interpreter(new StringReader(program));
+    assertEquals("compiled value-value " + name, answer, interp.compiledValueValue().toString());
+    assertEquals("compiled need-value " + name, answer, interp.compiledNeedValue().toString());
+    lazyCompiledCheck(name, answer, program);
+  }
+
+  /** Checks that the compiled forms of evaluation that have lazy cons produce answer. */
+  private void lazyCompiledCheck(String name, String answer, String program) {
+    Interpreter interp = new Interpreter(new StringReader(program));
+    assertEquals("compiled value-name " + name, answer, interp.compiledValueName().toString());
+    assertEquals("compiled value-need " + name, answer, interp.compiledValueNeed().toString());
+    assertEquals("compiled name-name " + name, answer, interp.compiledNameName().toString());
+    assertEquals("compiled name-need " + name, answer, interp.compiledNameNeed().toString());
+    assertEquals("compiled need-name " + name, answer, interp.compiledNeedName().toString());
+    assertEquals("compiled need-need " + name, answer, interp.compiledNeedNeed().toString());
+  }
+
+  public void testCompiled() {
+    try {
+      compiledCheck("arith", "18", "2 * 3 + 12");
+      compiledCheck("prim", "number?", "number?");
+      compiledCheck("letRec", "(1 2 3 1 2 3)",
+                    "let append := map x,y to if empty?(x) then y else cons(first(x), append(rest(x), y)); " +
+                    "    l := cons(1,cons(2,cons(3,empty))); " +
+                    "in append(l,l)");
+      compiledCheck("closures", "(7 8)",
+                    "let add := map x to map y to x + y; inc := add(1); in cons(inc(6), cons((add(5))(3), empty))");
+      compiledCheck("primAsValue", "(true 2 1)", 
+                    "let f := cons; g := arity; in f(number?(1), f(g(f), f(1, empty)))");
+      lazyCompiledCheck("lazyCons", "0", "let zeroes := cons(0,zeroes); in first(rest(zeroes))");
+      Interpreter interp = new Interpreter(new StringReader("let id := map x to x; in id = id"));
+      assertEquals("compiled value-value mapEquals", "true", interp.compiledValueValue().toString());
+      assertEquals("compiled name-value mapEquals", "false", interp.compiledNameValue().toString());
+    }
+    catch(Exception e) {
+//      e.printStackTrace();
+      fail("compiled threw " + e);
+    }
+  } //end of func
+
+  public void testCompiledForwardRef() {
+    try {
+      new Interpreter(new StringReader("let a := a; in a")).compiledNeedValue();
+      fail("compiledForwardRef did not throw EvalException");
+    }
+    catch (EvalException e) {  /* Success; EvalException thrown */ }
+    catch(Exception e) {
+//      e.printStackTrace();
+      fail("compiledForwardRef threw " + e);
+    }
+  } //end of func
+
+  /** Checks that the bytecode backend evaluates program to answer. */
+  private void bytecodeCheck(String name, String answer, String program) {
+    Interpreter interp = new Interpreter(new StringReader(program));
+    assertEquals("bytecode " + name, answer, interp.bytecodeValueValue().toString());
+  }
+
+  public void testBytecode() {
+    try {
+      bytecodeCheck("arith", "-4", "(1 + 2) * -3 - 10 / 4");
+      bytecodeCheck("bool", "true", "if 1 < 2 & ~(3 = 4) | false then 1 = 1 else false");
+      bytecodeCheck("letRec", "(1 2 3 1 2 3)",
+                    "let append := map x,y to if empty?(x) then y else cons(first(x), append(rest(x), y)); " +
+                    "    l := cons(1,cons(2,cons(3,empty))); " +
+                    "in append(l,l)");
+      bytecodeCheck("closures", "(7 8)",
+                    "let add := map x to map y to x + y; inc := add(1); in cons(inc(6), cons((add(5))(3), empty))");
+      bytecodeCheck("fib", "6765", "let fib := map n to if n < 2 then n else fib(n - 1) + fib(n - 2); in fib(20)");
+      bytecodeCheck("primAsValue", "(true 2 1)", "let f := cons; g := arity; in f(number?(1), f(g(f), f(1, empty)))");
+      bytecodeCheck("mapEquals", "true", "let id := map x to x; in id = id");
+    }
+    catch(Exception e) {
+//      e.printStackTrace();
+      fail("bytecode threw " + e);
+    }
+  } //end of func
+
+  public void testBytecodeError() {
+    try {
+      new Interpreter(new StringReader("let f := map x to x + 1; in f(true)")).bytecodeValueValue();
+      fail("bytecodeError did not throw EvalException");
+    }
+    catch (EvalException e) {
+      assertEquals("message", "Binary operator `+' applied to non-integer true", e.getMessage());
+    }
+    catch(Exception e) {
+//      e.printStackTrace();
+      fail("bytecodeError threw " + e);
+    }
+  } //end of func
+
+  /** A tail-recursive loop over a list of length n.  build forces acc on each iteration so that call-by-need
+    * bindings do not accumulate a chain of unevaluated suspensions. */
+  private static String loopProgram(int n) {
+    return "let build := map n, acc to if n = 0 then acc else if list?(acc) then build(n - 1, cons(n, acc)) else empty; " +
+           "    last := map l to if empty?(rest(l)) then first(l) else last(rest(l)); " +
+           "in last(build(" + n + ", empty))";
+  }
+
+  public void testTailCalls() {
+    try {
+      /* Call-by-name re-evaluates the argument of each iteration from the previous one, which is inherently
+       * recursive, so only a short loop is run in the call-by-name modes. */
+      String big = loopProgram(100000);
+      Interpreter interp = new Interpreter(new StringReader(big));
+      assertEquals("compiled value-value", "100000", interp.compiledValueValue().toString());
+      assertEquals("compiled value-name", "100000", interp.compiledValueName().toString());
+      assertEquals("compiled value-need", "100000", interp.compiledValueNeed().toString());
+      assertEquals("compiled need-value", "100000", interp.compiledNeedValue().toString());
+      assertEquals("compiled need-name", "100000", interp.compiledNeedName().toString());
+      assertEquals("compiled need-need", "100000", interp.compiledNeedNeed().toString());
+      assertEquals("bytecode value-value", "100000", interp.bytecodeValueValue().toString());
+      interp = new Interpreter(new StringReader(loopProgram(50)));
+      assertEquals("compiled name-value", "50", interp.compiledNameValue().toString());
+      assertEquals("compiled name-name", "50", interp.compiledNameName().toString());
+      assertEquals("compiled name-need", "50", interp.compiledNameNeed().toString());
+    }
+    catch(Exception e) {
+//      e.printStackTrace();
+      fail("tailCalls threw " + e);
+    }
+  } //end of func
+
+  /** Checks that all nine forms of evaluation by a CekMachine produce answer. */
+  private void cekCheck(String name, String answer, String program) {
+    Interpreter interp = new Interpreter(new StringReader(program));
+    assertEquals("cek value-value " + name, answer, interp.cekValueValue().toString());
+    assertEquals("cek name-value " + name, answer, interp.cekNameValue().toString());
+    assertEquals("cek need-value " + name, answer, interp.cekNeedValue().toString());
+    lazyCekCheck(name, answer, program);
+  }
+
+  /** Checks that the forms of evaluation by a CekMachine that have lazy cons produce answer. */
+  private void lazyCekCheck(String name, String answer, String program) {
+    Interpreter interp = new Interpreter(new StringReader(program));
+    assertEquals("cek value-name " + name, answer, interp.cekValueName().toString());
+    assertEquals("cek value-need " + name, answer, interp.cekValueNeed().toString());
+    assertEquals("cek name-name " + name, answer, interp.cekNameName().toString());
+    assertEquals("cek name-need " + name, answer, interp.cekNameNeed().toString());
+    assertEquals("cek need-name " + name, answer, interp.cekNeedName().toString());
+    assertEquals("cek need-need " + name, answer, interp.cekNeedNeed().toString());
+  }
+
+  public void testCek() {
+    try {
+      cekCheck("arith", "-4", "(1 + 2) * -3 - 10 / 4");
+      cekCheck("bool", "true", "if 1 < 2 & ~(3 = 4) | false then 1 = 1 else false");
+      cekCheck("letRec", "(1 2 3 1 2 3)",
+               "let append := map x,y to if empty?(x) then y else cons(first(x), append(rest(x), y)); " +
+               "    l := cons(1,cons(2,cons(3,empty))); " +
+               "in append(l,l)");
+      cekCheck("closures", "(7 8)",
+               "let add := map x to map y to x + y; inc := add(1); in cons(inc(6), cons((add(5))(3), empty))");
+      cekCheck("primAsValue", "(true 2 1)", "let f := cons; g := arity; in f(number?(1), f(g(f), f(1, empty)))");
+      lazyCekCheck("lazyCons", "0", "let zeroes := cons(0,zeroes); in first(rest(zeroes))");
+      Interpreter interp = new Interpreter(new StringReader("let id := map x to x; in id = id"));
+      assertEquals("cek value-value mapEquals", "true", interp.cekValueValue().toString());
+      assertEquals("cek name-value mapEquals", "false", interp.cekNameValue().toString());
+    }
+    catch(Exception e) {
+//      e.printStackTrace();
+      fail("cek threw " + e);
+    }
+  } //end of func
+
+  public void testCekDeepRecursion() {
+    try {
+      /* Non-tail recursion 200000 deep, and a chain of 200000 call-by-need suspensions each forcing the next. */
+      String sum = "let sum := map n to if n = 0 then 0 else n + sum(n - 1); in sum(200000)";
+      Interpreter interp = new Interpreter(new StringReader(sum));
+      assertEquals("cek value-value sum", "-1474736480", interp.cekValueValue().toString());
+      assertEquals("cek need-need sum", "-1474736480", interp.cekNeedNeed().toString());
+      String chain = "let count := map n, acc to if n = 0 then acc else count(n - 1, acc + 1); in count(200000, 0)";
+      interp = new Interpreter(new StringReader(chain));
+      assertEquals("cek need-value chain", "200000", interp.cekNeedValue().toString());
+    }
+    catch(Exception e) {
+//      e.printStackTrace();
+      fail("cekDeepRecursion threw " + e);
+    }
+  } //end of func
+
+  public void testCekError() {
+    try {
+      new Interpreter(new StringReader("let f := map x to if x = 0 then 1 / x else 1 + f(x - 1); in f(100000)")).cekValueValue();
+      fail("cekError did not throw EvalException");
+    }
+    catch (EvalException e) {
+      assertEquals("message", "Attempt to divide 1 by zero", e.getMessage());
+    }
+    catch(Exception e) {
+//      e.printStackTrace();
+      fail("cekError threw " + e);
+    }
+  } //end of func
+
+  /** Returns the JamList (0 1 ... n-1). */
+  private static JamList jamList(int n) {
+    JamList l = JamEmpty.ONLY;
+    for (int i = n - 1; i >= 0; i--) l = new JamCons(IntConstant.of(i), l);
+    return l;
+  }
+
+  public void testLongLists() {
+    try {
+      int n = 200000;
+      JamList l1 = jamList(n), l2 = jamList(n);
+      assertTrue("equals", l1.equals(l2));
+      assertFalse("not equals", l1.equals(((JamCons) l1).rest()));
+      assertEquals("hashCode", l1.hashCode(), l1.append(JamEmpty.ONLY).hashCode());
+      assertTrue("contains", l1.contains(IntConstant.of(n - 1)));
+      assertFalse("not contains", l1.contains(IntConstant.of(n)));
+      assertEquals("append", 2 * 1288890, l1.append(l2).toStringHelp().length());
+      assertEquals("toStringHelp", 1288890, l1.toStringHelp(n).length());
+      String s = l1.toString();
+      assertTrue("bounded toString", s.startsWith("(0 1 2 ") && s.endsWith(" 999 1000 ...)"));
+      assertEquals("short toString", "(0 1 2)", jamList(3).toString());
+      assertEquals("PureList toString", "(1 2)", new Empty<String>().cons("2").cons("1").toString());
+    }
+    catch(Exception e) {
+//      e.printStackTrace();
+      fail("longLists threw " + e);
+    }
+  } //end of func
+
+  public void testConstantFolding() {
+    try {
+      assertEquals("arith", "map x to (x * 5)", optimize("map x to x * (2 + 3)").toString());
+      assertEquals("if", "true", optimize("if 3 > 2 & ~false then number?(7 - -1) else 1 / 0").toString());
+      assertEquals("shortCircuit", "false", optimize("false & (1 / 0 = 2)").toString());
+      assertEquals("equals", "false", optimize("empty = 0").toString());
+      assertEquals("arity", "2", optimize("arity(map x, y to x)").toString());
+      assertEquals("first", "2", optimize("first(cons(1 + 1, empty))").toString());
+      assertEquals("rest", "cons(2, empty)", optimize("rest(cons(1, cons(2, empty)))").toString());
+      assertEquals("divideByZero", "(1 / 0)", optimize("1 / (3 - 3)").toString());
+      assertEquals("typeError", "(1 + true)", optimize("1 + ~false").toString());
+      assertEquals("restNotList", "rest(cons(1, 2))", optimize("rest(cons(1, 2))").toString());
+      Interpreter source = new Interpreter(new StringReader("(number?(empty))(cons(false, empty))"));
+      assertEquals("handout modes see the source", "(number?(empty))(cons(false, empty))", source.prog.toString());
+      assertEquals("engines see the folded program", "(false)(cons(false, empty))", source.optimized().toString());
+      Interpreter interp = new Interpreter(new StringReader("1 / (3 - 3)"));
+      interp.compiledValueValue();
+      fail("constantFolding did not throw EvalException");
+    }
+    catch (EvalException e) {
+      assertEquals("message", "Attempt to divide 1 by zero", e.getMessage());
+    }
+    catch(Exception e) {
+//      e.printStackTrace();
+      fail("constantFolding threw " + e);
+    }
+  } //end of func
+
+  public void testInlining() {
+    try {
+      assertEquals("inline", "((let x := 2; in (x + 1)) * (let x := 3; in (x + 1)))",
+                   optimize("let f := map x to x + 1; in f(2) * f(3)").toString());
+      assertEquals("beta", "let x := 1; y := 2; in (x + y)", optimize("(map x, y to x + y)(1, 2)").toString());
+      assertEquals("deadDefs", "3", optimize("let g := map y to y; h := 5; in 3").toString());
+      assertEquals("effectfulDef", "let a := (1 / 0); in 3", optimize("let a := 1 / 0; in 3").toString());
+      assertEquals("recursive", "let fact := map n to if (n = 0) then 1 else (n * fact((n - 1))); in fact(5)",
+                   optimize("let fact := map n to if n = 0 then 1 else n * fact(n - 1); in fact(5)").toString());
+      assertEquals("capture", "let x := 1; in (map x to x)(x)", optimize("let x := 1; in (map x to x)(x)").toString());
+      assertEquals("shadowed", "let f := map x to x; in map f to f(1)",
+                   optimize("let f := map x to x; in map f to f(1)").toString());
+      cekCheck("inlined", "12", "let f := map x to x + 1; in f(2) * f(3)");
+      compiledCheck("inlined", "12", "let f := map x to x + 1; in f(2) * f(3)");
+    }
+    catch(Exception e) {
+//      e.printStackTrace();
+      fail("inlining threw " + e);
+    }
+  } //end of func
+
+  /** Returns the indices of the parameters that the body of the Map program is strict in under call-by-need. */
+  private String strictness(String program) {
+    Map m = (Map) resolve(program);
+    return java.util.Arrays.toString(Compiler.strictVars(m.vars(), m.body(), false));
+  }
+
+  public void testStrictness() {
+    try {
+      assertEquals("both", "[0, 1]", strictness("map x, y to x = y"));
+      assertEquals("order", "[1, 0]", strictness("map x, y to y = x"));
+      assertEquals("leftOnly", "[1]", strictness("map x, y to y + x"));
+      assertEquals("failsFirst", "[]", strictness("map x to (1 / 0) + x"));
+      assertEquals("ifTest", "[0]", strictness("map x, y to if x then y else 1"));
+      assertEquals("predicate", "[0, 1]", strictness("map x, y to number?(x) = y"));
+      assertEquals("let", "[1, 0]", strictness("map x, y to let z := y; in z = x"));
+      assertEquals("shadowingLet", "[1]", strictness("map x, y to let x := y; in x + 1"));
+      assertEquals("unevaluatedLet", "[0]", strictness("map x, y to let z := y; in x = z"));
+      assertEquals("lazyCons", "[]", strictness("map x to cons(x, empty)"));
+      assertEquals("application", "[0]", strictness("map f, x to f(x)"));
+      Interpreter unused = new Interpreter(new StringReader("(map x, y to if x then y else 0)(false, 1 / 0)"));
+      assertEquals("unused need-value", "0", unused.compiledNeedValue().toString());
+      assertEquals("unused need-need", "0", unused.compiledNeedNeed().toString());
+      compiledCheck("strictArgs", "7", "let f := map x, y to x + y; in f(3, 4)");
+      compiledCheck("strictLet", "5", "let a := 2; b := 3; in a + b");
+      try {
+        new Interpreter(new StringReader("(map x, y to y + x)(true + 1, false + 1)")).compiledNeedValue();
+        fail("strictness should preserve the error raised first");
+      }
+      catch(EvalException e) { assertTrue("firstError " + e.getMessage(), e.getMessage().indexOf("false") >= 0); }
+    }
+    catch(Exception e) {
+//      e.printStackTrace();
+      fail("strictness threw " + e);
+    }
+  } //end of func
+
+  public void testHashConsing() {
+    try {
+      AST a = new Parser(new StringReader("map f, x to f(x + 1) * f(x + 1) - f(x + 2)")).parseAndCheck();
+      BinOpApp body = (BinOpApp) ((Map) a).body();
+      BinOpApp product = (BinOpApp) body.arg1();
+      assertTrue("parsed", product.arg1() != product.arg2());
+      assertEquals("structural", product.arg1(), product.arg2());
+      assertEquals("hashCode", product.arg1().hashCode(), product.arg2().hashCode());
+      assertFalse("different", product.arg1().equals(body.arg2()));
+      BinOpApp shared = (BinOpApp) ((BinOpApp) ((Map) a.accept(new HashConser())).body()).arg1();
+      assertSame("shared", shared.arg1(), shared.arg2());
+      assertEquals("IntConstant", IntConstant.of(1000).hashCode(), new IntConstant(1000).hashCode());
+    }
+    catch(Exception e) {
+//      e.printStackTrace();
+      fail("hash consing threw " + e);
+    }
+  } //end of func
+
+  public void testCommonSubexpressions() {
+    try {
+      assertEquals("list", "map x to let cse$1 := first(rest(rest(x))); in ((cse$1 * 2) + cse$1)",
+                   optimize("map x to first(rest(rest(x))) * 2 + first(rest(rest(x)))").toString());
+      assertEquals("if", "map x,y to let cse$1 := (x + y); in if (cse$1 > 0) then cse$1 else (0 - cse$1)",
+                   optimize("map x, y to if x + y > 0 then x + y else 0 - (x + y)").toString());
+      assertEquals("unknownType", "map x to if (first(x) = 0) then first(x) else 1",
+                   optimize("map x to if first(x) = 0 then first(x) else 1").toString());
+      assertEquals("shadowed", "map x to ((x * x) + (map x to (x * x))(x))",
+                   optimize("map x to x * x + (map x to x * x)(x)").toString());
+      assertEquals("application", "map x to if ((x * 2) > 3) then ((x * 2))(1) else 0",
+                   optimize("map x to if x * 2 > 3 then (x * 2)(1) else 0").toString());
+      String[][] headErrors = {
+        { "(map x to (x + 1)(x + 1))(1)", "2 appears at head of application ((x + 1))((x + 1))" },
+        { "let f := map x to if (x * 2) > 3 then (x * 2)(1) else 0; in f(5)",
+          "10 appears at head of application ((x * 2))(1)" }
+      };
+      for (String[] c: headErrors) {
+        try {
+          new Interpreter(new StringReader(c[0])).compiledValueValue();
+          fail(c[0] + " should fail");
+        }
+        catch(EvalException e) { assertTrue(c[0] + ": " + e.getMessage(), e.getMessage().startsWith(c[1])); }
+      }
+      StringBuilder many = new StringBuilder("map x to first(rest(x)) * 0");  // counted once, not per occurrence
+      for (int i = 1; i < 2000; i++) many.append(" + first(rest(x)) * ").append(i);
+      String shared = optimize(many.toString()).toString();
+      assertTrue("many", shared.startsWith("map x to let cse$1 := first(rest(x)); in ") && ! shared.contains("cse$2"));
+      compiledCheck("shared", "30", "let f := map x to first(rest(x)) * 2 + first(rest(x)); in f(cons(1, cons(10, empty)))");
+      cekCheck("shared", "3", "let f := map x, y to if x + y > 0 then x + y else 0 - (x + y); in f(1, -4)");
+      try {
+        new Interpreter(new StringReader("let x := cons(1, cons(true, empty)); in first(rest(x)) + first(rest(x))"))
+          .compiledValueValue();
+        fail("shared subexpression should report the same error");
+      }
+      catch(EvalException e) { assertTrue("error " + e.getMessage(), e.getMessage().indexOf("true") >= 0); }
+    }
+    catch(Exception e) {
+//      e.printStackTrace();
+      fail("common subexpressions threw " + e);
+    }
+  } //end of func
+
+  public void testProgramCache() {
+    try {
+      ProgramCache cache = new ProgramCache(2);
+      ParsedProgram p1 = cache.get("1 + 2".toCharArray());
+      assertSame("hit", p1, cache.get("1 + 2".toCharArray()));
+      assertEquals("hits", 1, cache.hits());
+      assertEquals("misses", 1, cache.misses());
+      cache.get("3 * 4".toCharArray());
+      cache.get("1 + 2".toCharArray());           // 1 + 2 is now the most recently used
+      cache.get("5 - 6".toCharArray());           // evicts 3 * 4
+      assertEquals("size", 2, cache.size());
+      assertSame("retained", p1, cache.get("1 + 2".toCharArray()));
+      assertEquals("evicted", 3, cache.misses());
+      cache.get("3 * 4".toCharArray());
+      assertEquals("reparsed", 4, cache.misses());
+
+      ParseException parseError = null;
+      for (int i = 0; i < 2; i++) {
+        try {
+          cache.get("1 +".toCharArray());
+          fail("parse error expected");
+        }
+        catch(ParseException e) {
+          if (parseError != null) {
+            assertNotSame("fresh parse error", parseError, e);
+            assertEquals("cached parse error", parseError.getMessage(), e.getMessage());
+          }
+          parseError = e;
+        }
+      }
+      try {
+        cache.get("x".toCharArray());
+        fail("syntax error expected");
+      }
+      catch(SyntaxException e) { /* expected */ }
+
+      StringBuilder sum = new StringBuilder("0");      // longer than one hashed chunk
+      for (int i = 0; i < 2000; i++) sum.append(" + ").append(i % 10);
+      ParsedProgram big = cache.get(sum.toString().toCharArray());
+      assertSame("long hit", big, cache.get(sum.toString().toCharArray()));
+      assertNotSame("long distinct", big, cache.get(sum.append(" + 1").toString().toCharArray()));
+
+      ProgramCache bounded = new ProgramCache(2, 5);
+      assertSame("short", bounded.get("1 + 2".toCharArray()), bounded.get("1 + 2".toCharArray()));
+      assertNotSame("too long", bounded.get("10 + 2".toCharArray()), bounded.get("10 + 2".toCharArray()));
+      assertEquals("uncached", 1, bounded.size());
+      ProgramCache disabled = new ProgramCache(0, 5);
+      assertNotSame("disabled", disabled.get("1 + 2".toCharArray()), disabled.get("1 + 2".toCharArray()));
+      assertEquals("disabled size", 0, disabled.size());
+
+      Interpreter i1 = new Interpreter(new StringReader("let f := map n to n * 2; in f(21)"));
+      Interpreter i2 = new Interpreter(new StringReader("let f := map n to n * 2; in f(21)"));
+      assertSame("shared", i1.prog, i2.prog);
+      assertEquals("value", "42", i1.compiledValueValue().toString());
+      assertEquals("need", "42", i2.compiledNeedNeed().toString());
+    }
+    catch(Exception e) {
+//      e.printStackTrace();
+      fail("program cache threw " + e);
+    }
+  } //end of func
+
+  /** Returns the artifact in the binary AST format encoding the bytes in bytes. */
+  private static java.nio.ByteBuffer artifact(int... bytes) {
+    java.nio.ByteBuffer b = java.nio.ByteBuffer.allocate(5 + bytes.length);
+    b.putInt(AstFormat.MAGIC).put(AstFormat.VERSION);
+    for (int x: bytes) b.put((byte) x);
+    b.flip();
+    return b;
+  }
+
+  public void testBinaryFormat() {
+    try {
+      String program = "let fact := map n to if n = 0 then 1 else n * fact(n - 1); xs := cons(-200000, empty);\n" +
+        "in if ~ (number?(first(xs)) & true) then xs else cons(fact(10), rest(xs))";
+      AST checked = new Parser(new StringReader(program)).parseCheckAndOptimize();
+      java.nio.ByteBuffer bytes = AstFormat.write(checked);
+      assertTrue("compact", bytes.remaining() < program.length());
+      AST read = AstFormat.read(bytes);
+      assertEquals("roundTrip", checked.toString(), read.toString());
+      assertEquals("resolvedRoundTrip", checked.toString(),
+                   AstFormat.read(AstFormat.write(checked.accept(ResolveVisitor.INITIAL))).toString());
+
+      File file = File.createTempFile("prog", ".jamc");
+      file.deleteOnExit();
+      AstFormat.save(checked, file.getPath());
+      Interpreter interp = new Interpreter(AstFormat.load(file.getPath()));
+      assertEquals("compiledValueValue", "(3628800)", interp.compiledValueValue().toString());
+      assertEquals("compiledNeedNeed", "(3628800)", interp.compiledNeedNeed().toString());
+
+      String[] malformed = { "version", "free", "truncated", "tag" };
+      java.nio.ByteBuffer[] artifacts = {
+        java.nio.ByteBuffer.wrap(new byte[] { 0x4A, 0x41, 0x4D, 0x43, 99, AstFormat.TRUE }),
+        artifact(AstFormat.NEW_VAR, 1, 'x'),
+        artifact(AstFormat.MAP, 1, AstFormat.NEW_VAR, 1, 'x', AstFormat.BINOP, 0, AstFormat.VAR, 0),
+        artifact(42)
+      };
+      for (int i = 0; i < malformed.length; i++) {
+        try {
+          AstFormat.read(artifacts[i]);
+          fail(malformed[i] + " artifact should be rejected");
+        }
+        catch(ParseException e) { /* expected */ }
+      }
+    }
+    catch(Exception e) {
+//      e.printStackTrace();
+      fail("binaryFormat threw " + e);
+    }
+  } //end of func
+
+  public void testParallel() {
+    try {
+      String fib = "let fib := map n to if n < 2 then n else fib(n - 1) + fib(n - 2); in ";
+      assertEquals("fib", "6765", new Interpreter(new StringReader(fib + "fib(20)")).parallelValueValue().toString());
+      assertEquals("args", "(55 89 144)", new Interpreter(new StringReader(
+        fib + "let f := map x, y, z to cons(x, cons(y, cons(z, empty))); in f(fib(10), fib(11), fib(12))"))
+                     .parallelValueValue().toString());
+      assertEquals("let", "233", new Interpreter(new StringReader(fib + "let a := fib(12); b := fib(11); in a + b"))
+                     .parallelValueValue().toString());
+      assertEquals("cons", "(8 13)", new Interpreter(new StringReader(fib + "cons(fib(6), cons(fib(7), empty))"))
+                     .parallelValueValue().toString());
+      String[] failing = {
+        fib + "fib(true) + fib(1 / 0)",
+        fib + "(map x, y to x)(fib(10) + true, fib(1 / 0))",
+        fib + "let a := fib(5) / 0; b := fib(empty); in a"
+      };
+      for (String program: failing) {
+        String expected = null;
+        try { new Interpreter(new StringReader(program)).compiledValueValue(); }
+        catch(EvalException e) { expected = e.getMessage(); }
+        try {
+          new Interpreter(new StringReader(program)).parallelValueValue();
+          fail(program + " should fail");
+        }
+        catch(EvalException e) { assertEquals(program, expected, e.getMessage()); }
+      }
+
+      try {                                     // the forked loop must stop once the division fails
+        new Interpreter(new StringReader(fib + "let loop := map x to loop(x); in fib(18) / 0 + loop(1)"))
+          .parallelValueValue();
+        fail("division by zero expected");
+      }
+      catch(EvalException e) { /* expected */ }
+      assertTrue("quiescent", Fork.POOL.awaitQuiescence(10, java.util.concurrent.TimeUnit.SECONDS));
+
+      long before = Fork.forks();               // the program must really fork, not run sequentially
+      assertEquals("forked fib", "46368", new Interpreter(new StringReader(fib + "fib(24)")).parallelValueValue()
+                     .toString());
+      assertTrue("forks", Fork.forks() > before);
+    }
+    catch(Exception e) {
+//      e.printStackTrace();
+      fail("parallel threw " + e);
+    }
+  } //end of func
+
+  public void testCancellation() {
+    try {
+      Interpreter loop = new Interpreter(new StringReader("let loop := map x to loop(x + 1); in loop(0)"));
+      Cancellation outer = new Cancellation();
+      Cancellation inner = new Cancellation(outer);
+      assertFalse("not cancelled", inner.isCancelled());
+      outer.cancel();
+      assertTrue("parent cancelled", inner.isCancelled());
+      Cancellation saved = inner.install();
+      try {
+        loop.compiledValueValue();
+        fail("cancellation expected");
+      }
+      catch(java.util.concurrent.CancellationException e) { /* expected */ }
+      finally { Cancellation.restore(saved); }
+      assertNull("restored", Cancellation.current());
+      assertEquals("uncancelled", "3", new Interpreter(new StringReader("1 + 2")).compiledValueValue().toString());
+    }
+    catch(Exception e) {
+//      e.printStackTrace();
+      fail("cancellation threw " + e);
+    }
+  } //end of func
+
+  public void testSpeculativeCons() {
+    try {
+      String fib = "let fib := map n to if n < 2 then n else fib(n - 1) + fib(n - 2); ";
+      String[][] cases = {
+        { "stream", "(0 1 1 2 3 5 8 13 21 34)",
+          fib + "fibs := map n to cons(fib(n), fibs(n + 1)); take := map n, l to if n = 0 then empty "
+              + "else cons(first(l), take(n - 1, rest(l))); in take(10, fibs(0))" },
+        { "unforced error", "1", "first(cons(1, cons(1 / 0, empty)))" },
+        { "unforced divergence", "5", "let loop := map x to 1 + loop(x); in first(cons(5, loop(0)))" },
+        { "forward reference", "(1 2)", "let x := cons(1, cons(first(y), empty)); y := cons(2, empty); in x" }
+      };
+      for (String[] c: cases)
+        assertEquals(c[0], c[1], new Interpreter(new StringReader(c[2])).compiledValueSpeculative().toString());
+      String[] failing = {
+        "first(rest(cons(1, cons(1 / 0, empty))))",
+        "rest(cons(1, 2))",
+        fib + "in first(rest(cons(fib(5), cons(fib(true), empty))))"
+      };
+      for (String program: failing) {
+        String expected = null;
+        try { new Interpreter(new StringReader(program)).compiledValueNeed(); }
+        catch(EvalException e) { expected = e.getMessage(); }
+        try {
+          new Interpreter(new StringReader(program)).compiledValueSpeculative();
+          fail(program + " should fail");
+        }
+        catch(EvalException e) { assertEquals(program, expected, e.getMessage()); }
+      }
+
+      String published = "let x := cons(1, rest(y)); y := cons(2, cons(3, empty)); in first(x) + first(rest(x))";
+      for (int i = 0; i < 200; i++)
+        assertEquals("published binding", "4",
+                     new Interpreter(new StringReader(published)).compiledValueSpeculative().toString());
+
+      assertEquals("abandoned loop", "5", new Interpreter(new StringReader(
+        "let loop := map x to loop(x + 1); in first(cons(5, loop(0)))")).compiledValueSpeculative().toString());
+      for (int i = 0; i < 100 && Speculator.active() > 0; i++) Thread.sleep(50);
+      assertEquals("stopped", 0, Speculator.active());
+    }
+    catch(Exception e) {
+//      e.printStackTrace();
+      fail("speculativeCons threw " + e);
+    }
+  } //end of func
+
+  public void testConcurrentNeed() {
+    try {
+      final int threads = 4, length = 300;
+      String program = "let fib := map n to if n < 2 then n else fib(n - 1) + fib(n - 2); "
+        + "s := map n to cons(let f := fib(12); in map x to n + f, s(n + 1)); in s(0)";
+      JamVal[] streams = { new Interpreter(new StringReader(program)).compiledValueNeed(),
+                           new Interpreter(new StringReader(program)).compiledNeedNeed() };
+      for (final JamVal stream: streams) {
+        final JamVal[][] seen = new JamVal[threads][length];
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+          final JamVal[] mine = seen[t];
+          workers[t] = new Thread() {
+            public void run() {
+              try { start.await(); }
+              catch(InterruptedException e) { return; }
+              JamList l = (JamList) stream;
+              for (int i = 0; i < length; i++) {
+                mine[i] = ((JamCons) l).first();
+                l = ((JamCons) l).rest();
+              }
+            }
+          };
+          workers[t].start();
+        }
+        start.countDown();
+        for (Thread w: workers) w.join();
+        for (int t = 1; t < threads; t++)
+          for (int i = 0; i < length; i++) assertTrue("element " + i + " computed twice", seen[t][i] == seen[0][i]);
+      }
+
+      // x and y demand each other from two threads, which must report the cycle rather than wait for each other
+      final CountDownLatch claimed = new CountDownLatch(2);
+      final NodeNeedBinding[] xy = new NodeNeedBinding[2];
+      final String[] errors = new String[2];
+      Thread[] workers = new Thread[2];
+      for (int t = 0; t < 2; t++) {
+        final int mine = t;
+        xy[t] = new NodeNeedBinding(new Variable(t == 0 ? "x" : "y"), new Node() {
+          JamVal execute(Frame f) {
+            claimed.countDown();
+            try { claimed.await(); }
+            catch(InterruptedException e) { throw new EvalException("interrupted"); }
+            return xy[1 - mine].value();
+          }
+        }, null);
+        workers[t] = new Thread() {
+          public void run() {
+            try { xy[mine].value(); }
+            catch(EvalException e) { errors[mine] = e.getMessage(); }
+          }
+        };
+      }
+      for (Thread w: workers) w.start();
+      for (Thread w: workers) w.join(10000);
+      for (int t = 0; t < 2; t++) {
+        assertFalse("deadlock", workers[t].isAlive());
+        assertTrue("cycle " + errors[t], errors[t] != null && errors[t].contains("illegal forward reference"));
+      }
+    }
+    catch(Exception e) {
+//      e.printStackTrace();
+      fail("concurrentNeed threw " + e);
+    }
+  } //end of func
+
+  public void testBatch() {
+    try {
+      String[] programs = {
+        "let fib := map n to if n < 2 then n else fib(n - 1) + fib(n - 2); in fib(15)",
+        "let x := ; in x",
+        "x + 1",
+        "first(empty)",
+        "let l := map n to cons(n, l(n + 1)); in first(rest(l(4)))",
+        "let loop := map x to loop(x + 1); in loop(0)"
+      };
+      String[] modes = { "compiledValueValue", "compiledNeedNeed", "cekValueName", "bytecodeValueValue" };
+      Outcome[][] outcomes = new BatchEvaluator(2, 500).evaluate(programs, modes);
+      assertEquals("programs", programs.length, outcomes.length);
+      for (int j = 0; j < modes.length; j++) {
+        assertEquals(modes[j], "610", outcomes[0][j].value);
+        assertTrue(modes[j], outcomes[1][j].error instanceof ParseException);
+        assertTrue(modes[j], outcomes[2][j].error instanceof SyntaxException);
+        assertTrue(modes[j], outcomes[3][j].error instanceof EvalException);
+        assertEquals(modes[j], programs[3], outcomes[3][j].program);
+        assertTrue(modes[j] + " " + outcomes[5][j], outcomes[5][j].timedOut());
+      }
+      String[] lazy = { "cekNameName", "cekValueName" };    // loops that force suspensions without applications
+      String[] suspensions = { "let x := x; in x", "let l := cons(1, rest(l)); in rest(l)" };
+      Outcome[][] loops = new BatchEvaluator(1, 500).evaluate(suspensions, lazy);
+      assertTrue("self reference " + loops[0][0], loops[0][0].timedOut());
+      assertTrue("self rest " + loops[1][1], loops[1][1].timedOut());
+      assertEquals("lazy", "5", outcomes[4][1].value);
+      assertEquals("lazy", "5", outcomes[4][2].value);
+      for (String rejected: new String[] { "byValue", "parallelValueValue", "compiledValueSpeculative" }) {
+        try {
+          new BatchEvaluator().evaluate(programs, new String[] { "compiledValueValue", rejected });
+          fail(rejected + " should be rejected");
+        }
+        catch(IllegalArgumentException e) { /* expected */ }
+      }
+    }
+    catch(Exception e) {
+//      e.printStackTrace();
+      fail("batch threw " + e);
+    }
+  } //end of func
+  public void testEvalStats() {
+    try {
+      String prog = "let f := map x, y to if x = 0 then 0 else y + f(x - 1, y); in f(2, 3 * 2)";
+      EvalStats name = new Interpreter(new StringReader(prog)).compiledStats("nameName");
+      assertEquals("nameName value", "12", name.value);
+      assertEquals("nameName name bindings", 7, name.get(EvalStats.NAME_BINDINGS));
+      assertEquals("nameName suspensions", 7, name.get(EvalStats.SUSPENSIONS));
+      assertEquals("nameName evaluations", 12, name.get(EvalStats.EVALUATIONS));
+      assertEquals("nameName repeated evaluations", 6, name.get(EvalStats.REPEATED_EVALUATIONS));
+      assertEquals("nameName closure applications", 3, name.get(EvalStats.CLOSURE_APPLICATIONS));
+      assertEquals("nameName nesting", 4, name.get(EvalStats.MAX_NESTING));
+      assertEquals("nameName environment depth", 2, name.get(EvalStats.MAX_ENVIRONMENT_DEPTH));
+      EvalStats need = new Interpreter(new StringReader(prog)).compiledStats("needNeed");
+      assertEquals("needNeed value", "12", need.value);
+      assertEquals("needNeed value bindings", 3, need.get(EvalStats.VALUE_BINDINGS));
+      assertEquals("needNeed need bindings", 4, need.get(EvalStats.NEED_BINDINGS));
+      assertEquals("needNeed evaluations", 3, need.get(EvalStats.EVALUATIONS));
+      assertEquals("needNeed repeated evaluations", 0, need.get(EvalStats.REPEATED_EVALUATIONS));
+      assertEquals("needNeed closure applications", 3, need.get(EvalStats.CLOSURE_APPLICATIONS));
+
+      String scopes = "let f := map x to if x = 0 then 0 else let g := map y to if y = 0 then x else g(y - 1); "
+                      + "in g(x) + f(x - 1); in f(2)";
+      EvalStats nested = new Interpreter(new StringReader(scopes)).compiledStats("valueValue");
+      assertEquals("valueValue scopes value", "3", nested.value);
+      assertEquals("valueValue scopes environment depth", 3, nested.get(EvalStats.MAX_ENVIRONMENT_DEPTH));
+
+      String list = "let l := cons(1, cons(2, empty)); in list?(rest(l))";
+      EvalStats eager = new Interpreter(new StringReader(list)).compiledStats("valueValue");
+      assertEquals("valueValue value", "true", eager.value);
+      assertEquals("valueValue cons cells", 2, eager.get(EvalStats.CONS));
+      assertEquals("valueValue primitive applications", 4, eager.get(EvalStats.PRIMITIVE_APPLICATIONS));
+      EvalStats lazy = new Interpreter(new StringReader(list)).compiledStats("valueName");
+      assertEquals("valueName lazy cons cells", 2, lazy.get(EvalStats.LAZY_NAME_CONS));
+      assertEquals("valueName suspensions", 4, lazy.get(EvalStats.SUSPENSIONS));
+      assertEquals("valueName evaluations", 1, lazy.get(EvalStats.EVALUATIONS));
+      try {
+        new Interpreter(new StringReader(list)).compiledStats("byValue");
+        fail("byValue should be rejected");
+      }
+      catch(IllegalArgumentException e) { /* expected */ }
+    }
+    catch(Exception e) {
+//      e.printStackTrace();
+      fail("evalStats threw " + e);
+    }
+  } //end of func
+  
+  public void testProfile() {
+    try {
+      String prog = "let fib := map n to if n < 2 then n else fib(n - 1) + fib(n - 2); in fib(24)";
+      EvalProfile p = new Interpreter(new StringReader(prog)).compiledProfile("valueValue", 100);
+      assertEquals("value", "46368", p.value);
+      assertTrue("no samples", p.samples() > 0);
+      long total = 0;
+      for (String line: p.collapsed().split("\n")) {
+        assertTrue(line, line.matches("program(;fib)* [0-9]+"));
+        total += Long.parseLong(line.substring(line.indexOf(' ') + 1));
+      }
+      assertEquals("samples", p.samples(), total);
+      assertTrue(p.top(5), p.top(5).contains("fib"));
+      try {
+        new Interpreter(new StringReader(prog)).compiledProfile("valueValue", 0);
+        fail("interval 0 should be rejected");
+      }
+      catch(IllegalArgumentException e) { /* expected */ }
+    }
+    catch(Exception e) {
+//      e.printStackTrace();
+      fail("profile threw " + e);
+    }
+  } //end of func
+  
+}
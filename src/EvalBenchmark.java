@@ -0,0 +1,210 @@
+/* Benchmark for the evaluation of Jam programs.  Run as
+ *   java EvalBenchmark [engine] [repeats]
+ * where engine is interp (the default), compiled, or cek.  For each of a set of representative programs, reports
+ * the time to parse, check, optimize, and resolve the program, and then, for each of the nine forms of evaluation
+ * valueValue ... needNeed performed by the engine, the time to evaluate it and print its value together with the
+ * number of bytes allocated by the evaluation.  Every measurement is repeated (default 20 times) after as many
+ * warm-up runs, and the fastest repetition is reported; the allocation is that of the last repetition, measured
+ * through com.sun.management.ThreadMXBean where the JVM supports it.  Programs that build infinite lists are
+ * evaluated only in the forms of evaluation with lazy cons, and the prime sieve, whose running time is exponential
+ * under call-by-name, is not evaluated with call-by-name; "-" marks the forms of evaluation skipped.  The compiled
+ * engine also reports the time for FORCING_THREADS threads to walk the same call-by-need stream at once, so that
+ * most of its elements are forced by one thread while the others wait for it (see NeedState), and the time for a
+ * single thread to walk a long call-by-need stream, which measures forcing when no other thread contends for it. */
+
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+class EvalBenchmark {
+
+  /** Default number of measured repetitions of each operation; the same number of warm-up runs precede them. */
+  static final int REPEATS = 20;
+
+  /** The nine forms of evaluation, as suffixes of the names of the Interpreter methods that perform them. */
+  static final String[] MODES = {
+    "ValueValue", "ValueName", "ValueNeed", "NameValue", "NameName", "NameNeed", "NeedValue", "NeedName", "NeedNeed"
+  };
+
+  /** A benchmark program, which is not evaluated in the forms of evaluation whose names match skip. */
+  static class Program {
+    String name, skip, text;
+    Program(String n, String s, String t) { name = n; skip = s; text = t; }
+  }
+
+  /** Skip patterns for programs that build infinite lists, and that are also exponential under call-by-name. */
+  static final String EAGER = ".*Value", EAGER_OR_NAME = ".*Value|Name.*";
+
+  /** Returns the program let x0 := 1; in let x1 := x0 + 1; in ... x{depth-1}, which nests depth Lets. */
+  static String deepLet(int depth) {
+    StringBuilder sb = new StringBuilder("let x0 := 1; in ");
+    for (int i = 1; i < depth; i++) sb.append("let x").append(i).append(" := x").append(i - 1).append(" + 1; in ");
+    return sb.append('x').append(depth - 1).toString();
+  }
+
+  static final Program[] PROGRAMS = {
+    new Program("fib", "", "let fib := map n to if n < 2 then n else fib(n - 1) + fib(n - 2); in fib(20)"),
+    new Program("appendReverse", "",
+                "let iota := map n, l to if n = 0 then l else iota(n - 1, cons(n, l)); " +
+                "    append := map x, y to if empty?(x) then y else cons(first(x), append(rest(x), y)); " +
+                "    reverse := map x, acc to if empty?(x) then acc else reverse(rest(x), cons(first(x), acc)); " +
+                "    l := iota(10, empty); " +
+                "in first(reverse(append(l, l), empty))"),
+    new Program("letRec", "",
+                "let append := map x,y to if empty?(x) then y else cons(first(x), append(rest(x), y)); " +
+                "         l := cons(1,cons(2,cons(3,empty))); " +
+                "in append(l,l)"),
+    new Program("lazyCons", EAGER, "let zeroes := cons(0,zeroes); in first(rest(zeroes))"),
+    new Program("primes", EAGER_OR_NAME,
+                "let from := map n to cons(n, from(n + 1)); " +
+                "    filter := map p, l to if first(l) / p * p = first(l) then filter(p, rest(l)) " +
+                "                          else cons(first(l), filter(p, rest(l))); " +
+                "    sieve := map l to cons(first(l), sieve(filter(first(l), rest(l)))); " +
+                "    nth := map n, l to if n = 0 then first(l) else nth(n - 1, rest(l)); " +
+                "in nth(20, sieve(from(2)))"),
+    new Program("deepLet", "", deepLet(400))
+  };
+
+  /** The number of threads that walk the stream in forcingTime. */
+  static final int FORCING_THREADS = 4;
+
+  /** The number of elements of the stream that each thread walks in forcingTime. */
+  static final int FORCING_LENGTH = 500;
+
+  /** The stream walked in forcingTime, each of whose elements takes a while to compute. */
+  static final String FORCING_STREAM = "let fib := map n to if n < 2 then n else fib(n - 1) + fib(n - 2); " +
+                                       "    from := map n to cons(fib(10) + n, from(n + 1)); " +
+                                       "in from(0)";
+
+  /** The number of elements of the stream walked in singleForcingTime. */
+  static final int SINGLE_FORCING_LENGTH = 20000;
+
+  /** The stream walked in singleForcingTime, whose elements are cheap to compute, so forcing dominates the walk. */
+  static final String SINGLE_FORCING_STREAM = "let from := map n to cons(n, from(n + 1)); in from(0)";
+
+  /** Returns the best time in microseconds of repeats runs, after as many warm-up runs, in which FORCING_THREADS
+    * threads each walk the first FORCING_LENGTH elements of a new FORCING_STREAM evaluated by compiledValueNeed. */
+  static double forcingTime(int repeats) throws InterruptedException {
+    long best = Long.MAX_VALUE;
+    for (int i = 0; i < 2 * repeats; i++) {
+      final JamVal stream = new Interpreter(new StringReader(FORCING_STREAM)).compiledValueNeed();
+      Thread[] threads = new Thread[FORCING_THREADS];
+      for (int j = 0; j < FORCING_THREADS; j++) {
+        threads[j] = new Thread(null, new Runnable() {
+          public void run() {
+            walk(stream, FORCING_LENGTH);
+          }
+        }, "EvalBenchmark-forcing", BatchEvaluator.STACK_SIZE);
+      }
+      long start = System.nanoTime();
+      for (Thread t: threads) t.start();
+      for (Thread t: threads) t.join();
+      if (i >= repeats) best = Math.min(best, System.nanoTime() - start);
+    }
+    return best / 1000.0;
+  }
+
+  /** Returns the best time in microseconds of repeats runs, after as many warm-up runs, in which the current thread
+    * walks the first SINGLE_FORCING_LENGTH elements of a new SINGLE_FORCING_STREAM evaluated by compiledNeedNeed. */
+  static double singleForcingTime(int repeats) {
+    long best = Long.MAX_VALUE;
+    for (int i = 0; i < 2 * repeats; i++) {
+      JamVal stream = new Interpreter(new StringReader(SINGLE_FORCING_STREAM)).compiledNeedNeed();
+      long start = System.nanoTime();
+      walk(stream, SINGLE_FORCING_LENGTH);
+      if (i >= repeats) best = Math.min(best, System.nanoTime() - start);
+    }
+    return best / 1000.0;
+  }
+
+  /** Forces the first and rest of each of the first length cells of stream. */
+  static void walk(JamVal stream, int length) {
+    JamList l = (JamList) stream;
+    for (int k = 0; k < length; k++) {
+      ((JamCons) l).first();
+      l = ((JamCons) l).rest();
+    }
+  }
+
+  /** Returns the number of bytes allocated so far by the current thread, or -1 if the JVM cannot tell. */
+  static long allocated() {
+    Object bean = ManagementFactory.getThreadMXBean();
+    if (! (bean instanceof com.sun.management.ThreadMXBean)) return -1;
+    return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+  /** Returns the best time in microseconds of repeats parses of text, after as many warm-up parses. */
+  static double parseTime(String text, int repeats) {
+    long best = Long.MAX_VALUE;
+    for (int i = 0; i < 2 * repeats; i++) {
+      long start = System.nanoTime();
+      new Parser(new StringReader(text)).parseAndOptimize();
+      if (i >= repeats) best = Math.min(best, System.nanoTime() - start);
+    }
+    return best / 1000.0;
+  }
+
+  /** Returns the cell reporting the best time of repeats evaluations of interp by method, after as many warm-up
+    * evaluations, and the bytes allocated by the last one. */
+  static String evalCell(Interpreter interp, Method method, int repeats) {
+    long best = Long.MAX_VALUE, bytes = 0;
+    try {
+      for (int i = 0; i < 2 * repeats; i++) {
+        long before = allocated();
+        long start = System.nanoTime();
+        method.invoke(interp).toString();
+        long time = System.nanoTime() - start;
+        bytes = before < 0 ? -1 : allocated() - before;
+        if (i >= repeats) best = Math.min(best, time);
+      }
+    }
+    catch(InvocationTargetException e) { return String.format("%22s", e.getCause().getClass().getSimpleName()); }
+    catch(IllegalAccessException e) { throw new IllegalStateException(e); }
+    return String.format("%10.1f %9s", best / 1000.0, bytes < 0 ? "n/a" : String.valueOf(bytes / 1024) + "K");
+  }
+
+  static void run(String engine, int repeats) throws NoSuchMethodException, InterruptedException {
+    String prefix = engine.equals("interp") ? "" : engine;
+    System.out.println("engine " + engine + "; times in microseconds, allocation per evaluation in kilobytes");
+    System.out.print(String.format("%-14s%10s", "program", "parse"));
+    for (String mode: MODES) System.out.print(String.format("%22s", mode));
+    System.out.println();
+    for (Program p: PROGRAMS) {
+      System.out.print(String.format("%-14s%10.1f", p.name, parseTime(p.text, repeats)));
+      Interpreter interp = new Interpreter(new Parser(new StringReader(p.text)));
+      for (String mode: MODES) {
+        String name = prefix.length() == 0 ? Character.toLowerCase(mode.charAt(0)) + mode.substring(1) : prefix + mode;
+        Method method = Interpreter.class.getMethod(name);
+        if (mode.matches(p.skip)) System.out.print(String.format("%22s", "-"));
+        else System.out.print(evalCell(interp, method, repeats));
+      }
+      System.out.println();
+    }
+    if (engine.equals("compiled")) {
+      System.out.println(String.format("%-14s%10.1f", "forcing", forcingTime(repeats)) + "  (" + FORCING_THREADS
+                         + " threads walking " + FORCING_LENGTH + " elements of one call-by-need stream)");
+      System.out.println(String.format("%-14s%10.1f", "forcing single", singleForcingTime(repeats)) + "  (1 thread "
+                         + "walking " + SINGLE_FORCING_LENGTH + " elements of a compiledNeedNeed stream)");
+    }
+  }
+
+  public static void main(String[] args) throws InterruptedException {
+    final String engine = args.length > 0 ? args[0] : "interp";
+    final int repeats = args.length > 1 ? Integer.parseInt(args[1]) : REPEATS;
+    if (! (engine.equals("interp") || engine.equals("compiled") || engine.equals("cek"))) {
+      System.err.println("usage: java EvalBenchmark [interp | compiled | cek] [repeats]");
+      System.exit(1);
+    }
+    // evaluation recurses on the Java stack as deeply as the evaluated program does
+    Thread t = new Thread(null, new Runnable() {
+      public void run() {
+        try { EvalBenchmark.run(engine, repeats); }
+        catch(NoSuchMethodException e) { throw new IllegalStateException(e); }
+        catch(InterruptedException e) { Thread.currentThread().interrupt(); }
+      }
+    }, "EvalBenchmark", BatchEvaluator.STACK_SIZE);
+    t.start();
+    t.join();
+  }
+}
@@ -6,6 +6,7 @@
 
 import java.io.IOException;
 import java.io.Reader;
+import java.nio.ByteBuffer;
 
 
 /** The exception class for Jam run-time errors during program evaluation. */
@@ -19,27 +20,54 @@ class EvalException extends RuntimeException {
   * The cons evaluation policy is either: call-by-value (eager), call-by-name (redundant lazy), or
   * call-by-need (efficient lazy). */
 class Interpreter {
-  /** Parser to use. */
+  /** Parser to use: the Parser that parsed prog or, if prog was obtained from ProgramCache.ONLY, a new Parser for the
+    * program text; null if this Interpreter was constructed from a binary artifact, which has no program text. */
   Parser parser;  // initialized in constructors
   
-  /** Parsed AST. */
+  /** Parsed AST in which every variable occurrence has been resolved to its lexical address.  It is interpreted by
+    * the nine forms of evaluation valueValue() ... needNeed(), so the errors they report quote the program as it was
+    * written.  It may be shared with other Interpreters for the same program text, so it must not be modified. */
   AST prog;       // initialized in constructors
   
+  /** The program in both forms; see optimized(). */
+  private ParsedProgram parsed;  // initialized in constructors
+  
   Interpreter(String fileName) throws IOException {
-    parser = new Parser(fileName);
-    prog = parser.parseAndCheck();
+    this(Lexer.readFile(fileName));
   }
   
   Interpreter(Parser p) {
+    this(new ParsedProgram(p.parseAndCheck()));
     parser = p;
-    prog = parser.parseAndCheck();
   }
   
   Interpreter(Reader reader) {
-    parser = new Parser(reader);
-    prog = parser.parseAndCheck();
+    this(Lexer.readAll(reader));
+  }
+  
+  /** Constructs an Interpreter for the program in artifact, which is in the binary AST format (see AstFormat), such
+    * as an artifact returned by AstFormat.load for a file written by Precompile. */
+  Interpreter(ByteBuffer artifact) {
+    this(new ParsedProgram(AstFormat.read(artifact)));
+  }
+  
+  /** Constructs an Interpreter for the program text source, which is parsed only if ProgramCache.ONLY does not
+    * already hold it. */
+  private Interpreter(char[] source) {
+    this(ProgramCache.ONLY.get(source));
+    parser = new Parser(new Lexer(source, source.length));
   }
   
+  private Interpreter(ParsedProgram p) {
+    prog = p.source;
+    parsed = p;
+  }
+
+  /** Returns the optimized form of prog (see Parser.parseAndOptimize), which is evaluated by the compiled, abstract
+    * machine, bytecode, parallel, counting, and profiling engines.  It is computed when one of them first needs it,
+    * and is shared like prog. */
+  AST optimized() { return parsed.optimized(); }
+  
   /* Interpreter API: the public methods of this Jam Interpreter */
   
   /** Parses and ValueValue interprets the input embeded in parser, returning the result. */
@@ -77,7 +105,93 @@ class Interpreter {
   
   /** Parses and NeedNeed interprets the input embeded in parser, returning the result. */
   public JamVal needNeed() { return prog.accept(needNeedVisitor); }
-  
+
+  /* Compiled evaluation: the same nine forms of evaluation, performed by compiling optimized into a tree of
+   * executable Nodes (see Compiler) and executing it, rather than by interpreting prog with an EvalVisitor. */
+
+  /** Compiles and ValueValue evaluates the input embedded in parser, returning the result. */
+  public JamVal compiledValueValue() { return Compiler.VALUE_VALUE.run(optimized()); }
+
+  /** Compiles and ValueName evaluates the input embedded in parser, returning the result. */
+  public JamVal compiledValueName() { return Compiler.VALUE_NAME.run(optimized()); }
+
+  /** Compiles and ValueNeed evaluates the input embedded in parser, returning the result. */
+  public JamVal compiledValueNeed() { return Compiler.VALUE_NEED.run(optimized()); }
+
+  /** Compiles and NameValue evaluates the input embedded in parser, returning the result. */
+  public JamVal compiledNameValue() { return Compiler.NAME_VALUE.run(optimized()); }
+
+  /** Compiles and NameName evaluates the input embedded in parser, returning the result. */
+  public JamVal compiledNameName() { return Compiler.NAME_NAME.run(optimized()); }
+
+  /** Compiles and NameNeed evaluates the input embedded in parser, returning the result. */
+  public JamVal compiledNameNeed() { return Compiler.NAME_NEED.run(optimized()); }
+
+  /** Compiles and NeedValue evaluates the input embedded in parser, returning the result. */
+  public JamVal compiledNeedValue() { return Compiler.NEED_VALUE.run(optimized()); }
+
+  /** Compiles and NeedName evaluates the input embedded in parser, returning the result. */
+  public JamVal compiledNeedName() { return Compiler.NEED_NAME.run(optimized()); }
+
+  /** Compiles and NeedNeed evaluates the input embedded in parser, returning the result. */
+  public JamVal compiledNeedNeed() { return Compiler.NEED_NEED.run(optimized()); }
+
+  /* Evaluation by an abstract machine: the same nine forms of evaluation, performed by a CekMachine, which keeps its
+   * control stack on the heap so that deep recursion does not overflow the Java stack. */
+
+  /** ValueValue evaluates the input embedded in parser using a CekMachine, returning the result. */
+  public JamVal cekValueValue() { return CekMachine.VALUE_VALUE.run(optimized()); }
+
+  /** ValueName evaluates the input embedded in parser using a CekMachine, returning the result. */
+  public JamVal cekValueName() { return CekMachine.VALUE_NAME.run(optimized()); }
+
+  /** ValueNeed evaluates the input embedded in parser using a CekMachine, returning the result. */
+  public JamVal cekValueNeed() { return CekMachine.VALUE_NEED.run(optimized()); }
+
+  /** NameValue evaluates the input embedded in parser using a CekMachine, returning the result. */
+  public JamVal cekNameValue() { return CekMachine.NAME_VALUE.run(optimized()); }
+
+  /** NameName evaluates the input embedded in parser using a CekMachine, returning the result. */
+  public JamVal cekNameName() { return CekMachine.NAME_NAME.run(optimized()); }
+
+  /** NameNeed evaluates the input embedded in parser using a CekMachine, returning the result. */
+  public JamVal cekNameNeed() { return CekMachine.NAME_NEED.run(optimized()); }
+
+  /** NeedValue evaluates the input embedded in parser using a CekMachine, returning the result. */
+  public JamVal cekNeedValue() { return CekMachine.NEED_VALUE.run(optimized()); }
+
+  /** NeedName evaluates the input embedded in parser using a CekMachine, returning the result. */
+  public JamVal cekNeedName() { return CekMachine.NEED_NAME.run(optimized()); }
+
+  /** NeedNeed evaluates the input embedded in parser using a CekMachine, returning the result. */
+  public JamVal cekNeedNeed() { return CekMachine.NEED_NEED.run(optimized()); }
+
+  /** Compiles the input embedded in parser to JVM bytecode and ValueValue evaluates it, returning the result.  A
+    * program too large for the class file format is executed by the ValueValue Compiler instead. */
+  public JamVal bytecodeValueValue() {
+    Node code = BytecodeCompiler.compile(optimized());
+    if (code == null) return compiledValueValue();
+    return code.execute(null);
+  }
+
+  /** Compiles and ValueValue evaluates the input embedded in parser, evaluating independent subexpressions that may
+    * apply closures in parallel (see ParallelCompiler), returning the result. */
+  public JamVal parallelValueValue() { return ParallelCompiler.ONLY.run(optimized()); }
+
+  /** Compiles and ValueNeed evaluates the input embedded in parser, executing the arguments of each lazy cons
+    * speculatively in parallel (see NodeSpeculativeCons), returning the result. */
+  public JamVal compiledValueSpeculative() { return Compiler.VALUE_SPECULATIVE.run(optimized()); }
+
+  /** Compiles and evaluates the input embedded in parser in the form of evaluation named by mode ("valueValue" ...
+    * "needNeed"), counting the bindings, suspension evaluations, cons cells, and applications it performs (see
+    * CountingCompiler); returns the counts together with the printed value. */
+  public EvalStats compiledStats(String mode) { return CountingCompiler.run(optimized(), mode); }
+
+  /** Compiles and evaluates the input embedded in parser in the form of evaluation named by mode, sampling the Jam
+    * definitions being executed every interval microseconds (see ProfilingCompiler); returns the samples together
+    * with the printed value. */
+  public EvalProfile compiledProfile(String mode, long interval) { return ProfilingCompiler.run(optimized(), mode, interval); }
+
   
   /* Interfaces that support different forms of Binding and different forms of list construction */
   
@@ -210,7 +324,10 @@ class Interpreter {
   static final ASTVisitor<JamVal> needNeedVisitor = new EvalVisitor(CALL_BY_NEED, LAZYNEED);
   
   
-  /** Primary visitor class for performing interpretation. */
+  /** Primary visitor class for performing interpretation.  Integer results of arithmetic are constructed using
+    * IntConstant.of so that small values are shared rather than allocated.  Operator applications and the tests of
+    * Ifs can be evaluated using ArithEvaluator, which computes arithmetic subtrees on unboxed ints and lets forIf
+    * branch on the Java boolean produced by a comparison. */
   static class EvalVisitor implements ASTVisitor<JamVal> {
     
     /* Assumes that:
@@ -237,6 +354,14 @@ class Interpreter {
     
     public EvalVisitor(BindingPolicy bp, ConsPolicy cp) { this(new Empty<Binding>(), bp, cp); }
     
+    /** Returns the binding for v in env.  Every variable occurrence in a program produced by 
+      * Parser.parseAndResolve() is a LexicalVariable, whose precomputed address replaces the comparison of v against
+      * each binding in env. Returns null if v is not bound in env. */
+    Binding lookup(Variable v) {
+      if (v instanceof LexicalVariable) return ((LexicalVariable) v).lookup(env);
+      return env.accept(new LookupVisitor<Binding>(v));
+    }
+    
     /** Your code goes here ... */
     
     /* ASTVisitor<JamVal> methods */
@@ -266,7 +391,8 @@ class Interpreter {
       public JamVal forPrimFun(PrimFun primFun) {  /** Your code goes here ... */ }
     }
     
-    /** Evaluator for unary operators. Operand is already value (JamVal). */
+    /** Evaluator for unary operators. Operand is already value (JamVal). Integer results are constructed using
+      * IntConstant.of. */
     static class UnOpEvaluator implements UnOpVisitor<JamVal> {
       /** Your code goes here ... */
       
@@ -5,24 +5,31 @@
   * 
   * The method peek() in the Lexer class has the same behavior as readToken() except for the fact that it does not
   * advance the cursor.
+  *
+  * The lexer reads its entire input into a char array and scans that array directly.  Integer literals are
+  * accumulated as ints, keywords and primitive function names are recognized by a switch on their first character,
+  * and variable names are interned in a hash table keyed by the characters in the array, so a word allocates
+  * a String only the first time it appears.
   */
 
-import java.io.BufferedReader;
-import java.io.FileReader;
-import java.io.InputStreamReader;
 import java.io.IOException;
 import java.io.Reader;
-import java.io.StreamTokenizer;
-import java.util.HashMap;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 
-class Lexer extends StreamTokenizer {
+class Lexer {
   
-  /* short names for StreamTokenizer codes */
+  /* character codes */
   
-  public static final int WORD = StreamTokenizer.TT_WORD; 
-  public static final int NUMBER = StreamTokenizer.TT_NUMBER; 
-  public static final int EOF = StreamTokenizer.TT_EOF; 
-  public static final int EOL = StreamTokenizer.TT_EOL; 
+  /** Code returned by skipWhitespace() at the end of the input. */
+  public static final int EOF = -1;
+  /** The end of line character, which terminates // comments. */
+  public static final int EOL = '\n';
   
   /* operator Tokens */
   
@@ -66,63 +73,111 @@ class Lexer extends StreamTokenizer {
   
   /* fields */
   
-  /** The Reader from which this lexer reads. */
+  /** The Reader from which this lexer reads; null if the lexer was constructed from a char array. */
   public final Reader rdr;
   
-  /* The wordtable for classifying words in token stream */
-  public HashMap<String,Token>  wordTable = new HashMap<String,Token>();
+  /** The input being scanned. */
+  private final char[] chars;
+  
+  /** The number of characters of input in chars. */
+  private final int limit;
+  
+  /** The index in chars of the next character to be scanned. */
+  private int pos;
+  
+  /** Open-addressing hash table of the Variables created by this lexer, keyed by name.  Its length is a power of 2. 
+    * Every occurrence of a name yields the same Variable, so == can be used to compare Variables. */
+  private Variable[] vars = new Variable[64];
+  
+  /** The number of Variables in vars. */
+  private int varCount = 0;
 
-  /** The buffer holding the next token in the intput stream; it is used to support the peek() operation, which cannot
-    * be implemented using StreamTokenizer pushBack because some Tokens are composed of two StreamTokenizer tokens. */
+  /** The buffer holding the next token in the intput stream; it is used to support the peek() operation. */
   Token buffer;
  
   /* constructors */
 
-  /** Constructs a Lexer for the specified inputStream */
-  Lexer(Reader inputStream) {
-    super(new BufferedReader(inputStream));
-    rdr = inputStream;
-    initLexer();
-  }
+  /** Constructs a Lexer for the first length characters of chars, which must not be modified while the Lexer is in
+    * use. */
+  Lexer(char[] chars, int length) { this(chars, length, null); }
+
+  /** Constructs a Lexer for the specified inputStream, which is read in its entirety. */
+  Lexer(Reader inputStream) { this(readAll(inputStream), inputStream); }
 
-  /** Constructor that uses a File as the input stream. */
+  /** Constructor that uses a File as the input stream.  The file is mapped into memory and decoded directly into the
+    * array scanned by the lexer. */
   Lexer(String fileName) throws IOException {
-    this(new FileReader(fileName));
+    this(readFile(fileName), null);
   }
-
-  /* Initializes lexer tables and the StreamTokenizer that the lexer extends */
-  private void initLexer() {
-
-    // configure StreamTokenizer portion of this
-    resetSyntax();
-    parseNumbers();
-    ordinaryChar('-');
-    slashSlashComments(true);
-    wordChars('0', '9');
-    wordChars('a', 'z');
-    wordChars('A', 'Z');
-    wordChars('_', '_');
-    wordChars('?', '?');
-    whitespaceChars(0, ' '); 
-
-    // `+' `-' `*' `/' `~' `=' `<' `>' `&' `|' `:' `;' `,' '!'
-    // `(' `)' `[' `]' are ordinary characters (self-delimiting)
-
-    initWordTable();
+  
+  private Lexer(char[] chars, Reader r) { this(chars, chars.length, r); }
+  
+  private Lexer(char[] cs, int length, Reader r) {
+    chars = cs;
+    limit = length;
+    rdr = r;
+    pos = 0;
     buffer = null;  // buffer initially empty
   }
+  
+  /** Reads all of the characters available from r, then closes r. */
+  static char[] readAll(Reader r) {
+    try {
+      try {
+        char[] cs = new char[8192];
+        int n = 0;
+        for (int k; (k = r.read(cs, n, cs.length - n)) >= 0; ) {
+          n += k;
+          if (n == cs.length) cs = Arrays.copyOf(cs, 2 * n);
+        }
+        return Arrays.copyOf(cs, n);
+      }
+      finally { r.close(); }
+    }
+    catch(IOException e) { throw new ParseException(e); }
+  }
 
-  /** Resets the reader embedded in this lexer.  The same file may be scanned multiple times in tests. */
+  /** Reads the file named fileName by mapping it into memory.  Jam programs are normally ASCII, so bytes are
+    * converted to chars directly from the mapped buffer.  If the file contains a non-ASCII byte, the file is decoded
+    * using the default charset instead, as a FileReader would decode it. */
+  static char[] readFile(String fileName) throws IOException {
+    FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+    try {
+      long size = channel.size();
+      if (size > Integer.MAX_VALUE) throw new IOException("File " + fileName + " is too large to parse");
+      MappedByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+      int n = (int) size;
+      char[] cs = new char[n];
+      for (int i = 0; i < n; i++) {
+        byte b = bytes.get(i);
+        if (b < 0) {  // not ASCII
+          CharBuffer decoded = Charset.defaultCharset().decode(bytes);
+          cs = new char[decoded.remaining()];
+          decoded.get(cs);
+          return cs;
+        }
+        cs[i] = (char) b;
+      }
+      return cs;
+    }
+    finally { channel.close(); }
+  }
+
+  /** Resets this lexer to the beginning of its input.  The same file may be scanned multiple times in tests. */
   public void reset() throws ParseException { 
-    try { rdr.reset(); }
-    catch(IOException e) { throw new ParseException(e); }
+    pos = 0;
+    buffer = null;
+  }
+  
+  /** Closes the reader (if any) embedded in this lexer. */
+  public void close() throws IOException { 
+    if (rdr != null) rdr.close();
   }
   
-  /** Reads tokens until next end-of-line */
-  public void flush() throws IOException {
-    eolIsSignificant(true);
-    while (nextToken() != EOL) ; // eat tokens until EOL
-    eolIsSignificant(false);
+  /** Skips the input through the next end-of-line. */
+  public void flush() {
+    buffer = null;
+    while (pos < limit && chars[pos++] != EOL) ; // eat characters until EOL
   }
 
   /** Returns the next token in the input stream without consuming it */
@@ -130,27 +185,41 @@ class Lexer extends StreamTokenizer {
     if (buffer == null) buffer = readToken();
     return buffer;
   }
-    
-  /** Reads the next token as defined by StreamTokenizer in the input stream (consuming it). */
-  private int getToken() {
-    // synonymous with nextToken() except for throwing an unchecked 
-    // ParseException instead of a checked IOException
-    try {
-      int tokenType = nextToken();
-      return tokenType;
-    } catch(IOException e) {
-      throw new ParseException("IOException " + e + "thrown by nextToken()");
+  
+  /** Skips whitespace (all characters up to and including ' ') and // comments.  Returns the next character, which
+    * is not consumed, or EOF. */
+  private int skipWhitespace() {
+    while (pos < limit) {
+      char c = chars[pos];
+      if (c <= ' ') pos++;
+      else if (c == '/' && pos + 1 < limit && chars[pos + 1] == '/') {
+        pos += 2;
+        while (pos < limit && chars[pos] != EOL) pos++;
+      }
+      else return c;
     }
+    return EOF;
+  }
+  
+  /** Returns true if c can begin a word (a variable, keyword, or primitive function name).  Characters beyond the
+    * Latin-1 range are word characters. */
+  private static boolean isWordStart(char c) {
+    return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_' || c == '?' || c >= 256;
+  }
+  
+  /** Returns true if c can appear in a word after its first character.  As in the StreamTokenizer-based lexer used
+    * in earlier assignments, digits and '.' can continue a word. */
+  private static boolean isWordChar(char c) {
+    return isWordStart(c) || (c >= '0' && c <= '9') || c == '.';
   }
 
   /** Reads the next Token in the input stream (consuming it) */
   public Token readToken() {
     
-    /* Uses getToken() to read next token and constructs the Token object representing that token.
-     * NOTE: token representations for all Token classes except IntConstant are unique; a HashMap 
-     * is used to avoid duplication.  Hence, == can safely be used to compare all Tokens except 
-     * IntConstants for equality (assuming that code does not gratuitously create Tokens).  When the
-     * stream is reduced to EOT, returns null instead of a Token.
+    /* NOTE: token representations for all Token classes except IntConstant are unique; the keyword switch and the
+     * variable table are used to avoid duplication.  Hence, == can safely be used to compare all Tokens except 
+     * IntConstants for equality (assuming that code does not gratuitously create Tokens).  IntConstant.of shares
+     * small IntConstants, but not large ones.  When the input is exhausted, returns EndOfFile.ONLY.
      */
     
     if (buffer != null) {
@@ -159,25 +228,15 @@ class Lexer extends StreamTokenizer {
       return token;
     }
     
-    int tokenType = getToken();
+    int c = skipWhitespace();
+    if (c == EOF) return EndOfFile.ONLY;
+    char ch = (char) c;
+    if ((ch >= '0' && ch <= '9') || ch == '.') return readNumber();
+    if (isWordStart(ch)) return readWord();
+    pos++;
     
-    switch (tokenType) {
+    switch (ch) {
       
-      case NUMBER:
-        int value = (int) nval;
-        if (nval == (double) value) return new IntConstant(value);
-        throw new ParseException("The number " + nval + " is not a 32 bit integer");
-      case WORD:
-        Token regToken = wordTable.get(sval);
-        if (regToken == null) {
-          // must be new variable name
-          Variable newVar = new Variable(sval);
-          wordTable.put(sval, newVar);
-          return newVar;
-        }
-        return regToken;
-        
-      case EOF: return EndOfFile.ONLY;
       case '(': return LeftParen.ONLY;
       case ')': return RightParen.ONLY;
       case '[': return LeftBrack.ONLY;
@@ -195,22 +254,16 @@ class Lexer extends StreamTokenizer {
       case '=': return EQUALS;
       
       case '<': 
-        tokenType = getToken();
-        if (tokenType == '=') return LESS_THAN_EQUALS;  
-//      if (tokenType == '-') return GETS;    // Used to support reference cells
-        pushBack();
+        if (skipWhitespace() == '=') { pos++; return LESS_THAN_EQUALS; }
+//      if (skipWhitespace() == '-') { pos++; return GETS; }    // Used to support reference cells
         return LESS_THAN; 
         
       case '>': 
-        tokenType = getToken();
-        if (tokenType == '=') return GREATER_THAN_EQUALS;  
-        pushBack();
+        if (skipWhitespace() == '=') { pos++; return GREATER_THAN_EQUALS; }
         return GREATER_THAN;
         
       case '!': 
-        tokenType = getToken();
-        if (tokenType == '=') return NOT_EQUALS;
-        pushBack();
+        if (skipWhitespace() == '=') { pos++; return NOT_EQUALS; }
         throw new ParseException("'!' is not a legal token"); 
         
         /* this alternative code line replaces the code line and supports the BANG operator in context of reference cells */
@@ -219,53 +272,151 @@ class Lexer extends StreamTokenizer {
       case '&': return AND;  
       case '|': return OR;  
       case ':': {
-        tokenType = getToken();
-        if (tokenType == '=') return BIND;   // ":=" is a keyword
-        pushBack();
+        if (skipWhitespace() == '=') { pos++; return BIND; }   // ":=" is a keyword
         throw new ParseException("':' is not a legal token");
       }
       default:  
         throw new 
-        ParseException("'" + ((char) tokenType) + "' is not a legal token");
+        ParseException("'" + ch + "' is not a legal token");
     }
   }
-    
-  /** Initializes the table of Strings used to recognize Tokens */
-  private void initWordTable() {
-    // initialize wordTable
+  
+  /** Reads an integer literal starting at pos.  A literal may include a decimal point provided that no non-zero
+    * digit follows it; "3.0" denotes 3. */
+  private Token readNumber() {
+    int start = pos;
+    long value = 0;
+    boolean overflow = false;
+    char c;
+    while (pos < limit && (c = chars[pos]) >= '0' && c <= '9') {
+      value = 10 * value + (c - '0');
+      if (value > Integer.MAX_VALUE) overflow = true;
+      pos++;
+    }
+    boolean fraction = false;
+    if (pos < limit && chars[pos] == '.') {
+      pos++;
+      while (pos < limit && (c = chars[pos]) >= '0' && c <= '9') {
+        if (c != '0') fraction = true;
+        pos++;
+      }
+    }
+    if (overflow || fraction) {
+      String number = new String(chars, start, pos - start);
+      throw new ParseException("The number " + number + " is not a 32 bit integer");
+    }
+    return IntConstant.of((int) value);
+  }
+  
+  /** Reads a word starting at pos and returns the corresponding keyword, constant, primitive function, or 
+    * Variable. */
+  private Token readWord() {
+    int start = pos;
+    int hash = 0;
+    char c;
+    while (pos < limit && isWordChar(c = chars[pos])) {
+      hash = 31 * hash + c;
+      pos++;
+    }
+    int length = pos - start;
+    Token regToken = reservedWord(start, length);
+    if (regToken != null) return regToken;
+    return variable(start, length, hash);
+  }
+  
+  /** Returns true if the word of the given length at start in chars is w. */
+  private boolean is(int start, int length, String w) {
+    if (length != w.length()) return false;
+    for (int i = 0; i < length; i++) if (chars[start + i] != w.charAt(i)) return false;
+    return true;
+  }
+  
+  /** Returns the Token for the constant, primitive function or keyword of the given length at start in chars, or
+    * null if that word is not reserved. */
+  private Token reservedWord(int start, int length) {
     
     // constants
     // <empty>  ::= empty
     // <bool>  ::= true | false
     
-    wordTable.put("empty", EmptyConstant.ONLY);
-    wordTable.put("true",  BoolConstant.TRUE);
-    wordTable.put("false", BoolConstant.FALSE); 
-    
-    // Install primitive functions // (and unary operator named "ref" which is added in Assignment 4)
+    // primitive functions // (and unary operator named "ref" which is added in Assignment 4)
     // <prim>  ::= number? | function? | list? | empty? | cons? | ref? | arity | cons | first | rest 
     // Note: ref? is added in Assignment 4
     
-    wordTable.put("number?",   NumberPPrim.ONLY);
-    wordTable.put("function?", FunctionPPrim.ONLY);
-    wordTable.put("list?",     ListPPrim.ONLY);
-    wordTable.put("empty?",    EmptyPPrim.ONLY);
-    wordTable.put("cons?",     ConsPPrim.ONLY);
-//    wordTable.put("ref?",      RefPPrim.ONLY);  // Supports the addition of reference cells
-//    wordTable.put("ref",       REF);            // Supports the addition of reference cells
-    wordTable.put("arity",     ArityPrim.ONLY);  
-    wordTable.put("cons",      ConsPrim.ONLY);
-    wordTable.put("first",     FirstPrim.ONLY);
-    wordTable.put("rest",      RestPrim.ONLY);
-    
-    
     // keywords: if then else let in map to := 
-    wordTable.put("if",   Lexer.IF);
-    wordTable.put("then", Lexer.THEN);
-    wordTable.put("else", Lexer.ELSE);
-    wordTable.put("let",  Lexer.LET);
-    wordTable.put("in",   Lexer.IN);
-    wordTable.put("map",  Lexer.MAP);
-    wordTable.put("to",   Lexer.TO);    
+    
+    switch (chars[start]) {
+      case 'a':
+        if (is(start, length, "arity")) return ArityPrim.ONLY;
+        break;
+      case 'c':
+        if (is(start, length, "cons")) return ConsPrim.ONLY;
+        if (is(start, length, "cons?")) return ConsPPrim.ONLY;
+        break;
+      case 'e':
+        if (is(start, length, "else")) return Lexer.ELSE;
+        if (is(start, length, "empty")) return EmptyConstant.ONLY;
+        if (is(start, length, "empty?")) return EmptyPPrim.ONLY;
+        break;
+      case 'f':
+        if (is(start, length, "false")) return BoolConstant.FALSE;
+        if (is(start, length, "first")) return FirstPrim.ONLY;
+        if (is(start, length, "function?")) return FunctionPPrim.ONLY;
+        break;
+      case 'i':
+        if (is(start, length, "if")) return Lexer.IF;
+        if (is(start, length, "in")) return Lexer.IN;
+        break;
+      case 'l':
+        if (is(start, length, "let")) return Lexer.LET;
+        if (is(start, length, "list?")) return ListPPrim.ONLY;
+        break;
+      case 'm':
+        if (is(start, length, "map")) return Lexer.MAP;
+        break;
+      case 'n':
+        if (is(start, length, "number?")) return NumberPPrim.ONLY;
+        break;
+      case 'r':
+        if (is(start, length, "rest")) return RestPrim.ONLY;
+//      if (is(start, length, "ref?")) return RefPPrim.ONLY;  // Supports the addition of reference cells
+//      if (is(start, length, "ref")) return REF;             // Supports the addition of reference cells
+        break;
+      case 't':
+        if (is(start, length, "then")) return Lexer.THEN;
+        if (is(start, length, "to")) return Lexer.TO;
+        if (is(start, length, "true")) return BoolConstant.TRUE;
+        break;
+    }
+    return null;
+  }
+  
+  /** Returns the unique Variable named by the word of the given length at start in chars, creating it if this is the
+    * first occurrence of the name. */
+  private Variable variable(int start, int length, int hash) {
+    int mask = vars.length - 1;
+    int i = (hash ^ (hash >>> 16)) & mask;
+    for (Variable v = vars[i]; v != null; v = vars[i]) {
+      if (is(start, length, v.name())) return v;
+      i = (i + 1) & mask;
+    }
+    Variable newVar = new Variable(new String(chars, start, length));
+    vars[i] = newVar;
+    if (++varCount > vars.length / 2) rehash();
+    return newVar;
+  }
+  
+  /** Doubles the size of the variable table. */
+  private void rehash() {
+    Variable[] old = vars;
+    vars = new Variable[2 * old.length];
+    int mask = vars.length - 1;
+    for (Variable v : old) {
+      if (v == null) continue;
+      int hash = v.name().hashCode();  // same function used in readWord
+      int i = (hash ^ (hash >>> 16)) & mask;
+      while (vars[i] != null) i = (i + 1) & mask;
+      vars[i] = v;
+    }
   }
-}
\ No newline at end of file
+}
@@ -0,0 +1,52 @@
+/* Benchmark for the list operations defined in ValuesTokens.java.  Run as
+ *   java ListBenchmark [maxLength]
+ * For lengths 10^3, 10^4, ... up to maxLength (default 10^7), builds two equal JamLists of that length and times
+ * equals, hashCode, contains (of an absent element), append, and printing, reporting the time per element.  Since
+ * each operation is a single pass over the list, the time per element should stay roughly constant as the length
+ * grows.  Printing uses toStringHelp with a depth bound equal to the length so that every element is printed; the
+ * default heap may need to be raised (e.g. -Xmx2g) to print a list of 10^7 elements. */
+class ListBenchmark {
+
+  /** Number of times each operation is repeated at each length; the fastest repetition is reported. */
+  static final int REPEATS = 5;
+
+  /** Returns the list (0 1 ... n-1). */
+  static JamList list(int n) {
+    JamList l = JamEmpty.ONLY;
+    for (int i = n - 1; i >= 0; i--) l = new JamCons(IntConstant.of(i), l);
+    return l;
+  }
+
+  /** An operation on two equal lists; returns a result so that the operation cannot be optimized away. */
+  interface Op { Object run(JamList l1, JamList l2); }
+
+  static final String[] NAMES = { "equals", "hashCode", "contains", "append", "toString" };
+  static final Op[] OPS = {
+    new Op() { public Object run(JamList l1, JamList l2) { return l1.equals(l2); } },
+    new Op() { public Object run(JamList l1, JamList l2) { return l1.hashCode(); } },
+    new Op() { public Object run(JamList l1, JamList l2) { return l1.contains(IntConstant.of(-1)); } },
+    new Op() { public Object run(JamList l1, JamList l2) { return l1.append(JamEmpty.ONLY); } },
+    new Op() { public Object run(JamList l1, JamList l2) { return l1.toStringHelp(Integer.MAX_VALUE).length(); } }
+  };
+
+  public static void main(String[] args) {
+    int max = args.length > 0 ? Integer.parseInt(args[0]) : 10000000;
+    System.out.print("length    ");
+    for (String name: NAMES) System.out.print(String.format("%12s", name));
+    System.out.println("   (ns per element)");
+    for (int n = 1000; n <= max; n *= 10) {
+      JamList l1 = list(n), l2 = list(n);
+      System.out.print(String.format("%-10d", n));
+      for (Op op: OPS) {
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < REPEATS; i++) {
+          long start = System.nanoTime();
+          op.run(l1, l2);
+          best = Math.min(best, System.nanoTime() - start);
+        }
+        System.out.print(String.format("%12.2f", (double) best / n));
+      }
+      System.out.println();
+    }
+  }
+}
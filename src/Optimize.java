@@ -0,0 +1,629 @@
+/* Optimization passes over checked Jam programs.  Each pass is a visitor that rewrites an AST produced by
+ * Parser.parseAndCheck() into an equivalent AST before the program is resolved and evaluated: the rewritten program
+ * produces the same value, or reports the same run-time error, as the original under every binding and cons policy. */
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+
+/** Visitor that folds constant subexpressions.  Applications of unary and binary operators to constant operands are
+  * replaced by their values, Ifs whose tests are constants are replaced by the selected branch, and applications of
+  * the type predicates and arity to literal arguments are replaced by their values, all bottom-up, so folding one
+  * subexpression can expose another.  An operation that would fail at run time, such as division by zero or an
+  * operator applied to an operand of the wrong type, is left in place so that the error is still reported when the
+  * program runs.  first(cons(a, empty)) is replaced by a, and rest(cons(a, b)) by b when a is a literal and b is
+  * empty or an application of cons, which is sound for eager and lazy cons alike. */
+class ConstantFolder implements ASTVisitor<AST> {
+
+  public static final ConstantFolder ONLY = new ConstantFolder();
+  private ConstantFolder() {}
+
+  /** Returns true if a is a literal: a constant, a primitive function, or a Map, whose evaluation cannot fail. */
+  static boolean isLiteral(AST a) { return a instanceof Constant || a instanceof PrimFun || a instanceof Map; }
+
+  /** Folds each element of asts. */
+  private AST[] fold(AST[] asts) {
+    int n = asts.length;
+    AST[] result = new AST[n];
+    for (int i = 0; i < n; i++) result[i] = asts[i].accept(this);
+    return result;
+  }
+
+  /* Visitor methods. */
+
+  public AST forBoolConstant(BoolConstant b) { return b; }
+  public AST forIntConstant(IntConstant i) { return i; }
+  public AST forEmptyConstant(EmptyConstant n) { return n; }
+  public AST forVariable(Variable v) { return v; }
+  public AST forPrimFun(PrimFun f) { return f; }
+
+  public AST forUnOpApp(UnOpApp u) {
+    UnOp op = u.rator();
+    AST arg = u.arg().accept(this);
+    if (arg instanceof IntConstant) {
+      if (op == UnOpPlus.ONLY) return arg;
+      if (op == UnOpMinus.ONLY) return IntConstant.of(- ((IntConstant) arg).value());
+    }
+    if (arg instanceof BoolConstant && op == OpTilde.ONLY) return ((BoolConstant) arg).not();
+    return new UnOpApp(op, arg);
+  }
+
+  public AST forBinOpApp(BinOpApp b) {
+    BinOp op = b.rator();
+    AST arg1 = b.arg1().accept(this);
+    AST arg2 = b.arg2().accept(this);
+    if (op == OpAnd.ONLY || op == OpOr.ONLY) {
+      /* false & e and true | e do not evaluate e */
+      if (arg1 instanceof BoolConstant && ((BoolConstant) arg1).value() == (op == OpOr.ONLY)) return arg1;
+      if (arg1 instanceof BoolConstant && arg2 instanceof BoolConstant) return arg2;
+    }
+    else if (op == OpEquals.ONLY || op == OpNotEquals.ONLY) {
+      if (arg1 instanceof Constant && arg2 instanceof Constant) {
+        boolean equal = value((Constant) arg1).equals(value((Constant) arg2));
+        return BoolConstant.toBoolConstant(equal == (op == OpEquals.ONLY));
+      }
+    }
+    else if (arg1 instanceof IntConstant && arg2 instanceof IntConstant) {
+      int i = ((IntConstant) arg1).value();
+      int j = ((IntConstant) arg2).value();
+      if (op == BinOpPlus.ONLY) return IntConstant.of(i + j);
+      if (op == BinOpMinus.ONLY) return IntConstant.of(i - j);
+      if (op == OpTimes.ONLY) return IntConstant.of(i * j);
+      if (op == OpDivide.ONLY && j != 0) return IntConstant.of(i / j);
+      if (op == OpLessThan.ONLY) return BoolConstant.toBoolConstant(i < j);
+      if (op == OpLessThanEquals.ONLY) return BoolConstant.toBoolConstant(i <= j);
+      if (op == OpGreaterThan.ONLY) return BoolConstant.toBoolConstant(i > j);
+      if (op == OpGreaterThanEquals.ONLY) return BoolConstant.toBoolConstant(i >= j);
+    }
+    return new BinOpApp(op, arg1, arg2);
+  }
+
+  public AST forApp(App a) {
+    AST rator = a.rator().accept(this);
+    AST[] args = fold(a.args());
+    if (rator instanceof PrimFun && args.length == 1) {
+      AST folded = foldPrim((PrimFun) rator, args[0]);
+      if (folded != null) return folded;
+    }
+    return new App(rator, args);
+  }
+
+  public AST forMap(Map m) { return new Map(m.vars(), m.body().accept(this)); }
+
+  public AST forIf(If i) {
+    AST test = i.test().accept(this);
+    if (test == BoolConstant.TRUE) return i.conseq().accept(this);
+    if (test == BoolConstant.FALSE) return i.alt().accept(this);
+    return new If(test, i.conseq().accept(this), i.alt().accept(this));
+  }
+
+  public AST forLet(Let l) {
+    Def[] defs = l.defs();
+    int n = defs.length;
+    Def[] newDefs = new Def[n];
+    for (int i = 0; i < n; i++) newDefs[i] = new Def(defs[i].lhs(), defs[i].rhs().accept(this));
+    return new Let(newDefs, l.body().accept(this));
+  }
+
+  /* Support for folding. */
+
+  /** Returns the value of the constant c. */
+  private static JamVal value(Constant c) {
+    if (c instanceof EmptyConstant) return JamEmpty.ONLY;
+    return (JamVal) c;
+  }
+
+  /** Returns the folded form of the application of prim to the folded argument arg, or null if it cannot be folded. */
+  private static AST foldPrim(PrimFun prim, AST arg) {
+    if (prim == FirstPrim.ONLY || prim == RestPrim.ONLY) {
+      if (! (arg instanceof App) || ((App) arg).rator() != ConsPrim.ONLY) return null;
+      AST[] consArgs = ((App) arg).args();
+      if (consArgs.length != 2) return null;
+      AST fst = consArgs[0], rst = consArgs[1];
+      if (prim == FirstPrim.ONLY) return rst == EmptyConstant.ONLY ? fst : null;
+      boolean rstIsList = rst == EmptyConstant.ONLY || (rst instanceof App && ((App) rst).rator() == ConsPrim.ONLY &&
+                                                         ((App) rst).args().length == 2);
+      return isLiteral(fst) && rstIsList ? rst : null;
+    }
+    if (! isLiteral(arg)) return null;
+    if (prim == FunctionPPrim.ONLY) return BoolConstant.toBoolConstant(arg instanceof PrimFun || arg instanceof Map);
+    if (prim == NumberPPrim.ONLY) return BoolConstant.toBoolConstant(arg instanceof IntConstant);
+    if (prim == ListPPrim.ONLY || prim == EmptyPPrim.ONLY) return BoolConstant.toBoolConstant(arg == EmptyConstant.ONLY);
+    if (prim == ConsPPrim.ONLY) return BoolConstant.FALSE;  // a literal is never a cons
+    if (prim == ArityPrim.ONLY) {
+      if (arg instanceof Map) return IntConstant.of(((Map) arg).vars().length);
+      if (arg instanceof PrimFun) return IntConstant.of(arg == ConsPrim.ONLY ? 2 : 1);
+    }
+    return null;
+  }
+}
+
+/** Visitor that removes the overhead of closures that are applied where they are defined.  It performs three
+  * rewrites, bottom-up:
+  *   (map x1, ..., xn to e)(a1, ..., an)  becomes  let x1 := a1; ... xn := an; in e
+  * provided no xi occurs in any aj, so the Let does not capture variables of the arguments;
+  *   f(a1, ..., an), in the body of a Let that binds f to a small Map that does not reference the variables of the Let,
+  * is replaced by the application of a copy of the Map, which is then reduced as above, provided no binder between
+  * the Let and the application rebinds f or a variable that occurs in the Map;
+  *   a definition in a Let whose variable is not referenced by the body or by the right-hand side of another remaining
+  * definition is removed, provided its right-hand side is a literal (see ConstantFolder.isLiteral).
+  * Each rewrite preserves values and errors under every binding policy: the right-hand side of a removed definition
+  * could not fail or diverge even if it were evaluated, and an application of a Map whose arity matches its arguments
+  * evaluates or binds the arguments in the same order as the corresponding Let. */
+class Inliner implements ASTVisitor<AST> {
+
+  /** The largest Map, as measured by size(AST), that is copied to its call sites. */
+  static final int INLINE_LIMIT = 16;
+
+  /** Root form of Inliner, in which no variables are bound to inlinable Maps. */
+  public static final Inliner INITIAL = new Inliner(new Empty<Def>());
+
+  /** The definitions, innermost first, of the variables in scope that are bound to inlinable Maps. */
+  PureList<Def> inlinable;
+
+  Inliner(PureList<Def> i) { inlinable = i; }
+
+  /** Returns the visitor for the scope of a binder of vars nested in this scope: the definitions that vars rebind, and
+    * those whose Maps reference a variable in vars, are no longer inlinable. */
+  private Inliner bind(Variable[] vars) {
+    PureList<Def> result = new Empty<Def>();
+    boolean changed = false;
+    Compiler.OccursVisitor occurs = new Compiler.OccursVisitor(vars);
+    for (PureList<Def> l = inlinable; l instanceof Cons; l = ((Cons<Def>) l).rest()) {
+      Def d = ((Cons<Def>) l).first();
+      if (d.lhs().accept(occurs) || d.rhs().accept(occurs)) changed = true;
+      else result = result.cons(d);
+    }
+    return changed ? new Inliner(result) : this;
+  }
+
+  /** Returns the definition of the inlinable Map bound to v, or null if v is not bound to one. */
+  private Def lookup(Variable v) {
+    for (PureList<Def> l = inlinable; l instanceof Cons; l = ((Cons<Def>) l).rest()) {
+      Def d = ((Cons<Def>) l).first();
+      if (d.lhs() == v) return d;
+    }
+    return null;
+  }
+
+  private AST[] inline(AST[] asts) {
+    int n = asts.length;
+    AST[] result = new AST[n];
+    for (int i = 0; i < n; i++) result[i] = asts[i].accept(this);
+    return result;
+  }
+
+  /* Visitor methods. */
+
+  public AST forBoolConstant(BoolConstant b) { return b; }
+  public AST forIntConstant(IntConstant i) { return i; }
+  public AST forEmptyConstant(EmptyConstant n) { return n; }
+  public AST forVariable(Variable v) { return v; }
+  public AST forPrimFun(PrimFun f) { return f; }
+  public AST forUnOpApp(UnOpApp u) { return new UnOpApp(u.rator(), u.arg().accept(this)); }
+  public AST forBinOpApp(BinOpApp b) { return new BinOpApp(b.rator(), b.arg1().accept(this), b.arg2().accept(this)); }
+
+  public AST forApp(App a) {
+    AST[] args = inline(a.args());
+    AST rator = a.rator();
+    Map m = null;
+    if (rator instanceof Variable) {
+      Def d = lookup((Variable) rator);
+      if (d != null) m = (Map) d.rhs();
+    }
+    else {
+      rator = rator.accept(this);
+      if (rator instanceof Map) m = (Map) rator;
+    }
+    if (m != null) {
+      AST reduced = reduce(m, args);
+      if (reduced != null) return reduced;
+    }
+    return new App(rator, args);
+  }
+
+  public AST forMap(Map m) { return new Map(m.vars(), m.body().accept(bind(m.vars()))); }
+  public AST forIf(If i) { return new If(i.test().accept(this), i.conseq().accept(this), i.alt().accept(this)); }
+
+  public AST forLet(Let l) {
+    Variable[] vars = l.vars();
+    Inliner inner = bind(vars);
+    Def[] defs = l.defs();
+    int n = defs.length;
+    Def[] newDefs = new Def[n];
+    for (int i = 0; i < n; i++) newDefs[i] = new Def(defs[i].lhs(), defs[i].rhs().accept(inner));
+    Compiler.OccursVisitor occurs = new Compiler.OccursVisitor(vars);
+    PureList<Def> bodyInlinable = inner.inlinable;
+    for (Def d: newDefs) {
+      AST rhs = d.rhs();
+      if (rhs instanceof Map && size(rhs) <= INLINE_LIMIT && ! rhs.accept(occurs)) bodyInlinable = bodyInlinable.cons(d);
+    }
+    return removeDeadDefs(newDefs, l.body().accept(new Inliner(bodyInlinable)));
+  }
+
+  /* Support for the rewrites. */
+
+  /** Returns the Let equivalent to the application of m to args, or null if m does not accept args or its parameters
+    * occur in args. */
+  private static AST reduce(Map m, AST[] args) {
+    Variable[] vars = m.vars();
+    int n = args.length;
+    if (vars.length != n) return null;
+    Compiler.OccursVisitor occurs = new Compiler.OccursVisitor(vars);
+    for (AST arg: args) if (arg.accept(occurs)) return null;
+    Def[] defs = new Def[n];
+    for (int i = 0; i < n; i++) defs[i] = new Def(vars[i], args[i]);
+    return removeDeadDefs(defs, m.body());
+  }
+
+  /** Returns the Let with the definitions defs and the body body, omitting the definitions with literal right-hand
+    * sides that are not referenced, directly or through other definitions, from the body. */
+  private static AST removeDeadDefs(Def[] defs, AST body) {
+    int n = defs.length;
+    boolean[] live = new boolean[n];
+    int liveCount = 0;
+    for (int i = 0; i < n; i++) {
+      live[i] = ! ConstantFolder.isLiteral(defs[i].rhs()) || occurs(defs[i].lhs(), body);
+      if (live[i]) liveCount++;
+    }
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      for (int i = 0; i < n; i++) {
+        if (live[i]) continue;
+        for (int j = 0; j < n && ! live[i]; j++) live[i] = live[j] && occurs(defs[i].lhs(), defs[j].rhs());
+        if (live[i]) {
+          liveCount++;
+          changed = true;
+        }
+      }
+    }
+    if (liveCount == 0) return body;
+    if (liveCount == n) return new Let(defs, body);
+    Def[] liveDefs = new Def[liveCount];
+    for (int i = 0, k = 0; i < n; i++) if (live[i]) liveDefs[k++] = defs[i];
+    return new Let(liveDefs, body);
+  }
+
+  /** Returns true if v occurs in a; shadowing is ignored. */
+  private static boolean occurs(Variable v, AST a) { return a.accept(new Compiler.OccursVisitor(new Variable[] { v })); }
+
+  /** Returns the number of nodes in a. */
+  static int size(AST a) { return a.accept(SizeVisitor.ONLY); }
+
+  /** Visitor that counts the nodes of an AST. */
+  static class SizeVisitor implements ASTVisitor<Integer> {
+    static final SizeVisitor ONLY = new SizeVisitor();
+    private SizeVisitor() {}
+
+    private int size(AST[] asts) {
+      int result = 0;
+      for (AST a: asts) result += a.accept(this);
+      return result;
+    }
+
+    public Integer forBoolConstant(BoolConstant b) { return 1; }
+    public Integer forIntConstant(IntConstant i) { return 1; }
+    public Integer forEmptyConstant(EmptyConstant n) { return 1; }
+    public Integer forVariable(Variable v) { return 1; }
+    public Integer forPrimFun(PrimFun f) { return 1; }
+    public Integer forUnOpApp(UnOpApp u) { return 1 + u.arg().accept(this); }
+    public Integer forBinOpApp(BinOpApp b) { return 1 + b.arg1().accept(this) + b.arg2().accept(this); }
+    public Integer forApp(App a) { return 1 + a.rator().accept(this) + size(a.args()); }
+    public Integer forMap(Map m) { return 1 + m.body().accept(this); }
+    public Integer forIf(If i) { return 1 + i.test().accept(this) + i.conseq().accept(this) + i.alt().accept(this); }
+    public Integer forLet(Let l) { return 1 + size(l.exps()) + l.body().accept(this); }
+  }
+}
+
+/** Visitor that hash-conses an AST: it rebuilds the AST bottom-up, replacing each subtree by a canonical
+  * representative that is structurally equal to it (see AST.java), so that structurally equal subtrees of the result
+  * are the same object and can be compared with ==.  The result is a DAG rather than a tree, which is harmless
+  * because ASTs are immutable; a pass over the result visits a shared subtree once for each of its occurrences. */
+class HashConser implements ASTVisitor<AST> {
+
+  /** The canonical representative of each AST and Def interned so far. */
+  private HashMap<Object, Object> table = new HashMap<Object, Object>();
+
+  /** Returns the canonical representative of a, whose subtrees must already be canonical. */
+  @SuppressWarnings("unchecked")
+  <T> T intern(T a) {
+    Object canonical = table.get(a);
+    if (canonical != null) return (T) canonical;
+    table.put(a, a);
+    return a;
+  }
+
+  private AST[] intern(AST[] asts) {
+    int n = asts.length;
+    AST[] result = new AST[n];
+    for (int i = 0; i < n; i++) result[i] = asts[i].accept(this);
+    return result;
+  }
+
+  /* Visitor methods. */
+
+  public AST forBoolConstant(BoolConstant b) { return b; }
+  public AST forIntConstant(IntConstant i) { return intern(i); }
+  public AST forEmptyConstant(EmptyConstant n) { return n; }
+  public AST forVariable(Variable v) { return v; }
+  public AST forPrimFun(PrimFun f) { return f; }
+  public AST forUnOpApp(UnOpApp u) { return intern(new UnOpApp(u.rator(), u.arg().accept(this))); }
+  public AST forBinOpApp(BinOpApp b) {
+    return intern(new BinOpApp(b.rator(), b.arg1().accept(this), b.arg2().accept(this)));
+  }
+  public AST forApp(App a) { return intern(new App(a.rator().accept(this), intern(a.args()))); }
+  public AST forMap(Map m) { return intern(new Map(m.vars(), m.body().accept(this))); }
+  public AST forIf(If i) {
+    return intern(new If(i.test().accept(this), i.conseq().accept(this), i.alt().accept(this)));
+  }
+  public AST forLet(Let l) {
+    Def[] defs = l.defs();
+    int n = defs.length;
+    Def[] newDefs = new Def[n];
+    for (int i = 0; i < n; i++) newDefs[i] = intern(new Def(defs[i].lhs(), defs[i].rhs().accept(this)));
+    return intern(new Let(newDefs, l.body().accept(this)));
+  }
+}
+
+/** Elimination of common subexpressions.  The evaluation of an AST N begins with a chain of subexpressions: the
+  * operand of a UnOpApp, the left operand of a BinOpApp, the argument of a unary primitive other than cons, the
+  * rator of any other application, and the test of an If are evaluated before anything else in the enclosing node.
+  * When a subexpression e on the chain of N occurs again in N, referring to the same bindings, N is rewritten as
+  *   let t := e; in N'
+  * where N' is N with each of these occurrences of e replaced by a fresh variable t.  Since the first evaluation of e
+  * in N' happens exactly where it happened in N, and the Let evaluates e at most once and no earlier than that, the
+  * rewrite preserves values and errors under every binding policy, provided that e is known to produce an int or a
+  * boolean: e is an operator application or an application of a type predicate or arity, or the node that
+  * evaluates e immediately checks that its value is an int or a boolean.  Other values are not shared, because
+  * call-by-name and lazy-name cons re-evaluate expressions, and two evaluations of an expression can produce distinct
+  * closures, which = can tell apart.  An application whose rator is not a primitive function is left exactly as
+  * written, subtrees included: the error raised when its rator is not a function quotes the application, and must
+  * not mention the variables introduced here.
+  *
+  * The pass takes time proportional to n log n for an AST of n nodes.  The AST is hash-consed first (see
+  * HashConser), and a single traversal numbers the occurrences of its nodes in preorder, recording each under a Key:
+  * the canonical node together with the binders of its free variables, so two occurrences have the same Key exactly
+  * when they are the same expression referring to the same bindings.  The number of occurrences of e in N is then
+  * the number of occurrences of its Key numbered within N.  The chain of a node is a suffix of the chain of its
+  * parent when the node is the first subexpression the parent evaluates, and occurs no more often in the node than
+  * in the parent, so chains are searched only from their heads.  Occurrences are counted in the AST as written, so
+  * an occurrence of e inside an occurrence of a subexpression already replaced still counts; the Let introduced for
+  * e then binds an expression evaluated only once, which is harmless. */
+class CommonSubexpressions {
+
+  /** An occurrence of a canonical AST, numbered in preorder.  Occurrences within an application whose rator is not
+    * a primitive function are not numbered. */
+  private static final class Position {
+    final AST node;
+    final int index;
+    /** The Key of node, or null if node is not an application and so is never shared. */
+    Key key;
+    /** The number of the last occurrence within this one. */
+    int end;
+    Position[] children;
+    Position(AST a, int i) { node = a; index = i; }
+  }
+
+  /** A canonical AST together with the binders of its free variables, each identified by the number of its
+    * Position, or 0 if the variable is free in the program. */
+  private static final class Key {
+    final AST node;
+    final int[] binders;
+    Key(AST a, int[] b) { node = a; binders = b; }
+    public boolean equals(Object o) {
+      if (! (o instanceof Key)) return false;
+      Key k = (Key) o;
+      return node == k.node && Arrays.equals(binders, k.binders);
+    }
+    public int hashCode() { return 31 * System.identityHashCode(node) + Arrays.hashCode(binders); }
+  }
+
+  /** The numbers of the occurrences of a Key, in increasing order. */
+  private static final class Occurrences {
+    int[] indices = new int[2];
+    int size = 0;
+    void add(int i) {
+      if (size == indices.length) indices = Arrays.copyOf(indices, 2 * size);
+      indices[size++] = i;
+    }
+    /** Returns the number of occurrences numbered from first through last. */
+    int count(int first, int last) { return after(last) - after(first - 1); }
+    /** Returns the number of occurrences numbered at most i. */
+    private int after(int i) {
+      int lo = 0, hi = size;
+      while (lo < hi) {
+        int mid = (lo + hi) >>> 1;
+        if (indices[mid] <= i) lo = mid + 1;
+        else hi = mid;
+      }
+      return lo;
+    }
+  }
+
+  /** The table of canonical subtrees, which contains every AST built by this pass. */
+  private HashConser conser = new HashConser();
+
+  /** The free variables of each canonical AST whose Key has been computed. */
+  private IdentityHashMap<AST, Variable[]> freeVars = new IdentityHashMap<AST, Variable[]>();
+
+  /** The number of the Position of the binder of each variable in scope during numbering. */
+  private HashMap<Variable, Integer> binders = new HashMap<Variable, Integer>();
+
+  /** The occurrences of each Key. */
+  private HashMap<Key, Occurrences> occurrences = new HashMap<Key, Occurrences>();
+
+  /** The variable that replaces each Key within the Let being built. */
+  private HashMap<Key, Variable> replaced = new HashMap<Key, Variable>();
+
+  /** The number of Positions created so far. */
+  private int positions = 0;
+
+  /** The number of variables introduced so far. */
+  private int temps = 0;
+
+  private CommonSubexpressions() {}
+
+  /** Returns prog with its common subexpressions eliminated. */
+  static AST eliminate(AST prog) {
+    CommonSubexpressions cse = new CommonSubexpressions();
+    return cse.share(cse.number(prog.accept(cse.conser)), true);
+  }
+
+  /** Returns true if a is an application whose rator is not a primitive function, which is left as written. */
+  private static boolean isOpaque(AST a) { return a instanceof App && ! (((App) a).rator() instanceof PrimFun); }
+
+  /** Returns the subtrees of a that are numbered, in order of evaluation. */
+  private static AST[] subtrees(AST a) {
+    if (a instanceof UnOpApp) return new AST[] { ((UnOpApp) a).arg() };
+    if (a instanceof BinOpApp) return new AST[] { ((BinOpApp) a).arg1(), ((BinOpApp) a).arg2() };
+    if (a instanceof App) return isOpaque(a) ? new AST[0] : ((App) a).args();
+    if (a instanceof Map) return new AST[] { ((Map) a).body() };
+    if (a instanceof If) return new AST[] { ((If) a).test(), ((If) a).conseq(), ((If) a).alt() };
+    if (a instanceof Let) {
+      AST[] exps = ((Let) a).exps();
+      AST[] result = Arrays.copyOf(exps, exps.length + 1);
+      result[exps.length] = ((Let) a).body();
+      return result;
+    }
+    return new AST[0];
+  }
+
+  /** Returns the variables bound by a, or null if a is not a Map or a Let. */
+  private static Variable[] bound(AST a) {
+    if (a instanceof Map) return ((Map) a).vars();
+    if (a instanceof Let) return ((Let) a).vars();
+    return null;
+  }
+
+  /** Returns the free variables of the canonical AST a. */
+  private Variable[] freeVars(AST a) {
+    Variable[] result = freeVars.get(a);
+    if (result != null) return result;
+    if (a instanceof Variable) result = new Variable[] { (Variable) a };
+    else {
+      LinkedHashSet<Variable> vars = new LinkedHashSet<Variable>();
+      if (a instanceof App) {
+        vars.addAll(Arrays.asList(freeVars(((App) a).rator())));
+        for (AST arg: ((App) a).args()) vars.addAll(Arrays.asList(freeVars(arg)));
+      }
+      else for (AST sub: subtrees(a)) vars.addAll(Arrays.asList(freeVars(sub)));
+      Variable[] b = bound(a);
+      if (b != null) vars.removeAll(Arrays.asList(b));
+      result = vars.toArray(new Variable[vars.size()]);
+    }
+    freeVars.put(a, result);
+    return result;
+  }
+
+  /** Returns the Key of an occurrence of a with the variables now in scope. */
+  private Key key(AST a) {
+    Variable[] vars = freeVars(a);
+    int[] b = new int[vars.length];
+    for (int i = 0; i < vars.length; i++) {
+      Integer binder = binders.get(vars[i]);
+      b[i] = binder == null ? 0 : binder;
+    }
+    return new Key(a, b);
+  }
+
+  /** Numbers the occurrences in the canonical AST a, recording those of applications in occurrences. */
+  private Position number(AST a) {
+    Position p = new Position(a, ++positions);
+    if (a instanceof UnOpApp || a instanceof BinOpApp || a instanceof App) {
+      p.key = key(a);
+      Occurrences o = occurrences.get(p.key);
+      if (o == null) occurrences.put(p.key, o = new Occurrences());
+      o.add(p.index);
+    }
+    Variable[] vars = bound(a);
+    Integer[] saved = null;
+    if (vars != null) {
+      saved = new Integer[vars.length];
+      for (int i = 0; i < vars.length; i++) saved[i] = binders.put(vars[i], p.index);
+    }
+    AST[] subtrees = subtrees(a);
+    p.children = new Position[subtrees.length];
+    for (int i = 0; i < subtrees.length; i++) p.children[i] = number(subtrees[i]);
+    if (vars != null) {
+      for (int i = vars.length - 1; i >= 0; i--) {
+        if (saved[i] == null) binders.remove(vars[i]);
+        else binders.put(vars[i], saved[i]);
+      }
+    }
+    p.end = positions;
+    return p;
+  }
+
+  /** Returns the Position of the subexpression evaluated first in the evaluation of p under every policy, or null if
+    * there is none. */
+  private static Position firstEvaluated(Position p) {
+    AST a = p.node;
+    if (a instanceof UnOpApp || a instanceof BinOpApp || a instanceof If) return p.children[0];
+    if (a instanceof App) {
+      AST rator = ((App) a).rator();
+      return rator instanceof PrimFun && rator != ConsPrim.ONLY && p.children.length == 1 ? p.children[0] : null;
+    }
+    return null;
+  }
+
+  /** Returns true if the value of e, which is evaluated first in parent, must be an int or a boolean if the
+    * evaluation of parent is to continue. */
+  private static boolean isScalar(AST e, AST parent) {
+    if (e instanceof UnOpApp || e instanceof BinOpApp) return true;
+    if (! (e instanceof App)) return false;
+    AST rator = ((App) e).rator();
+    if (rator == FunctionPPrim.ONLY || rator == NumberPPrim.ONLY || rator == ListPPrim.ONLY ||
+        rator == ConsPPrim.ONLY || rator == EmptyPPrim.ONLY || rator == ArityPrim.ONLY) return true;
+    if (parent instanceof BinOpApp) {
+      BinOp op = ((BinOpApp) parent).rator();
+      return op != OpEquals.ONLY && op != OpNotEquals.ONLY;
+    }
+    return parent instanceof UnOpApp || parent instanceof If;
+  }
+
+  /** Returns the AST at p with the subexpressions in replaced replaced by their variables and common subexpressions
+    * eliminated.  If head is true, p is not the first subexpression evaluated by its parent, and the first
+    * subexpression on its chain that occurs again in p, and whose value is known to be an int or a boolean, is bound
+    * by a Let. */
+  private AST share(Position p, boolean head) {
+    if (p.key != null) {
+      Variable t = replaced.get(p.key);
+      if (t != null) return t;
+    }
+    if (head) {
+      Position parent = p;
+      for (Position e = firstEvaluated(p); e != null; parent = e, e = firstEvaluated(e)) {
+        if (e.key != null && replaced.containsKey(e.key)) break;  // the chain now ends at a variable
+        if (! isScalar(e.node, parent.node) || occurrences.get(e.key).count(p.index, p.end) < 2) continue;
+        Variable t = new Variable("cse$" + ++temps);
+        Def d = conser.intern(new Def(t, share(e, true)));
+        replaced.put(e.key, t);
+        AST body = share(p, false);
+        replaced.remove(e.key);
+        return conser.intern(new Let(new Def[] { d }, body));
+      }
+    }
+    return rebuild(p);
+  }
+
+  /** Returns the AST at p with common subexpressions eliminated from its subtrees. */
+  private AST rebuild(Position p) {
+    AST a = p.node;
+    int n = p.children.length;
+    if (n == 0) return a;
+    Position first = firstEvaluated(p);
+    AST[] c = new AST[n];
+    for (int i = 0; i < n; i++) c[i] = share(p.children[i], p.children[i] != first);
+    if (a instanceof UnOpApp) return conser.intern(new UnOpApp(((UnOpApp) a).rator(), c[0]));
+    if (a instanceof BinOpApp) return conser.intern(new BinOpApp(((BinOpApp) a).rator(), c[0], c[1]));
+    if (a instanceof App) return conser.intern(new App(((App) a).rator(), c));
+    if (a instanceof Map) return conser.intern(new Map(((Map) a).vars(), c[0]));
+    if (a instanceof If) return conser.intern(new If(c[0], c[1], c[2]));
+    Def[] defs = ((Let) a).defs();
+    Def[] newDefs = new Def[n - 1];
+    for (int i = 0; i < n - 1; i++) newDefs[i] = conser.intern(new Def(defs[i].lhs(), c[i]));
+    return conser.intern(new Let(newDefs, c[n - 1]));
+  }
+}
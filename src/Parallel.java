@@ -0,0 +1,470 @@
+/* Parallel call-by-value evaluation.  Jam has no side effects, so under call-by-value with eager cons the operands
+ * of a binary operator, the arguments of an application, the arguments of cons, and the right-hand sides of a
+ * non-recursive Let can be evaluated at the same time.  ParallelCompiler compiles these constructs into nodes that
+ * fork some of their subexpressions onto Fork.POOL and execute the rest in the current thread.  Only
+ * subexpressions that may apply a closure are forked, since any other subexpression takes time proportional to its
+ * size; and a node forks only while the current worker has few queued tasks (see Fork.start), so deep in a
+ * recursion, where tasks would be tiny, the nodes run sequentially.  Forked results are joined in the order in which
+ * the sequential nodes would execute the subexpressions, and a node stops at the first one that fails, so the
+ * program reports the same EvalException as under sequential call-by-value.  A task whose result is no longer
+ * needed is cancelled through its Cancellation, which stops it at its next closure application even if another
+ * worker has already stolen it, and every task stops when the evaluation that forked it returns.
+ *
+ * Speculative lazy cons (Compiler.SPECULATIVE) parallelizes lazy streams instead: the arguments of a lazy cons start
+ * executing on a bounded pool of Speculators when the cons is constructed, and forcing an argument takes the value
+ * computed by the pool, waits for it, or executes the argument if no worker has started it.  The depth of nested
+ * speculation is bounded by Speculator.MAX_DEPTH, and errors raised speculatively are discarded.  Speculation stops
+ * when the program returns: the remaining arguments are executed only if they are forced, as in call-by-need. */
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/** The execution of a Node in a Frame as a ForkJoinTask.  The value or the exception that the execution produces is
+  * recorded, and result() returns the value or rethrows the same exception object in the joining thread.  Each task
+  * has its own Cancellation, a child of the one installed where it was forked; cancelling the task cancels it, so a
+  * running task stops at its next application, and so do the tasks it has forked. */
+final class Fork extends RecursiveAction {
+
+  /** The largest number of surplus queued tasks (see ForkJoinTask.getSurplusQueuedTaskCount) at which a new task is
+    * still forked. */
+  static final int SURPLUS = 3;
+
+  /** The pool that executes parallel evaluations.  It is not the common pool, since a thread that waits for a task in
+    * the common pool from outside it may execute the task itself, and the program would then run on the caller's
+    * thread, where nothing is forked (see start). */
+  static final ForkJoinPool POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+  /** The number of tasks forked so far. */
+  private static final LongAdder FORKS = new LongAdder();
+
+  private Node node;
+  private Frame frame;
+  private JamVal value;
+  private Throwable error;
+
+  private final Cancellation token;
+
+  private Fork(Node n, Frame f) { node = n; frame = f; token = new Cancellation(Cancellation.current()); }
+
+  protected void compute() {
+    Cancellation saved = token.install();
+    try { value = node.execute(frame); }
+    catch(Throwable t) { error = t; }
+    finally { Cancellation.restore(saved); }
+  }
+
+  /** Cancels this task, and stops it at its next application if it is already running. */
+  public boolean cancel(boolean mayInterruptIfRunning) {
+    token.cancel();
+    return super.cancel(mayInterruptIfRunning);
+  }
+
+  /** Forks the execution of n in f and returns the task, or returns null if the task would not pay for itself
+    * because the current thread is not a worker of POOL or already has more than SURPLUS tasks queued. */
+  static Fork start(Node n, Frame f) {
+    if (ForkJoinTask.getPool() != POOL || ForkJoinTask.getSurplusQueuedTaskCount() > SURPLUS) return null;
+    Fork t = new Fork(n, f);
+    t.fork();
+    FORKS.increment();
+    return t;
+  }
+
+  /** Returns the number of tasks forked so far. */
+  static long forks() { return FORKS.sum(); }
+
+  /** Waits for this task and returns its value, or rethrows the exception it threw. */
+  JamVal result() {
+    join();
+    if (error instanceof RuntimeException) throw (RuntimeException) error;
+    if (error instanceof Error) throw (Error) error;
+    return value;
+  }
+
+  /** Cancels the tasks in forks that are not null, since their results are no longer needed. */
+  static void cancel(Fork[] forks) {
+    for (Fork t: forks) if (t != null) t.cancel(false);
+  }
+
+  /** Executes n in f on a worker of POOL and returns the value.  Tasks forked by the execution that are still running
+    * when it returns, because an error made their results unnecessary, are cancelled. */
+  static JamVal run(Node n, Frame f) {
+    Fork t = new Fork(n, f);
+    try { POOL.invoke(t); }
+    finally { t.token.cancel(); }
+    return t.result();
+  }
+}
+
+/** An application of a binary operator other than & and | whose operands may both apply closures.  The right
+  * operand is forked while the left one is executed and checked. */
+class ParallelBinOpNode extends Node {
+  BinOp op;
+  Node left, right;
+  ParallelBinOpNode(BinOp o, Node l, Node r) { op = o; left = l; right = r; }
+
+  JamVal execute(Frame f) {
+    Fork r = Fork.start(right, f);
+    JamVal a;
+    try {
+      a = left.execute(f);
+      if (op != OpEquals.ONLY && op != OpNotEquals.ONLY) ArithEvaluator.toInt(a, op);
+    }
+    catch(RuntimeException e) {
+      if (r != null) r.cancel(false);
+      throw e;
+    }
+    JamVal b = r != null ? r.result() : right.execute(f);
+    if (op == OpEquals.ONLY) return BoolConstant.toBoolConstant(a.equals(b));
+    if (op == OpNotEquals.ONLY) return BoolConstant.toBoolConstant(! a.equals(b));
+    int i = ArithEvaluator.toInt(a, op), j = ArithEvaluator.toInt(b, op);
+    if (op == BinOpPlus.ONLY) return IntConstant.of(i + j);
+    if (op == BinOpMinus.ONLY) return IntConstant.of(i - j);
+    if (op == OpTimes.ONLY) return IntConstant.of(i * j);
+    if (op == OpDivide.ONLY) return IntConstant.of(ArithEvaluator.divide(i, j));
+    if (op == OpLessThan.ONLY) return BoolConstant.toBoolConstant(i < j);
+    if (op == OpLessThanEquals.ONLY) return BoolConstant.toBoolConstant(i <= j);
+    if (op == OpGreaterThan.ONLY) return BoolConstant.toBoolConstant(i > j);
+    return BoolConstant.toBoolConstant(i >= j);
+  }
+}
+
+/** Eager cons whose arguments may both apply closures: the second argument is forked while the first is executed. */
+class ParallelConsNode extends EagerConsNode {
+  ParallelConsNode(Node fst, Node rst) { super(fst, rst); }
+  JamVal execute(Frame f) {
+    Fork r = Fork.start(rest, f);
+    JamVal fst;
+    try { fst = first.execute(f); }
+    catch(RuntimeException e) {
+      if (r != null) r.cancel(false);
+      throw e;
+    }
+    JamVal rst = r != null ? r.result() : rest.execute(f);
+    if (rst instanceof JamList) return new JamCons(fst, (JamList) rst);
+    throw new EvalException("Second argument " + rst + " to `cons' is not a JamList");
+  }
+}
+
+/** Executes nodes in f, forking those whose entries in forked are true, and returns their values.  The other nodes
+  * are executed in the current thread, and the results are collected in order, so the exception reported is the one
+  * thrown by the first node that fails. */
+class ParallelNodes {
+  static JamVal[] execute(Node[] nodes, boolean[] forked, Frame f) {
+    int n = nodes.length;
+    Fork[] forks = new Fork[n];
+    for (int i = n - 1; i >= 0; i--) if (forked[i]) forks[i] = Fork.start(nodes[i], f);  // first to join on top
+    JamVal[] values = new JamVal[n];
+    for (int i = 0; i < n; i++) {
+      try {
+        values[i] = forks[i] != null ? forks[i].result() : nodes[i].execute(f);
+        forks[i] = null;
+      }
+      catch(RuntimeException e) {
+        Fork.cancel(forks);
+        throw e;
+      }
+    }
+    return values;
+  }
+}
+
+/** Call-by-value application that evaluates its arguments in parallel. */
+class ParallelValueAppNode extends AppNode {
+  boolean[] forked;
+  ParallelValueAppNode(App a, Node r, Node[] as, boolean[] fk) { super(a, r, as, Compiler.EAGER); forked = fk; }
+  JamVal execute(Frame f) {
+    JamVal fun = rator.execute(f);
+    if (! (fun instanceof CompiledClosure)) return applyOther(fun, f);
+    CompiledClosure c = (CompiledClosure) fun;
+    Variable[] vars = params(c);
+    return call(c, new ValueFrame(vars, ParallelNodes.execute(args, forked, f), c.frame()));
+  }
+}
+
+/** A non-recursive call-by-value Let that evaluates its right-hand sides in parallel. */
+class ParallelValueLetNode extends ValueLetNode {
+  boolean[] forked;
+  ParallelValueLetNode(Variable[] v, Node[] r, Node b, boolean[] fk) { super(v, r, b); forked = fk; }
+  JamVal execute(Frame f) {
+    int n = rhss.length;
+    ValueFrame frame = new ValueFrame(vars, f);
+    JamVal[] values = ParallelNodes.execute(rhss, forked, frame);
+    for (int i = 0; i < n; i++) frame.setValue(i, values[i]);
+    return body.execute(frame);
+  }
+}
+
+/** Compiler for parallel call-by-value evaluation with eager cons.  It produces the same nodes as
+  * Compiler.VALUE_VALUE, except for the parallel nodes above where at least two subexpressions may apply closures. */
+class ParallelCompiler extends Compiler {
+
+  public static final ParallelCompiler ONLY = new ParallelCompiler();
+  private ParallelCompiler() { super(CALL_BY_VALUE, EAGER); }
+
+  /** Executes the compiled program in Fork.POOL. */
+  JamVal run(AST prog) { return Fork.run(compile(prog), null); }
+
+  /** Returns, for each of asts, whether it should be forked: every AST that may apply a closure except the first,
+    * which is executed by the current thread; returns null if fewer than two of asts may apply closures. */
+  private static boolean[] forks(AST[] asts) {
+    int n = asts.length;
+    boolean[] result = new boolean[n];
+    int count = 0;
+    for (int i = 0; i < n; i++) {
+      if (! mayCall(asts[i])) continue;
+      result[i] = count > 0;
+      count++;
+    }
+    return count >= 2 ? result : null;
+  }
+
+  /** Returns true if the evaluation of a may apply a closure, which is the only way in which evaluating an AST can
+    * take time that is not bounded by its size. */
+  static boolean mayCall(AST a) { return a.accept(CallVisitor.ONLY); }
+
+  public Node forBinOpApp(BinOpApp b) {
+    BinOp op = b.rator();
+    if (op == OpAnd.ONLY || op == OpOr.ONLY || ! mayCall(b.arg1()) || ! mayCall(b.arg2())) return super.forBinOpApp(b);
+    return new ParallelBinOpNode(op, b.arg1().accept(this), b.arg2().accept(this));
+  }
+
+  public Node forApp(App a) {
+    AST rator = a.rator();
+    AST[] args = a.args();
+    boolean[] forked = forks(args);
+    if (forked == null) return super.forApp(a);
+    if (rator == ConsPrim.ONLY && args.length == 2) return new ParallelConsNode(args[0].accept(this), args[1].accept(this));
+    if (rator instanceof PrimFun) return super.forApp(a);
+    return new ParallelValueAppNode(a, rator.accept(this), compile(args), forked);
+  }
+
+  public Node forLet(Let l) {
+    boolean[] forked = forks(l.exps());
+    if (forked == null || isRecursive(l)) return super.forLet(l);
+    return new ParallelValueLetNode(l.vars(), compile(l.exps()), l.body().accept(this), forked);
+  }
+
+  /** Visitor that determines whether the evaluation of an AST may apply a closure.  Creating a closure does not
+    * apply it, so the body of a Map is not examined. */
+  static class CallVisitor implements ASTVisitor<Boolean> {
+    static final CallVisitor ONLY = new CallVisitor();
+    private CallVisitor() {}
+
+    private Boolean any(AST[] asts) {
+      for (AST a: asts) if (a.accept(this)) return true;
+      return false;
+    }
+
+    public Boolean forBoolConstant(BoolConstant b) { return false; }
+    public Boolean forIntConstant(IntConstant i) { return false; }
+    public Boolean forEmptyConstant(EmptyConstant n) { return false; }
+    public Boolean forVariable(Variable v) { return false; }
+    public Boolean forPrimFun(PrimFun f) { return false; }
+    public Boolean forUnOpApp(UnOpApp u) { return u.arg().accept(this); }
+    public Boolean forBinOpApp(BinOpApp b) { return b.arg1().accept(this) || b.arg2().accept(this); }
+    public Boolean forApp(App a) { return ! (a.rator() instanceof PrimFun) || any(a.args()); }
+    public Boolean forMap(Map m) { return false; }
+    public Boolean forIf(If i) { return i.test().accept(this) || i.conseq().accept(this) || i.alt().accept(this); }
+    public Boolean forLet(Let l) { return any(l.exps()) || l.body().accept(this); }
+  }
+}
+
+/** The thread that executes Speculations, and the bounded pool of such threads.  A worker records the speculation
+  * depth of the Speculation it is executing, so the lazy conses that the Speculation constructs start their own
+  * Speculations one level deeper (see NodeSpeculativeCons). */
+final class Speculator extends Thread {
+
+  /** The greatest depth at which a Speculation is started; lazy conses constructed at this depth are not
+    * speculated. */
+  static final int MAX_DEPTH = 8;
+
+  /** The largest number of Speculations waiting for a worker; further Speculations are dropped, and are executed
+    * when they are forced, as in call-by-need. */
+  static final int QUEUE = 1024;
+
+  private static final int THREADS = Runtime.getRuntime().availableProcessors();
+
+  private static final ThreadPoolExecutor POOL =
+    new ThreadPoolExecutor(THREADS, THREADS, 1, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(QUEUE),
+                           new ThreadFactory() { public Thread newThread(Runnable r) { return new Speculator(r); } },
+                           new ThreadPoolExecutor.DiscardPolicy());
+  static { POOL.allowCoreThreadTimeOut(true); }
+
+  /** The speculation depth of the Speculation being executed by this worker. */
+  int depth;
+
+  private Speculator(Runnable r) {
+    super(r, "jam-speculator");
+    setDaemon(true);
+  }
+
+  /** Returns the speculation depth of the current thread, which is 0 unless it is a worker. */
+  static int depth() {
+    Thread t = Thread.currentThread();
+    return t instanceof Speculator ? ((Speculator) t).depth : 0;
+  }
+
+  /** Queues s for execution by a worker unless the queue is full. */
+  static void start(Speculation s) { POOL.execute(s); }
+
+  /** Returns the approximate number of workers executing Speculations. */
+  static int active() { return POOL.getActiveCount(); }
+}
+
+/** A compiled expression and the frame in which to execute it, executed at most once, either speculatively by a
+  * Speculator or by the first thread that forces it.  A thread that forces a Speculation being executed by a worker
+  * waits for the worker's value.  A worker never waits: if it forces a Speculation being executed by another thread it
+  * abandons its own, and a Speculation that a worker fails to execute (because it throws an exception, or abandons it)
+  * returns to its initial state, so errors raised speculatively are never reported.  Only the thread that forces a
+  * Speculation reports the errors raised by its expression, by executing it again.  A Speculation belongs to the
+  * evaluation whose Cancellation was installed where it was constructed; a worker installs that Cancellation while it
+  * executes the Speculation, so once the evaluation is cancelled the worker stops at its next application, and a
+  * Speculation still queued is skipped. */
+final class Speculation implements Runnable {
+
+  /** Thrown by a worker that abandons a Speculation. */
+  private static final RuntimeException ABANDON = new RuntimeException("speculation abandoned", null, false, false) {};
+
+  private Node exp;
+  private Frame frame;
+  private final int depth;
+  /** The Cancellation of the evaluation that constructed this, or null if there is none. */
+  final Cancellation token;
+  /** The value of exp, or null if it has not been computed. */
+  private JamVal value;
+  /** The thread executing exp, or null. */
+  private Thread owner;
+
+  Speculation(Node e, Frame f, int d) { exp = e; frame = f; depth = d; token = Cancellation.current(); }
+
+  /** Executes exp speculatively in the current worker, unless another thread has claimed it or its evaluation has
+    * been cancelled. */
+  public void run() {
+    Speculator w = (Speculator) Thread.currentThread();
+    synchronized(this) {
+      if (value != null || owner != null || token == null || token.isCancelled()) return;
+      owner = w;
+    }
+    int saved = w.depth;
+    w.depth = depth;
+    Cancellation savedToken = token.install();
+    JamVal v = null;
+    try { v = exp.execute(frame); }
+    catch(RuntimeException | StackOverflowError e) {
+      /* the error is reported, if at all, by the thread that forces this */
+    }
+    finally {
+      Cancellation.restore(savedToken);
+      w.depth = saved;
+      release(v);
+    }
+  }
+
+  /** Returns the value of exp, executing it in the current thread unless a worker is already doing so. */
+  JamVal force() {
+    Thread t = Thread.currentThread();
+    synchronized(this) {
+      while (value == null) {
+        if (owner == null) {
+          owner = t;
+          break;
+        }
+        if (owner == t) return exp.execute(frame);  // exp demands its own value, as in NodeLazyNeedCons
+        if (t instanceof Speculator) throw ABANDON;
+        try { wait(); }
+        catch(InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new EvalException("interrupted while forcing a speculative cons");
+        }
+      }
+      if (value != null) return value;
+    }
+    JamVal v = null;
+    try { return v = exp.execute(frame); }
+    finally { release(v); }
+  }
+
+  /** Records v, the value of exp if it is not null, and wakes the threads waiting for it. */
+  private synchronized void release(JamVal v) {
+    if (v != null) {
+      value = v;
+      exp = null;
+      frame = null;
+    }
+    owner = null;
+    notifyAll();
+  }
+}
+
+/** A call-by-value binding of a recursive Let that may be read by a Speculator before it is filled in (see
+  * PublishedLetRecNode).  Its value is written with release and read with acquire semantics, so a thread that sees the
+  * value also sees the value's contents; a thread that reads it too early sees null and reports an illegal forward
+  * reference, which a Speculator discards. */
+class PublishedValueBinding extends NodeValueBinding {
+  private static final VarHandle VALUE =
+    NeedState.handle(MethodHandles.lookup(), Binding.class, "value", JamVal.class);
+
+  PublishedValueBinding(Variable v) { super(v); }
+  public JamVal value() {
+    JamVal v = (JamVal) VALUE.getAcquire(this);
+    if (v == null) return Interpreter.illegalForwardReference(var);
+    return v;
+  }
+  public void setBinding(Suspension s) { publish(s.eval()); }
+
+  /** Sets the value of this binding to v. */
+  void publish(JamVal v) { VALUE.setRelease(this, v); }
+}
+
+/** A recursive call-by-value Let for speculative lazy cons.  A right-hand side may construct a NodeSpeculativeCons
+  * whose arguments refer to bindings of the Let that are filled in only after the Speculations have started, so the
+  * bindings are PublishedValueBindings. */
+class PublishedLetRecNode extends ValueLetRecNode {
+  PublishedLetRecNode(Variable[] v, Node[] r, Node b) { super(v, r, b); }
+  JamVal execute(Frame f) {
+    int n = rhss.length;
+    PublishedValueBinding[] bindings = new PublishedValueBinding[n];
+    for (int i = 0; i < n; i++) bindings[i] = new PublishedValueBinding(vars[i]);
+    Frame frame = new BindingFrame(vars, bindings, f);
+    for (int i = 0; i < n; i++) bindings[i].publish(rhss[i].execute(frame));
+    return body.execute(frame);
+  }
+}
+
+/** Speculative lazy cons: the arguments are executed at most once, like NodeLazyNeedCons, but they start executing
+  * on a Speculator as soon as the cons is constructed, so a consumer of a stream overlaps with its producer.
+  * Arguments whose execution takes constant time (constants, variables, and Maps) are not speculated, and neither
+  * are the arguments of a cons constructed outside a cancellable evaluation, such as while the value of a program
+  * that has returned is printed. */
+class NodeSpeculativeCons extends JamCons {
+  private Speculation firstSusp, restSusp;
+  NodeSpeculativeCons(Node fst, Node rst, Frame f) {
+    super(null, null);
+    int d = Speculator.depth() + 1;
+    firstSusp = new Speculation(fst, f, d);
+    restSusp = new Speculation(rst, f, d);
+    if (d > Speculator.MAX_DEPTH || firstSusp.token == null) return;
+    if (! trivial(fst)) Speculator.start(firstSusp);
+    if (! trivial(rst)) Speculator.start(restSusp);
+  }
+  public JamVal first() { return firstSusp.force(); }
+  public JamList rest() { return checkList(restSusp.force()); }
+
+  /** Returns true if executing n takes constant time. */
+  static boolean trivial(Node n) { return n instanceof ConstNode || n instanceof VarNode || n instanceof MapNode; }
+}
+
+/** Speculative lazy cons (see NodeSpeculativeCons). */
+class SpeculativeConsNode extends Node {
+  Node first, rest;
+  SpeculativeConsNode(Node fst, Node rst) { first = fst; rest = rst; }
+  JamVal execute(Frame f) { return new NodeSpeculativeCons(first, rest, f); }
+}
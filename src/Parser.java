@@ -17,7 +17,7 @@ class Parser {
   
   Parser(Reader inputStream) { this(new Lexer(inputStream)); }
   
-  Parser(String fileName) throws IOException { this(new FileReader(fileName)); }
+  Parser(String fileName) throws IOException { this(new Lexer(fileName)); }
   
   Lexer lexer() { return in; }
   
@@ -33,7 +33,7 @@ class Parser {
       else throw new ParseException("Legal program followed by extra token " + t);
     } 
     finally {
-      try { in.rdr.close(); } 
+      try { in.close(); } 
       catch (IOException e) { throw new ParseException(e); }
     }
   }
@@ -49,6 +49,31 @@ class Parser {
     return prog;
   }
   
+  /** Parses and syntactically checks the program in the Lexer associated with this, then rewrites each variable
+    * occurrence in the checked program as a LexicalVariable carrying its lexical address. */
+  public AST parseAndResolve() throws ParseException {
+    return parseAndCheck().accept(ResolveVisitor.INITIAL);
+  }
+  
+  /** Parses and syntactically checks the program in the Lexer associated with this, folds its constant
+    * subexpressions (see ConstantFolder), inlines closures applied where they are defined (see Inliner), and
+    * eliminates common subexpressions (see CommonSubexpressions).  The result is a checked AST, which has not been
+    * resolved. */
+  public AST parseCheckAndOptimize() throws ParseException { return optimize(parseAndCheck()); }
+
+  /** Returns the checked program prog with its constant subexpressions folded, the closures applied where they are
+    * defined inlined, and its common subexpressions eliminated, as parseCheckAndOptimize does.  The passes build a
+    * new AST, so prog itself is left as it was. */
+  static AST optimize(AST prog) {
+    return CommonSubexpressions.eliminate(prog.accept(ConstantFolder.ONLY).accept(Inliner.INITIAL));
+  }
+
+  /** Parses, checks, and optimizes the program in the Lexer associated with this as parseCheckAndOptimize does, then
+    * resolves the optimized program as parseAndResolve does. */
+  public AST parseAndOptimize() throws ParseException {
+    return parseCheckAndOptimize().accept(ResolveVisitor.INITIAL);
+  }
+  
   /** Parses:
     *   <exp> :: = if <exp> then <exp> else <exp>
     *            | let <prop-def-list> in <exp>
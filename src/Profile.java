@@ -0,0 +1,256 @@
+/* Sampling profiler for Jam programs.  A Java profiler attributes the time spent evaluating a Jam program to the
+ * Java methods of the evaluator, which recurse in the same way whatever Jam function is executing.  Interpreter.
+ * compiledProfile instead evaluates the program with a ProfilingCompiler, which compiles it into Nodes that maintain
+ * a shadow stack of the Jam definitions being executed: the Maps, named by the variables of the Lets that bind them,
+ * and the right-hand sides of the other Let bindings.  A Sampler thread records the shadow stack periodically, and
+ * the resulting EvalProfile reports the definitions that were executing most often, and the sampled stacks in the
+ * collapsed format read by flame graph tools.  Tokens carry no source positions, so definitions are identified by
+ * name only.  Run as
+ *   java JamProfile [-collapsed] file [mode [interval]]
+ * to profile the program in file, evaluated in mode (default valueValue) and sampled every interval microseconds
+ * (default 1000). */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map.Entry;
+import java.util.concurrent.locks.LockSupport;
+
+/** The names of the Jam definitions being executed by one thread, outermost first.  The evaluating thread pushes and
+  * pops names; a Sampler thread reads snapshots.  A snapshot taken while a name is being replaced may show the old
+  * name, which only misattributes that sample. */
+final class ShadowStack {
+  private volatile String[] names = new String[64];
+  private volatile int size;
+
+  void push(String name) {
+    String[] ns = names;
+    int n = size;
+    if (n == ns.length) names = ns = Arrays.copyOf(ns, 2 * n);
+    ns[n] = name;
+    size = n + 1;
+  }
+
+  void pop() { size = size - 1; }
+
+  /** Returns a copy of the names on the stack. */
+  String[] snapshot() {
+    int n = size;
+    String[] ns = names;
+    return Arrays.copyOf(ns, Math.min(n, ns.length));
+  }
+}
+
+/** A node that pushes name on stack while it executes node.  A Map body in tail position returns a TailCall (see
+  * markTail) that is run after the name has been popped, so a chain of tail calls occupies a single entry. */
+class ProfiledNode extends Node {
+  String name;
+  Node node;
+  ShadowStack stack;
+  ProfiledNode(String n, Node nd, ShadowStack s) { name = n; node = nd; stack = s; }
+  JamVal execute(Frame f) {
+    stack.push(name);
+    try { return node.execute(f); }
+    finally { stack.pop(); }
+  }
+  void markTail() { node.markTail(); }
+}
+
+/** The samples of the shadow stack taken during one evaluation, and its printed value. */
+final class EvalProfile {
+
+  /** The name of the entry at the bottom of every sampled stack. */
+  static final String ROOT = "program";
+
+  /** The number of definitions reported by toString. */
+  static final int TOP = 20;
+
+  /** The printed value of the profiled program. */
+  String value;
+
+  /** The number of samples taken of each stack, keyed by the stack in collapsed form. */
+  private final HashMap<String, long[]> stacks = new HashMap<String, long[]>();
+
+  private long samples;
+
+  /** Records a sample of the shadow stack whose names are frames. */
+  void record(String[] frames) {
+    StringBuilder sb = new StringBuilder(ROOT);
+    for (String f: frames) sb.append(';').append(f);
+    String key = sb.toString();
+    long[] count = stacks.get(key);
+    if (count == null) stacks.put(key, count = new long[1]);
+    count[0]++;
+    samples++;
+  }
+
+  long samples() { return samples; }
+
+  /** Returns the sampled stacks in the collapsed format read by flame graph tools: one line per distinct stack,
+    * holding the names from the outermost in, separated by semicolons, followed by a space and the number of
+    * samples of that stack. */
+  String collapsed() {
+    ArrayList<String> keys = new ArrayList<String>(stacks.keySet());
+    Collections.sort(keys);
+    StringBuilder sb = new StringBuilder();
+    for (String k: keys) sb.append(k).append(' ').append(stacks.get(k)[0]).append('\n');
+    return sb.toString();
+  }
+
+  /** Returns a table of the n definitions with the most samples in which they were executing at the top of the
+    * stack (self), together with the samples in which they were on the stack at all (total). */
+  String top(int n) {
+    final HashMap<String, long[]> counts = new HashMap<String, long[]>();  // name -> {self, total}
+    for (Entry<String, long[]> e: stacks.entrySet()) {
+      String[] frames = e.getKey().split(";");
+      long c = e.getValue()[0];
+      for (String f: new HashSet<String>(Arrays.asList(frames))) count(counts, f)[1] += c;
+      count(counts, frames[frames.length - 1])[0] += c;
+    }
+    ArrayList<String> names = new ArrayList<String>(counts.keySet());
+    Collections.sort(names, new Comparator<String>() {
+      public int compare(String x, String y) {
+        long[] cx = counts.get(x), cy = counts.get(y);
+        if (cx[0] != cy[0]) return cx[0] > cy[0] ? -1 : 1;
+        if (cx[1] != cy[1]) return cx[1] > cy[1] ? -1 : 1;
+        return x.compareTo(y);
+      }
+    });
+    StringBuilder sb = new StringBuilder(String.format("%d samples%n%8s %6s %8s %6s  %s%n",
+                                                       samples, "self", "%", "total", "%", "definition"));
+    for (String name: names.subList(0, Math.min(n, names.size()))) {
+      long[] c = counts.get(name);
+      sb.append(String.format("%8d %6.1f %8d %6.1f  %s%n", c[0], percent(c[0]), c[1], percent(c[1]), name));
+    }
+    return sb.toString();
+  }
+
+  private static long[] count(HashMap<String, long[]> counts, String name) {
+    long[] c = counts.get(name);
+    if (c == null) counts.put(name, c = new long[2]);
+    return c;
+  }
+
+  private double percent(long count) { return samples == 0 ? 0 : 100.0 * count / samples; }
+
+  public String toString() { return "value " + value + "\n" + top(TOP); }
+}
+
+/** A daemon thread that records a snapshot of stack in profile every interval nanoseconds until it is stopped. */
+final class Sampler extends Thread {
+  private ShadowStack stack;
+  private EvalProfile profile;
+  private long interval;
+  private volatile boolean stopped;
+
+  Sampler(ShadowStack s, EvalProfile p, long i) {
+    super("jam-sampler");
+    stack = s; profile = p; interval = i;
+    setDaemon(true);
+  }
+
+  public void run() {
+    while (true) {
+      LockSupport.parkNanos(interval);
+      if (stopped) return;
+      profile.record(stack.snapshot());
+    }
+  }
+
+  /** Stops sampling, and waits until the last sample has been recorded. */
+  void finish() throws InterruptedException {
+    stopped = true;
+    LockSupport.unpark(this);
+    join();
+  }
+}
+
+/** Compiler that builds Nodes maintaining a shadow stack for one of the nine forms of evaluation.  It uses the
+  * policies of the Compiler it profiles, so it performs the same operations.  The compiled program must be executed
+  * by a single thread, which owns the shadow stack. */
+class ProfilingCompiler extends Compiler {
+
+  /** The default sampling interval, in microseconds. */
+  static final long INTERVAL = 1000;
+
+  ShadowStack stack;
+
+  private ProfilingCompiler(Compiler c, ShadowStack s) {
+    super(c.bindingPolicy, c.consPolicy);
+    stack = s;
+  }
+
+  /** Compiles and evaluates prog in the form of evaluation named mode (one of Compiler.MODES), sampling the shadow
+    * stack every interval microseconds, and returns the samples, including those taken while printing the value. */
+  static EvalProfile run(AST prog, String mode, long interval) {
+    if (interval <= 0) throw new IllegalArgumentException("sampling interval " + interval + " is not positive");
+    ShadowStack stack = new ShadowStack();
+    Node code = new ProfilingCompiler(forMode(mode), stack).compile(prog);
+    EvalProfile profile = new EvalProfile();
+    Sampler sampler = new Sampler(stack, profile, interval * 1000);
+    sampler.start();
+    try { profile.value = code.execute(null).toString(); }
+    finally {
+      try { sampler.finish(); }
+      catch(InterruptedException e) { Thread.currentThread().interrupt(); }
+    }
+    return profile;
+  }
+
+  /** Returns the name of an anonymous Map with parameters vars. */
+  static String anonymous(Variable[] vars) {
+    StringBuilder sb = new StringBuilder("map(");
+    for (int i = 0; i < vars.length; i++) sb.append(i == 0 ? "" : ",").append(vars[i].name());
+    return sb.append(')').toString();
+  }
+
+  public Node forMap(Map m) {
+    MapNode n = (MapNode) super.forMap(m);
+    n.body = new ProfiledNode(anonymous(m.vars()), n.body, stack);
+    return n;
+  }
+
+  /** Names each Map bound by l after its variable, and pushes the names of the other variables of l while their
+    * right-hand sides execute. */
+  public Node forLet(Let l) {
+    ValueLetNode n = (ValueLetNode) super.forLet(l);
+    Variable[] vars = l.vars();
+    for (int i = 0; i < vars.length; i++) {
+      if (n.rhss[i] instanceof MapNode) ((ProfiledNode) ((MapNode) n.rhss[i]).body).name = vars[i].name();
+      else n.rhss[i] = new ProfiledNode(vars[i].name(), n.rhss[i], stack);
+    }
+    return n;
+  }
+}
+
+/** Command-line driver for ProfilingCompiler: prints the table of the definitions that executed most often, or with
+  * -collapsed, the sampled stacks in collapsed form. */
+class JamProfile {
+  public static void main(String[] args) throws InterruptedException {
+    final boolean collapsed = args.length > 0 && args[0].equals("-collapsed");
+    int k = collapsed ? 1 : 0;
+    if (args.length <= k || args.length > k + 3) {
+      System.err.println("usage: java JamProfile [-collapsed] file [mode [interval]]");
+      System.exit(1);
+    }
+    final String file = args[k];
+    final String mode = args.length > k + 1 ? args[k + 1] : "valueValue";
+    final long interval = args.length > k + 2 ? Long.parseLong(args[k + 2]) : ProfilingCompiler.INTERVAL;
+    // evaluation recurses on the Java stack as deeply as the evaluated program does
+    Thread t = new Thread(null, new Runnable() {
+      public void run() {
+        try {
+          EvalProfile p = new Interpreter(file).compiledProfile(mode, interval);
+          System.out.print(collapsed ? p.collapsed() : p.toString());
+        }
+        catch(IOException e) { System.err.println("cannot read " + file + ": " + e.getMessage()); }
+      }
+    }, "JamProfile", BatchEvaluator.STACK_SIZE);
+    t.start();
+    t.join();
+  }
+}
@@ -0,0 +1,206 @@
+/* Lexical addressing for Jam programs.  The resolution pass runs after the syntax check performed by
+ * Parser.parseAndCheck() and rewrites each variable occurrence in the checked AST as a LexicalVariable that records
+ * where the corresponding binding lives in the environment at run time. */
+
+import java.util.ArrayList;
+
+/** A variable occurrence annotated with its lexical address.  The address is a (frame depth, slot index) pair: depth
+  * is the number of frames between the occurrence and the frame holding its binding, and index is the position of
+  * the binding in that frame.  Each Map application and each Let creates a frame.  Closures are flat: the body of a
+  * Map sees the frame for its parameters, whose parent is the frame of variables captured by the closure (the free
+  * variables of the Map), which has no parent.  So a variable that is free in an enclosing Map is found in that Map's
+  * captured frame rather than by walking out to the frame that originally bound it.
+  * A LexicalVariable prints and behaves like the Variable it refers to; var() returns the unique Variable object
+  * created by the lexer, so code that compares Variables using == continues to work. */
+class LexicalVariable extends Variable {
+
+  /** The unique Variable (as produced by the lexer) that this occurrence denotes. */
+  private Variable var;
+
+  /** The number of frames between this occurrence and the frame holding its binding. */
+  private int depth;
+
+  /** The position of var in the frame that binds it. */
+  private int index;
+
+  /** The number of bindings that precede the binding for var in an environment represented as a PureList<Binding>.
+    * Each Map application or Let is assumed to cons its bindings onto the environment in parameter order, so the
+    * binding for the last parameter appears at the front of the list. */
+  private int offset;
+
+  LexicalVariable(Variable v, int d, int i, int o) {
+    super(v.name());
+    var = v; depth = d; index = i; offset = o;
+  }
+
+  /** Returns the unique Variable object that this occurrence denotes. */
+  public Variable var() { return var; }
+  public int depth() { return depth; }
+  public int index() { return index; }
+  public int offset() { return offset; }
+
+  /** Returns the binding for this variable in the environment env.  Skips the first offset() bindings in env instead
+    * of comparing var against each of them.  If env was not built in the order assumed by the resolver, falls back
+    * on a LookupVisitor walk, so the result is always the same as the one LookupVisitor would produce. */
+  public Binding lookup(PureList<Binding> env) {
+    PureList<Binding> l = env;
+    for (int i = 0; i < offset && l instanceof Cons; i++) l = ((Cons<Binding>) l).rest();
+    if (l instanceof Cons) {
+      Binding b = ((Cons<Binding>) l).first();
+      if (b.var() == var) return b;
+    }
+    return env.accept(new LookupVisitor<Binding>(var));
+  }
+}
+
+/** Visitor that rewrites a checked AST, replacing each variable occurrence by the corresponding LexicalVariable and
+  * recording in each Map the addresses of its free variables, which a closure for the Map must capture.  The binding
+  * constructs are left intact: the parameters of a Map and the left-hand sides of the definitions in a Let are still
+  * the Variables produced by the lexer. Since let is recursive in Jam, the right-hand sides of a Let are resolved in
+  * the frame introduced by that Let.  Assumes that the AST has passed CheckVisitor, so every variable occurrence has
+  * a binder. */
+class ResolveVisitor implements ASTVisitor<AST> {
+
+  /** Empty symbol table. */
+  private static final Empty<Variable[]> EMPTY_FRAMES = new Empty<Variable[]>();
+
+  /** Root form of ResolveVisitor. */
+  public static final ResolveVisitor INITIAL = new ResolveVisitor(EMPTY_FRAMES, null);
+
+  /** Symbol table: the variables bound by each enclosing binding construct, innermost first.  Used to compute the
+    * offsets of bindings in cons-chain environments, which are not flattened at closures. */
+  PureList<Variable[]> frames;
+
+  /** The frames visible at run time, innermost first; null at the top level. */
+  Scope scope;
+
+  ResolveVisitor(PureList<Variable[]> f, Scope s) { frames = f; scope = s; }
+
+  /** Resolves an array of ASTs. */
+  private AST[] resolve(AST[] asts) {
+    int n = asts.length;
+    AST[] result = new AST[n];
+    for (int i = 0; i < n; i++) result[i] = asts[i].accept(this);
+    return result;
+  }
+
+  /** Returns the LexicalVariable for an occurrence of var in this scope, or null if var is free. */
+  LexicalVariable address(Variable var) {
+    LexicalVariable full = frames.accept(new AddressVisitor(var));
+    if (full == null || scope == null) return null;
+    return scope.address(var, 0, full.offset());
+  }
+
+  /*  Visitor methods. */
+
+  public AST forBoolConstant(BoolConstant b) { return b; }
+  public AST forIntConstant(IntConstant i) { return i; }
+  public AST forEmptyConstant(EmptyConstant n) { return n; }
+
+  public AST forVariable(Variable v) {
+    LexicalVariable lv = address(v.var());
+    if (lv == null) throw new SyntaxException("variable " + v + " is free");  // CheckVisitor should have caught this
+    return lv;
+  }
+
+  public AST forPrimFun(PrimFun f) { return f; }
+  public AST forUnOpApp(UnOpApp u) { return new UnOpApp(u.rator(), u.arg().accept(this)); }
+  public AST forBinOpApp(BinOpApp b) { return new BinOpApp(b.rator(), b.arg1().accept(this), b.arg2().accept(this)); }
+  public AST forApp(App a) { return new App(a.rator().accept(this), resolve(a.args())); }
+
+  public AST forMap(Map m) {
+    Variable[] vars = m.vars();
+    CapturedScope captured = new CapturedScope(this);
+    AST body = m.body().accept(new ResolveVisitor(frames.cons(vars), new FrameScope(vars, captured)));
+    return new Map(vars, body, captured.freeVars());
+  }
+
+  public AST forIf(If i) { return new If(i.test().accept(this), i.conseq().accept(this), i.alt().accept(this)); }
+
+  public AST forLet(Let l) {
+    Variable[] vars = l.vars();
+    ResolveVisitor inner = new ResolveVisitor(frames.cons(vars), new FrameScope(vars, scope));
+    Def[] defs = l.defs();
+    int n = defs.length;
+    Def[] newDefs = new Def[n];
+    for (int i = 0; i < n; i++) newDefs[i] = new Def(defs[i].lhs(), defs[i].rhs().accept(inner));
+    return new Let(newDefs, l.body().accept(inner));
+  }
+
+  /** A compile-time model of a run-time frame.
+    * Scope := FrameScope | CapturedScope */
+  static abstract class Scope {
+    /** Returns the LexicalVariable for var given that depth frames lie between the occurrence and this one, or null
+      * if var is free.  The offset of the binding in a cons-chain environment has already been computed. */
+    abstract LexicalVariable address(Variable var, int depth, int offset);
+  }
+
+  /** The scope of a frame created by a Map application or a Let. */
+  static class FrameScope extends Scope {
+    /** The variables bound in the frame. */
+    Variable[] vars;
+    /** The enclosing scope; null at the top level. */
+    Scope parent;
+
+    FrameScope(Variable[] v, Scope p) { vars = v; parent = p; }
+
+    LexicalVariable address(Variable var, int depth, int offset) {
+      for (int i = 0; i < vars.length; i++) {
+        if (vars[i] == var) return new LexicalVariable(var, depth, i, offset);
+      }
+      if (parent == null) return null;
+      return parent.address(var, depth + 1, offset);
+    }
+  }
+
+  /** The scope of the frame of captured variables in a closure.  The frame grows as the body of the Map is resolved:
+    * the first reference to a variable bound outside the Map adds that variable to the frame. */
+  static class CapturedScope extends Scope {
+    /** The visitor for the scope enclosing the Map. */
+    ResolveVisitor outer;
+    /** The free variables of the Map found so far, resolved in the scope enclosing the Map. */
+    ArrayList<LexicalVariable> freeVars = new ArrayList<LexicalVariable>();
+
+    CapturedScope(ResolveVisitor o) { outer = o; }
+
+    LexicalVariable address(Variable var, int depth, int offset) {
+      int n = freeVars.size();
+      for (int i = 0; i < n; i++) {
+        if (freeVars.get(i).var() == var) return new LexicalVariable(var, depth, i, offset);
+      }
+      LexicalVariable source = outer.address(var);
+      if (source == null) return null;
+      freeVars.add(source);
+      return new LexicalVariable(var, depth, n, offset);
+    }
+
+    /** Returns the free variables of the Map, in order of first occurrence. */
+    LexicalVariable[] freeVars() { return freeVars.toArray(new LexicalVariable[freeVars.size()]); }
+  }
+
+  /** Visitor that searches the symbol table for var, counting frames and bindings as it goes.  Returns null if var
+    * is not bound in the table. */
+  static class AddressVisitor implements PureListVisitor<Variable[], LexicalVariable> {
+    /** Variable to look up. */
+    Variable var;
+    /** Number of frames already searched. */
+    int depth = 0;
+    /** Number of bindings in the frames already searched. */
+    int offset = 0;
+
+    AddressVisitor(Variable v) { var = v; }
+
+    public LexicalVariable forEmpty(Empty<Variable[]> e) { return null; }
+
+    public LexicalVariable forCons(Cons<Variable[]> c) {
+      Variable[] vars = c.first();
+      int n = vars.length;
+      for (int i = 0; i < n; i++) {
+        if (vars[i] == var) return new LexicalVariable(var, depth, i, offset + n - 1 - i);
+      }
+      depth++;
+      offset += n;
+      return c.rest().accept(this);
+    }
+  }
+}
@@ -0,0 +1,393 @@
+/* A compact binary format for checked Jam ASTs.  Starting an Interpreter on a large program lexes, parses, and checks
+ * its text every time the JVM is launched.  Precompile performs those steps once and saves the checked AST in a .jamc
+ * artifact, which AstFormat.load maps into memory and AstReader decodes directly into an AST, without going through
+ * the Lexer or the Parser.  The decoded AST only needs to be optimized and resolved before it is evaluated. */
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+
+/** The binary AST format, which is
+  *   artifact ::= MAGIC VERSION exp
+  *   exp      ::= TRUE | FALSE | EMPTY | INT sint | var | PRIM u8 | UNOP u8 exp | BINOP u8 exp exp | APP exp uint exp*
+  *              | MAP uint var* exp | IF exp exp exp | LET uint var* exp* exp
+  *   var      ::= NEW_VAR uint u8* | VAR uint
+  * where MAGIC is the int 0x4A414D43 ("JAMC"), VERSION and the tags are single bytes, u8 is a byte, uint is an
+  * unsigned varint (7 bits per byte, least significant group first, high bit set on all but the last byte), and sint
+  * is a signed int encoded as the uint (i << 1) ^ (i >> 31).  The count in APP, MAP, and LET is the number of
+  * arguments, parameters, or definitions that follow; a LET lists the left-hand sides of its definitions before
+  * their right-hand sides.  Variables are numbered in order of first appearance: NEW_VAR gives the next variable its
+  * UTF-8 name, which takes the given number of bytes, and VAR refers to the variable with the given number.  PRIM,
+  * UNOP, and BINOP give the index of a PrimFun, UnOp, or BinOp in PRIMS, UNOPS, or BINOPS.  An artifact whose
+  * VERSION differs from the current one is rejected; VERSION must change whenever the format does. */
+class AstFormat {
+
+  static final int MAGIC = 0x4A414D43;
+  static final byte VERSION = 1;
+
+  static final byte TRUE = 0;
+  static final byte FALSE = 1;
+  static final byte EMPTY = 2;
+  static final byte INT = 3;
+  static final byte NEW_VAR = 4;
+  static final byte VAR = 5;
+  static final byte PRIM = 6;
+  static final byte UNOP = 7;
+  static final byte BINOP = 8;
+  static final byte APP = 9;
+  static final byte MAP = 10;
+  static final byte IF = 11;
+  static final byte LET = 12;
+
+  static final PrimFun[] PRIMS = {
+    FunctionPPrim.ONLY, NumberPPrim.ONLY, ListPPrim.ONLY, ConsPPrim.ONLY, EmptyPPrim.ONLY, ArityPrim.ONLY,
+    ConsPrim.ONLY, FirstPrim.ONLY, RestPrim.ONLY
+  };
+  static final UnOp[] UNOPS = { UnOpPlus.ONLY, UnOpMinus.ONLY, OpTilde.ONLY };
+  static final BinOp[] BINOPS = {
+    BinOpPlus.ONLY, BinOpMinus.ONLY, OpTimes.ONLY, OpDivide.ONLY, OpEquals.ONLY, OpNotEquals.ONLY, OpLessThan.ONLY,
+    OpGreaterThan.ONLY, OpLessThanEquals.ONLY, OpGreaterThanEquals.ONLY, OpAnd.ONLY, OpOr.ONLY
+  };
+
+  /** Returns the index of o in table. */
+  static int indexOf(Object[] table, Object o) {
+    for (int i = 0; i < table.length; i++) if (table[i] == o) return i;
+    throw new IllegalArgumentException(o + " has no binary encoding");
+  }
+
+  /** Returns the artifact for the checked AST prog, positioned for reading. */
+  static ByteBuffer write(AST prog) { return new AstWriter().write(prog); }
+
+  /** Returns the checked AST encoded in artifact, which is read from its position to its limit.  Throws a
+    * ParseException if artifact is not a well-formed artifact of the current version. */
+  static AST read(ByteBuffer artifact) { return new AstReader(artifact).read(); }
+
+  /** Writes the artifact for the checked AST prog to the file named fileName. */
+  static void save(AST prog, String fileName) throws IOException {
+    ByteBuffer artifact = write(prog);
+    FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                                           StandardOpenOption.TRUNCATE_EXISTING);
+    try { while (artifact.hasRemaining()) channel.write(artifact); }
+    finally { channel.close(); }
+  }
+
+  /** Returns the contents of the file named fileName, mapped into memory. */
+  static ByteBuffer load(String fileName) throws IOException {
+    FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+    try { return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()); }
+    finally { channel.close(); }
+  }
+}
+
+/** Visitor that encodes a checked AST in the binary AST format.  If the AST has been resolved, each LexicalVariable
+  * is written as the Variable it denotes, and the free variables recorded in Maps are omitted. */
+class AstWriter implements ASTVisitor<Void> {
+
+  private ByteBuffer buf = ByteBuffer.allocate(256);
+
+  /** The number of each Variable written so far. */
+  private IdentityHashMap<Variable, Integer> varNumbers = new IdentityHashMap<Variable, Integer>();
+
+  /** Returns the artifact for prog, positioned for reading. */
+  ByteBuffer write(AST prog) {
+    ensure(5);
+    buf.putInt(AstFormat.MAGIC);
+    buf.put(AstFormat.VERSION);
+    prog.accept(this);
+    buf.flip();
+    return buf;
+  }
+
+  /** Makes room for n more bytes in buf. */
+  private void ensure(int n) {
+    if (buf.remaining() >= n) return;
+    ByteBuffer bigger = ByteBuffer.allocate(Math.max(2 * buf.capacity(), buf.position() + n));
+    buf.flip();
+    bigger.put(buf);
+    buf = bigger;
+  }
+
+  private void tag(byte t) {
+    ensure(1);
+    buf.put(t);
+  }
+
+  private void uint(int i) {
+    ensure(5);
+    while ((i & ~0x7F) != 0) {
+      buf.put((byte) ((i & 0x7F) | 0x80));
+      i >>>= 7;
+    }
+    buf.put((byte) i);
+  }
+
+  private void var(Variable v) {
+    Variable var = v.var();
+    Integer n = varNumbers.get(var);
+    if (n != null) {
+      tag(AstFormat.VAR);
+      uint(n);
+      return;
+    }
+    varNumbers.put(var, varNumbers.size());
+    byte[] name = var.name().getBytes(StandardCharsets.UTF_8);
+    tag(AstFormat.NEW_VAR);
+    uint(name.length);
+    ensure(name.length);
+    buf.put(name);
+  }
+
+  private void exps(AST[] asts) {
+    for (AST a: asts) a.accept(this);
+  }
+
+  /* Visitor methods. */
+
+  public Void forBoolConstant(BoolConstant b) {
+    tag(b == BoolConstant.TRUE ? AstFormat.TRUE : AstFormat.FALSE);
+    return null;
+  }
+  public Void forIntConstant(IntConstant i) {
+    int v = i.value();
+    tag(AstFormat.INT);
+    uint((v << 1) ^ (v >> 31));
+    return null;
+  }
+  public Void forEmptyConstant(EmptyConstant n) {
+    tag(AstFormat.EMPTY);
+    return null;
+  }
+  public Void forVariable(Variable v) {
+    var(v);
+    return null;
+  }
+  public Void forPrimFun(PrimFun f) {
+    tag(AstFormat.PRIM);
+    tag((byte) AstFormat.indexOf(AstFormat.PRIMS, f));
+    return null;
+  }
+  public Void forUnOpApp(UnOpApp u) {
+    tag(AstFormat.UNOP);
+    tag((byte) AstFormat.indexOf(AstFormat.UNOPS, u.rator()));
+    u.arg().accept(this);
+    return null;
+  }
+  public Void forBinOpApp(BinOpApp b) {
+    tag(AstFormat.BINOP);
+    tag((byte) AstFormat.indexOf(AstFormat.BINOPS, b.rator()));
+    b.arg1().accept(this);
+    b.arg2().accept(this);
+    return null;
+  }
+  public Void forApp(App a) {
+    tag(AstFormat.APP);
+    a.rator().accept(this);
+    uint(a.args().length);
+    exps(a.args());
+    return null;
+  }
+  public Void forMap(Map m) {
+    tag(AstFormat.MAP);
+    uint(m.vars().length);
+    for (Variable v: m.vars()) var(v);
+    m.body().accept(this);
+    return null;
+  }
+  public Void forIf(If i) {
+    tag(AstFormat.IF);
+    i.test().accept(this);
+    i.conseq().accept(this);
+    i.alt().accept(this);
+    return null;
+  }
+  public Void forLet(Let l) {
+    tag(AstFormat.LET);
+    uint(l.defs().length);
+    for (Variable v: l.vars()) var(v);
+    exps(l.exps());
+    l.body().accept(this);
+    return null;
+  }
+}
+
+/** Decoder for the binary AST format.  Since an artifact does not pass through CheckVisitor, the reader checks that
+  * every variable occurrence is bound by an enclosing Map or Let and that no binder binds a variable twice, so the
+  * result can be resolved like the output of Parser.parseAndCheck(). */
+class AstReader {
+
+  private ByteBuffer buf;
+
+  /** The Variables read so far, by number. */
+  private ArrayList<Variable> vars = new ArrayList<Variable>();
+
+  /** For each Variable number, the number of enclosing binders of that Variable. */
+  private int[] bound = new int[16];
+
+  AstReader(ByteBuffer b) { buf = b; }
+
+  /** Returns the AST encoded in buf. */
+  AST read() {
+    try {
+      if (buf.remaining() < 5 || buf.getInt() != AstFormat.MAGIC) throw error("not a Jam AST artifact");
+      byte version = buf.get();
+      if (version != AstFormat.VERSION)
+        throw error("artifact has format version " + version + " but this reader supports version " + AstFormat.VERSION);
+      AST prog = exp();
+      if (buf.hasRemaining()) throw error("trailing bytes at offset " + buf.position());
+      return prog;
+    }
+    catch(BufferUnderflowException e) { throw error("artifact is truncated"); }
+  }
+
+  private static ParseException error(String msg) { return new ParseException("Malformed AST artifact: " + msg); }
+
+  private int uint() {
+    int result = 0;
+    for (int shift = 0; shift < 35; shift += 7) {
+      byte b = buf.get();
+      result |= (b & 0x7F) << shift;
+      if (b >= 0) return result;
+    }
+    throw error("varint too long at offset " + buf.position());
+  }
+
+  /** Returns the entry of table with the index given by the next byte. */
+  private <T> T entry(T[] table) {
+    int i = buf.get();
+    if (i < 0 || i >= table.length) throw error("bad operator index " + i + " at offset " + (buf.position() - 1));
+    return table[i];
+  }
+
+  /** Returns the number of the Variable encoded next. */
+  private int varNumber() {
+    byte t = buf.get();
+    if (t == AstFormat.VAR) {
+      int n = uint();
+      if (n < 0 || n >= vars.size()) throw error("undefined variable number " + n);
+      return n;
+    }
+    if (t != AstFormat.NEW_VAR) throw error("expected a variable at offset " + (buf.position() - 1));
+    int length = uint();
+    if (length < 0 || length > buf.remaining()) throw error("artifact is truncated");
+    byte[] name = new byte[length];
+    buf.get(name);
+    int n = vars.size();
+    vars.add(new Variable(new String(name, StandardCharsets.UTF_8)));
+    if (n == bound.length) bound = Arrays.copyOf(bound, 2 * n);
+    return n;
+  }
+
+  /** Reads the count binders that follow and marks them bound, returning their numbers. */
+  private int[] bind(int count) {
+    int[] numbers = new int[count];
+    for (int i = 0; i < count; i++) {
+      int n = varNumber();
+      for (int j = 0; j < i; j++) if (numbers[j] == n) throw error("variable " + vars.get(n) + " is bound twice");
+      numbers[i] = n;
+    }
+    for (int n: numbers) bound[n]++;
+    return numbers;
+  }
+
+  private void unbind(int[] numbers) {
+    for (int n: numbers) bound[n]--;
+  }
+
+  private Variable[] variables(int[] numbers) {
+    Variable[] result = new Variable[numbers.length];
+    for (int i = 0; i < numbers.length; i++) result[i] = vars.get(numbers[i]);
+    return result;
+  }
+
+  private int count() {
+    int n = uint();
+    if (n < 0 || n > buf.remaining()) throw error("bad count " + n + " at offset " + buf.position());
+    return n;
+  }
+
+  private AST[] exps(int n) {
+    AST[] result = new AST[n];
+    for (int i = 0; i < n; i++) result[i] = exp();
+    return result;
+  }
+
+  private AST exp() {
+    int start = buf.position();
+    byte t = buf.get();
+    switch (t) {
+      case AstFormat.TRUE: return BoolConstant.TRUE;
+      case AstFormat.FALSE: return BoolConstant.FALSE;
+      case AstFormat.EMPTY: return EmptyConstant.ONLY;
+      case AstFormat.INT: {
+        int z = uint();
+        return IntConstant.of((z >>> 1) ^ -(z & 1));
+      }
+      case AstFormat.NEW_VAR:
+      case AstFormat.VAR: {
+        buf.position(start);
+        int n = varNumber();
+        if (bound[n] == 0) throw error("variable " + vars.get(n) + " is free at offset " + start);
+        return vars.get(n);
+      }
+      case AstFormat.PRIM: return entry(AstFormat.PRIMS);
+      case AstFormat.UNOP: {
+        UnOp op = entry(AstFormat.UNOPS);
+        return new UnOpApp(op, exp());
+      }
+      case AstFormat.BINOP: {
+        BinOp op = entry(AstFormat.BINOPS);
+        AST arg1 = exp();
+        return new BinOpApp(op, arg1, exp());
+      }
+      case AstFormat.APP: {
+        AST rator = exp();
+        return new App(rator, exps(count()));
+      }
+      case AstFormat.MAP: {
+        int[] params = bind(count());
+        AST body = exp();
+        unbind(params);
+        return new Map(variables(params), body);
+      }
+      case AstFormat.IF: {
+        AST test = exp();
+        AST conseq = exp();
+        return new If(test, conseq, exp());
+      }
+      case AstFormat.LET: {
+        int[] lhss = bind(count());
+        int n = lhss.length;
+        Def[] defs = new Def[n];
+        for (int i = 0; i < n; i++) defs[i] = new Def(vars.get(lhss[i]), exp());
+        AST body = exp();
+        unbind(lhss);
+        return new Let(defs, body);
+      }
+      default: throw error("bad tag " + t + " at offset " + start);
+    }
+  }
+}
+
+/** Tool that precompiles Jam programs into artifacts in the binary AST format.  Run as
+  *   java Precompile file.jam ...
+  * For each file f.jam, writes the parsed and checked program to f.jamc (to f.jamc also if f does not end in .jam),
+  * which new Interpreter(AstFormat.load("f.jamc")) evaluates without parsing f.jam again.  The program is saved as
+  * written rather than optimized, so the Interpreter can report errors in terms of it (see ParsedProgram). */
+class Precompile {
+  public static void main(String[] args) throws IOException {
+    for (String fileName: args) {
+      String out = (fileName.endsWith(".jam") ? fileName.substring(0, fileName.length() - 4) : fileName) + ".jamc";
+      AST prog = new Parser(fileName).parseAndCheck();
+      AstFormat.save(prog, out);
+      System.out.println(fileName + " -> " + out + " (" + Paths.get(fileName).toFile().length() + " -> " +
+                         Paths.get(out).toFile().length() + " bytes)");
+    }
+  }
+}
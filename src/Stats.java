@@ -0,0 +1,263 @@
+/* Evaluation counters.  The cost of a Jam program under the different forms of evaluation is determined by a few
+ * operations: the bindings each form creates, the suspensions it evaluates (and evaluates again, under call-by-name),
+ * the cons cells it allocates, and the closures and primitives it applies.  Interpreter.compiledStats evaluates a
+ * program with a CountingCompiler, which compiles it into subclasses of the ordinary Nodes that count these
+ * operations in an EvalStats, and returns the counts.  The ordinary Compilers never build the counting Nodes, so
+ * evaluation that is not counted pays nothing for the counters. */
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/** The counts of the operations performed by one evaluation, and its printed value.  The counts are updated
+  * atomically, so a lazy value forced by another thread is counted correctly. */
+final class EvalStats {
+
+  /* The counters. */
+  static final int VALUE_BINDINGS = 0, NAME_BINDINGS = 1, NEED_BINDINGS = 2, SUSPENSIONS = 3, EVALUATIONS = 4,
+    REPEATED_EVALUATIONS = 5, CONS = 6, LAZY_NAME_CONS = 7, LAZY_NEED_CONS = 8, CLOSURE_APPLICATIONS = 9,
+    PRIMITIVE_APPLICATIONS = 10, MAX_NESTING = 11, MAX_ENVIRONMENT_DEPTH = 12;
+
+  /** The names of the counters, indexed by counter. */
+  static final String[] NAMES = {
+    "value bindings", "name bindings", "need bindings", "suspensions", "suspension evaluations",
+    "repeated evaluations", "cons cells", "lazy name cons cells", "lazy need cons cells", "closure applications",
+    "primitive applications", "maximum nesting depth", "maximum environment depth"
+  };
+
+  private final AtomicLongArray counts = new AtomicLongArray(NAMES.length);
+
+  /** The number of closure applications and Let bodies that the current thread is executing. */
+  private final ThreadLocal<int[]> depth = new ThreadLocal<int[]>() {
+    protected int[] initialValue() { return new int[1]; }
+  };
+
+  /** The printed value of the evaluated program. */
+  String value;
+
+  void count(int counter) { counts.incrementAndGet(counter); }
+
+  void count(int counter, long n) { counts.addAndGet(counter, n); }
+
+  /** Returns the value of counter. */
+  long get(int counter) { return counts.get(counter); }
+
+  /** Records the entry into frame f by a closure application (if closure is true) or a Let: counts the bindings in
+    * f by binding policy, the nesting depth of the entry, and the depth of the environment f.  A tail call is not
+    * nested in the application that returns it, so the nesting depth measures the growth of the Java stack.  The
+    * environment depth is the number of frames in the chain from f to the outermost frame, which bounds the number
+    * of frames a variable lookup in f walks; every lookup is made in a frame that has been entered, so the maximum
+    * over entries is the maximum over lookups.  Each entry is followed by an exit. */
+  void enter(Frame f, boolean closure) {
+    if (closure) count(CLOSURE_APPLICATIONS);
+    if (f instanceof BindingFrame)
+      for (Binding b: ((BindingFrame) f).bindings)
+        count(b instanceof NodeNeedBinding ? NEED_BINDINGS
+              : b instanceof NodeNameBinding ? NAME_BINDINGS : VALUE_BINDINGS);
+    else count(VALUE_BINDINGS, f.vars.length);
+    max(MAX_NESTING, ++depth.get()[0]);
+    int d = 0;
+    for (Frame p = f; p != null; p = p.parent) d++;
+    max(MAX_ENVIRONMENT_DEPTH, d);
+  }
+
+  /** Raises counter to n if it is smaller. */
+  private void max(int counter, long n) {
+    long max = counts.get(counter);
+    while (n > max && ! counts.compareAndSet(counter, max, n)) max = counts.get(counter);
+  }
+
+  /** Records the exit from the frame most recently entered by the current thread. */
+  void exit() { depth.get()[0]--; }
+
+  public String toString() {
+    StringBuilder sb = new StringBuilder("value ").append(value).append('\n');
+    for (int i = 0; i < NAMES.length; i++) sb.append(String.format("%-26s %d%n", NAMES[i], counts.get(i)));
+    return sb.toString();
+  }
+}
+
+/** A suspended argument, right-hand side, or argument of lazy cons.  A CountedSuspension is created for each
+  * suspension, so it can tell a repeated evaluation from the first one. */
+final class CountedSuspension extends Node {
+  private Node exp;
+  private EvalStats stats;
+  private boolean evaluated;
+  CountedSuspension(Node e, EvalStats s) {
+    exp = e; stats = s;
+    s.count(EvalStats.SUSPENSIONS);
+  }
+  JamVal execute(Frame f) {
+    stats.count(EvalStats.EVALUATIONS);
+    if (evaluated) stats.count(EvalStats.REPEATED_EVALUATIONS);
+    evaluated = true;
+    return exp.execute(f);
+  }
+}
+
+/** A node that increments counter each time it is executed and then executes node. */
+class CountingNode extends Node {
+  Node node;
+  int counter;
+  EvalStats stats;
+  CountingNode(Node n, int c, EvalStats s) { node = n; counter = c; stats = s; }
+  JamVal execute(Frame f) {
+    stats.count(counter);
+    return node.execute(f);
+  }
+  void markTail() { node.markTail(); }
+}
+
+/** The body of a Map or a Let, which records its entry into and exit from the frame in which it is executed (see
+  * EvalStats.enter). */
+class FrameEntryNode extends Node {
+  Node body;
+  boolean closure;
+  EvalStats stats;
+  FrameEntryNode(Node b, boolean c, EvalStats s) { body = b; closure = c; stats = s; }
+  JamVal execute(Frame f) {
+    stats.enter(f, closure);
+    try { return body.execute(f); }
+    finally { stats.exit(); }
+  }
+  void markTail() { body.markTail(); }
+}
+
+/** Lazy cons that counts the cells it allocates and the evaluations of their arguments. */
+class CountingLazyConsNode extends Node {
+  Node first, rest;
+  boolean need;
+  EvalStats stats;
+  CountingLazyConsNode(Node fst, Node rst, boolean n, EvalStats s) {
+    first = fst; rest = rst; need = n; stats = s;
+  }
+  JamVal execute(Frame f) {
+    Node fst = new CountedSuspension(first, stats), rst = new CountedSuspension(rest, stats);
+    if (need) {
+      stats.count(EvalStats.LAZY_NEED_CONS);
+      return new NodeLazyNeedCons(fst, rst, f);
+    }
+    stats.count(EvalStats.LAZY_NAME_CONS);
+    return new NodeLazyNameCons(fst, rst, f);
+  }
+}
+
+/* Application and Let nodes that count primitive applications and suspensions. */
+
+class CountingValueAppNode extends ValueAppNode {
+  EvalStats stats;
+  CountingValueAppNode(App a, Node r, Node[] as, Compiler.ConsPolicy cp, EvalStats s) {
+    super(a, r, as, cp);
+    stats = s;
+  }
+  JamVal applyOther(JamVal fun, Frame f) {
+    if (fun instanceof PrimFun) stats.count(EvalStats.PRIMITIVE_APPLICATIONS);
+    return super.applyOther(fun, f);
+  }
+}
+
+class CountingNameAppNode extends NameAppNode {
+  EvalStats stats;
+  CountingNameAppNode(App a, Node r, Node[] as, Compiler.ConsPolicy cp, EvalStats s) {
+    super(a, r, as, cp);
+    stats = s;
+  }
+  Node suspend(Node arg) { return new CountedSuspension(arg, stats); }
+  JamVal applyOther(JamVal fun, Frame f) {
+    if (fun instanceof PrimFun) stats.count(EvalStats.PRIMITIVE_APPLICATIONS);
+    return super.applyOther(fun, f);
+  }
+}
+
+class CountingNeedAppNode extends NeedAppNode {
+  EvalStats stats;
+  CountingNeedAppNode(App a, Node r, Node[] as, Compiler.ConsPolicy cp, EvalStats s) {
+    super(a, r, as, cp);
+    stats = s;
+  }
+  Node suspend(Node arg) { return new CountedSuspension(arg, stats); }
+  JamVal applyOther(JamVal fun, Frame f) {
+    if (fun instanceof PrimFun) stats.count(EvalStats.PRIMITIVE_APPLICATIONS);
+    return super.applyOther(fun, f);
+  }
+}
+
+class CountingNameLetNode extends NameLetNode {
+  EvalStats stats;
+  CountingNameLetNode(Variable[] v, Node[] r, Node b, EvalStats s) { super(v, r, b); stats = s; }
+  Node suspend(Node rhs) { return new CountedSuspension(rhs, stats); }
+}
+
+class CountingNeedLetNode extends NeedLetNode {
+  EvalStats stats;
+  CountingNeedLetNode(Variable[] v, Node[] r, Node b, int[] strict, EvalStats s) { super(v, r, b, strict); stats = s; }
+  Node suspend(Node rhs) { return new CountedSuspension(rhs, stats); }
+}
+
+/** Compiler that builds counting Nodes for one of the nine forms of evaluation, counting into stats.  It makes the
+  * same strictness decisions as the Compiler it counts for, so it counts the operations that Compiler performs. */
+class CountingCompiler extends Compiler {
+
+  /** The Compiler whose operations are counted. */
+  private Compiler base;
+  EvalStats stats;
+
+  private CountingCompiler(Compiler c, EvalStats s) {
+    super(bindingPolicy(c.bindingPolicy, s), consPolicy(c.consPolicy, s));
+    base = c;
+    stats = s;
+  }
+
+  /** Compiles and evaluates prog in the form of evaluation named mode (one of Compiler.MODES), and returns the
+    * counts of the operations performed, including those performed in printing the value. */
+  static EvalStats run(AST prog, String mode) {
+    Compiler base = forMode(mode);
+    EvalStats stats = new EvalStats();
+    stats.value = new CountingCompiler(base, stats).run(prog).toString();
+    return stats;
+  }
+
+  private static BindingPolicy bindingPolicy(final BindingPolicy bp, final EvalStats s) {
+    return new BindingPolicy() {
+      public Node newApp(App a, Node rator, Node[] args, ConsPolicy cp) {
+        if (bp == CALL_BY_NAME) return new CountingNameAppNode(a, rator, args, cp, s);
+        if (bp == CALL_BY_NEED) return new CountingNeedAppNode(a, rator, args, cp, s);
+        return new CountingValueAppNode(a, rator, args, cp, s);
+      }
+      public Node newLet(Variable[] vars, Node[] rhss, Node body, boolean recursive, int[] strict) {
+        if (bp == CALL_BY_NAME) return new CountingNameLetNode(vars, rhss, body, s);
+        if (bp == CALL_BY_NEED) return new CountingNeedLetNode(vars, rhss, body, strict, s);
+        return bp.newLet(vars, rhss, body, recursive, strict);
+      }
+    };
+  }
+
+  private static ConsPolicy consPolicy(final ConsPolicy cp, final EvalStats s) {
+    return new ConsPolicy() {
+      public Node newCons(Node first, Node rest) {
+        if (cp == LAZYNAME) return new CountingLazyConsNode(first, rest, false, s);
+        if (cp == LAZYNEED) return new CountingLazyConsNode(first, rest, true, s);
+        return new CountingNode(cp.newCons(first, rest), EvalStats.CONS, s);
+      }
+    };
+  }
+
+  int[] strictVars(Variable[] vars, AST body) { return base.strictVars(vars, body); }
+  int[] strictVars(Let l) { return base.strictVars(l); }
+
+  public Node forApp(App a) {
+    Node n = super.forApp(a);
+    if (a.rator() instanceof PrimFun) return new CountingNode(n, EvalStats.PRIMITIVE_APPLICATIONS, stats);
+    return n;
+  }
+
+  public Node forMap(Map m) {
+    MapNode n = (MapNode) super.forMap(m);
+    n.body = new FrameEntryNode(n.body, true, stats);
+    return n;
+  }
+
+  public Node forLet(Let l) {
+    ValueLetNode n = (ValueLetNode) super.forLet(l);
+    n.body = new FrameEntryNode(n.body, false, stats);
+    return n;
+  }
+}
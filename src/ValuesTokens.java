@@ -1,5 +1,6 @@
 /* JamVal and Token Data Definitions */
 
+import java.util.ArrayList;
 import java.util.NoSuchElementException;
   
 /** A data object representing a Jam value.
@@ -24,7 +25,28 @@ class IntConstant implements Token, Constant, JamVal {
   private int value;
   
   IntConstant(int i) { value = i; }
-  // duplicates can occur!
+  // duplicates can occur! Use of(i) to share the canonical IntConstant for small i.
+  
+  /** Lower bound (inclusive) of the range of preallocated IntConstants; set by the system property 
+    * jam.IntConstant.cache.low. */
+  static final int CACHE_LOW = Integer.getInteger("jam.IntConstant.cache.low", -128);
+  
+  /** Upper bound (inclusive) of the range of preallocated IntConstants; set by the system property 
+    * jam.IntConstant.cache.high. */
+  static final int CACHE_HIGH = Math.max(CACHE_LOW - 1, Integer.getInteger("jam.IntConstant.cache.high", 1023));
+  
+  /** The preallocated IntConstants for the values from CACHE_LOW through CACHE_HIGH. */
+  private static final IntConstant[] CACHE = new IntConstant[CACHE_HIGH - CACHE_LOW + 1];
+  static {
+    for (int i = 0; i < CACHE.length; i++) CACHE[i] = new IntConstant(CACHE_LOW + i);
+  }
+  
+  /** Factory method that returns an IntConstant with value i.  Values in the range CACHE_LOW..CACHE_HIGH are
+    * represented by preallocated IntConstants, so counters and list indices do not allocate. */
+  public static IntConstant of(int i) {
+    if (i >= CACHE_LOW && i <= CACHE_HIGH) return CACHE[i - CACHE_LOW];
+    return new IntConstant(i);
+  }
   
   public int value() { return value; }
   
@@ -36,7 +58,7 @@ class IntConstant implements Token, Constant, JamVal {
       (value == ((IntConstant)other).value());
   }
   /** computes the obvious hashcode for this consistent with equals. */
-  public int hashcode() { return value; }
+  public int hashCode() { return value; }
   public String toString() { return String.valueOf(value); }
 }
 
@@ -107,7 +129,8 @@ class Empty<ElemType> extends PureListClass<ElemType> {
   public String toStringHelp() { return ""; }
 }
 
-/** The non-empty PureList<T> class */
+/** The non-empty PureList<T> class.  The operations that traverse the list are loops rather than recursions on rest,
+  * so they run in constant stack space on lists of any length. */
 class Cons<ElemType> extends PureListClass<ElemType> {
   ElemType first;
   PureList<ElemType> rest;
@@ -115,27 +138,68 @@ class Cons<ElemType> extends PureListClass<ElemType> {
   
   public <ResType> ResType accept(PureListVisitor<ElemType,ResType> v) { return v.forCons(this); }
   public PureList<ElemType> append(PureList<ElemType> addedElts) { 
-    return new Cons<ElemType>(first, rest.append(addedElts)); 
+    ArrayList<ElemType> elts = new ArrayList<ElemType>();
+    PureList<ElemType> l = this;
+    while (l instanceof Cons) {
+      Cons<ElemType> c = (Cons<ElemType>) l;
+      elts.add(c.first);
+      l = c.rest;
+    }
+    PureList<ElemType> result = l.append(addedElts);
+    for (int i = elts.size() - 1; i >= 0; i--) result = new Cons<ElemType>(elts.get(i), result);
+    return result;
   }
   
   public ElemType first() { return first; }
   public PureList<ElemType> rest() { return rest; }
   public boolean contains(ElemType e) {
-    if (first.equals(e)) return true;
-    else return rest().contains(e);
+    PureList<ElemType> l = this;
+    while (l instanceof Cons) {
+      Cons<ElemType> c = (Cons<ElemType>) l;
+      if (c.first().equals(e)) return true;
+      l = c.rest();
+    }
+    return l.contains(e);
   }
   
   /** Overrides inherited equals to perform structural equality testing. */
   public boolean equals(Object other) { 
-    if (other == null || ! (other instanceof Cons)) return false;
-    Cons otherCons = (Cons) other;
-    return first().equals(otherCons.first()) && rest().equals(otherCons.rest());
+    PureList<?> l = this;
+    Object o = other;
+    while (l instanceof Cons) {
+      if (o == null || ! (o instanceof Cons)) return false;
+      Cons<?> c = (Cons<?>) l;
+      Cons<?> otherCons = (Cons<?>) o;
+      if (! c.first().equals(otherCons.first())) return false;
+      l = c.rest();
+      o = otherCons.rest();
+    }
+    return l.equals(o);
   }
   /** Overrides hash code in accord with equals. */
-  public int hashCode() { return first().hashCode() + rest().hashCode(); }
+  public int hashCode() {
+    int hash = 0;
+    PureList<ElemType> l = this;
+    while (l instanceof Cons) {
+      Cons<ElemType> c = (Cons<ElemType>) l;
+      hash += c.first().hashCode();
+      l = c.rest();
+    }
+    return hash + l.hashCode();
+  }
   
-  public String toString() { return "(" + first + rest.toStringHelp() + ")"; }
-  public String toStringHelp() { return " " + first + rest.toStringHelp(); }
+  public String toString() { return appendElements(new StringBuilder("(").append(first), rest).append(')').toString(); }
+  public String toStringHelp() { return appendElements(new StringBuilder(), this).toString(); }
+  
+  /** Appends a blank followed by each element of l to sb; returns sb. */
+  private static StringBuilder appendElements(StringBuilder sb, PureList<?> l) {
+    while (l instanceof Cons) {
+      Cons<?> c = (Cons<?>) l;
+      sb.append(' ').append(c.first);
+      l = c.rest;
+    }
+    return sb.append(l.toStringHelp());
+  }
 }
 
 /** The Jam List class representing JamVals that are PureLists. 
@@ -188,12 +252,26 @@ class JamCons extends Cons<JamVal> implements JamList {
    * within lazy lists are printed correctly. */
   
   /** Return the depth-bounded string representation of this. */
-  public String toString() { return "(" + first() + rest().toStringHelp(MAX_DEPTH) + ")"; }
+  public String toString() {
+    StringBuilder sb = new StringBuilder("(").append(first());
+    return appendElements(sb, rest(), MAX_DEPTH).append(')').toString();
+  }
   
   /** Return the depth-bounded string representation for this with a leading blank but no enclosing parentheses. */
-  public String toStringHelp(int maxDepth) {
-    if (maxDepth == 0)  return " ...";
-    return " " + first() + rest().toStringHelp(maxDepth - 1);
+  public String toStringHelp(int maxDepth) { return appendElements(new StringBuilder(), this, maxDepth).toString(); }
+  
+  /** Appends a blank followed by each of the first maxDepth elements of l to sb, followed by an ellipsis if l has more
+    * elements; returns sb.  As in the recursive formulation, the rest of a cons is computed before its length is
+    * compared to maxDepth, so the same suspensions of a lazy list are forced. */
+  private static StringBuilder appendElements(StringBuilder sb, JamList l, int maxDepth) {
+    while (l instanceof JamCons) {
+      if (maxDepth == 0) return sb.append(" ...");
+      JamCons c = (JamCons) l;
+      sb.append(' ').append(c.first());
+      l = c.rest();
+      maxDepth--;
+    }
+    return sb.append(l.toStringHelp(maxDepth));
   }
 }
 
@@ -214,7 +292,7 @@ class LookupVisitor<ElemType extends WithVariable> implements PureListVisitor<El
   
   // Invariant: the lexer guarantees that there is only one Variable instance for a given name enabling == testing
   
-  LookupVisitor(Variable v) { var = v; }
+  LookupVisitor(Variable v) { var = v.var(); }  // v may be a LexicalVariable; var() is the unique Variable
   
   /** Case for empty lists. */
   public ElemType forEmpty(Empty<ElemType> e) { return null; }
@@ -266,14 +344,149 @@ abstract class Binding implements WithVariable {
   public abstract void setBinding(Suspension s);
 }
  
-/** The class representing a Jam Closure. */
+/** An environment frame: the bindings introduced by a single Map application or Let together with a pointer to the
+  * frame for the enclosing scope.  A variable occurrence resolved to the lexical address (depth, index) by
+  * ResolveVisitor is found by following depth parent pointers and indexing the slots of the resulting frame, so a
+  * lookup never compares Variables.  A Map application or Let allocates one frame rather than a Cons cell and a
+  * Binding per variable.
+  * Frame := ValueFrame | BindingFrame */
+abstract class Frame {
+  /** The variables bound in this frame, shared with the Map or Let that created it. */
+  Variable[] vars;
+  /** The frame for the enclosing scope; null for the outermost frame. */
+  Frame parent;
+  
+  Frame(Variable[] v, Frame p) { vars = v; parent = p; }
+  public Variable[] vars() { return vars; }
+  public Frame parent() { return parent; }
+  
+  /** Returns the number of slots in this frame. */
+  public int size() { return vars.length; }
+  
+  /** Returns the frame depth levels above this one. */
+  public Frame ancestor(int depth) {
+    Frame f = this;
+    for (int i = 0; i < depth; i++) f = f.parent;
+    return f;
+  }
+  
+  /** Returns the value bound to the variable in slot index, which may require evaluation. */
+  public abstract JamVal value(int index);
+  
+  /** Returns a Binding for the variable in slot index that shares its (possibly pending) value with this frame. */
+  public abstract Binding binding(int index);
+  
+  /** Returns the value bound to the variable with lexical address (depth, index) relative to this frame. */
+  public JamVal lookup(int depth, int index) { return ancestor(depth).value(index); }
+  
+  /** Returns a new frame with no parent holding the bindings of the free variables of m, whose addresses are relative
+    * to this frame.  A flat closure for m records only this captured frame, so it retains exactly the bindings that
+    * the body of m can reference instead of the entire enclosing environment.  The captured frame is a ValueFrame
+    * when every captured binding lives in a ValueFrame. */
+  public Frame capture(Map m) {
+    LexicalVariable[] freeVars = m.freeVars();
+    int n = freeVars.length;
+    boolean allValues = true;
+    for (int i = 0; i < n && allValues; i++) allValues = ancestor(freeVars[i].depth()) instanceof ValueFrame;
+    if (allValues) {
+      JamVal[] values = new JamVal[n];
+      for (int i = 0; i < n; i++) values[i] = ancestor(freeVars[i].depth()).value(freeVars[i].index());
+      return new ValueFrame(m.capturedVars(), values, null);
+    }
+    Binding[] bindings = new Binding[n];
+    for (int i = 0; i < n; i++) bindings[i] = ancestor(freeVars[i].depth()).binding(freeVars[i].index());
+    return new BindingFrame(m.capturedVars(), bindings, null);
+  }
+  
+  /** Returns the value bound to the variable denoted by v, searching this frame and its ancestors. Only used for
+    * variables that have not been resolved to a lexical address. */
+  public JamVal lookup(Variable v) {
+    if (v instanceof LexicalVariable) {
+      LexicalVariable lv = (LexicalVariable) v;
+      return lookup(lv.depth(), lv.index());
+    }
+    Variable var = v.var();
+    for (Frame f = this; f != null; f = f.parent) {
+      Variable[] fvars = f.vars;
+      for (int i = 0; i < fvars.length; i++) if (fvars[i] == var) return f.value(i);
+    }
+    throw new EvalException("variable " + v + " is unbound");
+  }
+  
+  public String toString() {
+    StringBuffer result = new StringBuffer("[");
+    for (int i = 0; i < vars.length; i++) {
+      if (i > 0) result.append(", ");
+      result.append(vars[i] + " := " + slotString(i));
+    }
+    return result.append("]").toString();
+  }
+  
+  /** Returns the string representation of slot index without forcing any evaluation. */
+  abstract String slotString(int index);
+}
+
+/** A frame holding values.  Used under call-by-value, where a Map application binds each parameter directly to the
+  * value of the corresponding argument, so no Binding objects are required.  A null slot is a binding that is still
+  * pending.  Since capture copies values, a ValueFrame must be completely filled before a closure can capture it;
+  * frames for recursive Lets, whose right-hand sides may capture pending slots, must be BindingFrames. */
+class ValueFrame extends Frame {
+  JamVal[] values;
+  
+  ValueFrame(Variable[] v, JamVal[] jvs, Frame p) { super(v, p); values = jvs; }
+  
+  /** Constructs a frame whose slots are all pending. */
+  ValueFrame(Variable[] v, Frame p) { this(v, new JamVal[v.length], p); }
+  
+  public JamVal value(int index) {
+    JamVal val = values[index];
+    if (val == null) return Interpreter.illegalForwardReference(vars[index]);
+    return val;
+  }
+  
+  /** Sets slot index to val. */
+  public void setValue(int index, JamVal val) { values[index] = val; }
+  
+  public Binding binding(int index) { return new CapturedValue(vars[index], value(index)); }
+  
+  String slotString(int index) { return String.valueOf(values[index]); }
+}
+
+/** A frame holding Binding objects, so it works under every binding policy: call-by-value, call-by-name and
+  * call-by-need bindings differ only in the Binding subclass stored in each slot. */
+class BindingFrame extends Frame {
+  Binding[] bindings;
+  
+  BindingFrame(Variable[] v, Binding[] bs, Frame p) { super(v, p); bindings = bs; }
+  
+  public JamVal value(int index) { return bindings[index].value(); }
+  
+  public Binding binding(int index) { return bindings[index]; }
+  
+  String slotString(int index) { return String.valueOf(bindings[index]); }
+}
+ 
+/** A Binding holding a value copied out of a ValueFrame when a closure captures it alongside Bindings from other
+  * frames. */
+class CapturedValue extends Binding {
+  CapturedValue(Variable v, JamVal jv) { super(v, jv); }
+  public void setBinding(Suspension s) { value = s.eval(); }
+  public String toString() { return "[" + var + ", " + value + "]"; }
+}
+ 
+/** The class representing a Jam Closure.  A closure built by an evaluator that uses cons-chain environments records
+  * env; a flat closure built by an evaluator that uses frames records only the frame of captured free variables
+  * computed by Frame.capture(body). */
 class JamClosure extends JamFun {
   private Map body;
   private PureList<Binding> env;
+  private Frame frame;
   
   JamClosure(Map b, PureList<Binding> e) { body = b; env = e; }
+  JamClosure(Map b, Frame f) { body = b; frame = f; }
   Map body() { return body; }
   PureList<Binding> env() { return env; }
+  Frame frame() { return frame; }
   public <ResType> ResType accept(JamFunVisitor<ResType> jfv) { return jfv.forJamClosure(this); }
 }
 